@@ -26,6 +26,7 @@ import java.awt.*;
 import java.awt.event.*;
 import ij.*;
 import ij.gui.*;
+import ij.io.OpenDialog;
 import ij.process.*;
 import java.util.Vector;
 import javax.swing.*;
@@ -38,6 +39,7 @@ import java.io.FileOutputStream;
 import javax.swing.table.*;
 import javax.swing.event.*;
 import java.io.*;
+import java.nio.ByteOrder;
 
 import pixfret.*;
 
@@ -72,16 +74,11 @@ public class PixFRET_ extends JDialog implements ActionListener, WindowListener,
 	private final int 	DONOR	= 0;
 	private final int	ACCEP	= 1;
 	
-	private final int	CST		= 0;		// Constant Model
-	private final int	LIN		= 1;		// Linear Model
-	private final int 	EXP 	= 2;		// Exponential Model
-
-	private final int	A		= 0;		// Constant Model
-	private final int	B		= 1;		// Linear Model
-	private final int 	E 		= 2;		// Exponential Model
-	
 	private Properties props 	= new Properties();
-	private	String filename 	= System.getProperty("user.dir") + "/plugins/PixFRETSettings.txt";
+	private	String filename 	= System.getProperty("user.dir") + "/plugins/PixFRETSettings.txt";	// former settings, imported once
+	private CalibrationStore store = new CalibrationStore(new File(System.getProperty("user.dir") + "/plugins/PixFRET"));
+	private ResultCache cache = null;	// opened at the first computation with the cache
+	private static final String LAST = "Last";		// profile of the last computation
 	private String jarFile 		= System.getProperty("user.dir") + "/plugins/PixFRET_.jar";
 
 	private Thread thread		= null;
@@ -95,8 +92,6 @@ public class PixFRET_ extends JDialog implements ActionListener, WindowListener,
 	
 	private String outputList[]	= {"FRET/Donor", "FRET/Acceptor", "FRET/(Donor*Acceptor)", "FRET/sqrt(Donor*Acceptor)", "FRET Efficiency"};
 	private String outputName 	= outputList[0];	
-	private String[] models				= {"Constant Model", "Linear Model", "Exponential Model"};
-	private String[] modelsShortName	= {"Cst", "Lin", "Exp"};
 	private String[] channelName		= {"Donor", "Acceptor"};
 	
 	private PanelImage[][]	panelFormula= new PanelImage[3][2];	// index 1: Model, index 2: channel
@@ -129,9 +124,20 @@ public class PixFRET_ extends JDialog implements ActionListener, WindowListener,
 	private	JComboBox 			choiceOutput;
 
 	private JButton				bnClose	 			= new JButton("Close");
-	private JButton				bnSave	 			= new JButton("Save Parameters");
+	private JButton				bnSave	 			= new JButton("Save Profile");
+	private JButton				bnLoad	 			= new JButton("Load Profile");
+	private JTextField			txtSetup 			= new JTextField("default", 8);
+	private JComboBox			choiceProfile		= new JComboBox();
 	private JButton				bnRun				= new JButton("Compute FRET");
-	private JCheckBox			chkDisplayBlur		= new JCheckBox("Show blurred images", true);
+	private JButton				bnFile				= new JButton("Compute File");
+	private MappedStack			inputStack			= null;		// file mapped by Compute File, else the current image
+	private String				inputTitle			= null;
+	private JCheckBox			chkDisplayBlur		= new JCheckBox("Blurred images", true);
+	private JCheckBox			chkWindows			= new JCheckBox("Windows", true);
+	private JCheckBox			chkTable			= new JCheckBox("Results table", false);
+	private JCheckBox			chkTiff				= new JCheckBox("TIFF files", false);
+	private JCheckBox			chkCache			= new JCheckBox("Cache", false);
+	private File				tiffDirectory		= null;
 	
 	private JTextField			txtBlur 			= new JTextField("3.0", 7);
 	private JTextField			txtFact 			= new JTextField("1.0", 7);
@@ -175,12 +181,27 @@ public class PixFRET_ extends JDialog implements ActionListener, WindowListener,
 		//addComponentFree(pnComp, 1, 0, 2, 1, 4, new PanelImage(JarResources.extractImage(jarFile, "formulaFRET.gif"), 398, 23));
 		addComponentFree(pnComp, 2, 0, 2, 1, 4, lblFormula[DONOR]);
 		addComponentFree(pnComp, 3, 0, 2, 1, 4, lblFormula[ACCEP]);
-		addComponentFree(pnComp, 4, 0, 1, 1, 4, chkDisplayBlur);
-		addComponentFree(pnComp, 4, 1, 1, 1, 4, bnRun);
+		JPanel pnOutputs = new JPanel();
+		pnOutputs.setLayout(new FlowLayout());
+		pnOutputs.add(new JLabel("Outputs"));
+		pnOutputs.add(chkWindows);
+		pnOutputs.add(chkTable);
+		pnOutputs.add(chkTiff);
+		pnOutputs.add(chkDisplayBlur);
+		pnOutputs.add(chkCache);
+		addComponentFree(pnComp, 4, 0, 2, 1, 4, pnOutputs);
+		addComponentFree(pnComp, 5, 0, 1, 1, 4, bnFile);
+		addComponentFree(pnComp, 5, 1, 1, 1, 4, bnRun);
 		pnComp.setBorder(BorderFactory.createTitledBorder("Computation"));
 
+		choiceProfile.setEditable(true);
+		choiceProfile.setPrototypeDisplayValue("Calibration");
 		JPanel pnButton = new JPanel();
 		pnButton.setLayout(new FlowLayout());
+		pnButton.add(new JLabel("Setup"));
+		pnButton.add(txtSetup);
+		pnButton.add(choiceProfile);
+		pnButton.add(bnLoad);
 		pnButton.add(bnSave);
 		pnButton.add(bnClose);
 
@@ -198,10 +219,17 @@ public class PixFRET_ extends JDialog implements ActionListener, WindowListener,
         tabbedPane.addTab("Acceptor Model", pnBleedThroughAccep);
 		tabbedPane.addTab("About", new About());
  
- 		// Listener		
+ 		pnBleedThroughDonor.setBackgroundPanel(pnBackground);
+		pnBleedThroughAccep.setBackgroundPanel(pnBackground);
+
+		// Listener		
 		bnClose.addActionListener(this);
 		bnRun.addActionListener(this);
+		bnFile.addActionListener(this);
 		bnSave.addActionListener(this);
+		bnLoad.addActionListener(this);
+		txtSetup.addActionListener(this);
+		chkTiff.addActionListener(this);
 		addWindowListener(this);
 		
 		// Main
@@ -262,7 +290,39 @@ public class PixFRET_ extends JDialog implements ActionListener, WindowListener,
 			dispose();
 		}
 		if (e.getSource() == bnSave) {
-			setPreferences();
+			Object name = choiceProfile.getSelectedItem();
+			if (name == null || name.toString().trim().length() == 0) {
+				IJ.showMessage("Please give a name to the profile.");
+			}
+			else {
+				saveProfile(name.toString().trim());
+				if (((DefaultComboBoxModel)choiceProfile.getModel()).getIndexOf(name) < 0)
+					choiceProfile.addItem(name);
+			}
+		}
+		else if (e.getSource() == bnLoad) {
+			Object name = choiceProfile.getSelectedItem();
+			if (name != null)
+				loadProfile(name.toString().trim());
+		}
+		else if (e.getSource() == txtSetup) {
+			updateProfiles();
+		}
+		else if (e.getSource() == chkTiff) {
+			if (chkTiff.isSelected()) {
+				String dir = IJ.getDirectory("Folder of the TIFF files");
+				if (dir == null)
+					chkTiff.setSelected(false);
+				else
+					tiffDirectory = new File(dir);
+			}
+		}
+		else if (e.getSource() == bnFile) {
+			if (thread == null && (inputStack = openFile()) != null) {
+				thread = new Thread(this);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.start();
+			}
 		}
 		else if (e.getSource() == bnRun) {
 			if (thread == null) {
@@ -286,9 +346,72 @@ public class PixFRET_ extends JDialog implements ActionListener, WindowListener,
 	public void windowOpened(WindowEvent e)			{}
 	
 	/**
-	* Main routine for the FRET computation.
+	* Map a time-lapse file chosen by the user, an uncompressed TIFF or a
+	* raw file, without loading it into memory. Return null if the dialog
+	* is canceled or if the file cannot be mapped.
+	*/
+	private MappedStack openFile() {
+		OpenDialog od = new OpenDialog("Time-lapse {FRET, donor, acceptor}", null);
+		if (od.getFileName() == null)
+			return null;
+		File file = new File(od.getDirectory(), od.getFileName());
+		String name = file.getName().toLowerCase();
+		MappedStack stack = null;
+		try {
+			if (name.endsWith(".tif") || name.endsWith(".tiff")) {
+				stack = MappedStack.openTiff(file);
+			}
+			else {
+				GenericDialog gd = new GenericDialog("Raw file");
+				gd.addNumericField("Width", 512, 0);
+				gd.addNumericField("Height", 512, 0);
+				gd.addChoice("Type", new String[] {"8-bit", "16-bit unsigned", "32-bit float"}, "16-bit unsigned");
+				gd.addNumericField("Offset to first image", 0, 0);
+				gd.addCheckbox("Little-endian byte order", true);
+				gd.showDialog();
+				if (gd.wasCanceled())
+					return null;
+				int nx = (int)gd.getNextNumber();
+				int ny = (int)gd.getNextNumber();
+				int bitDepth = new int[] {8, 16, 32}[gd.getNextChoiceIndex()];
+				long offset = (long)gd.getNextNumber();
+				ByteOrder order = (gd.getNextBoolean() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+				stack = MappedStack.openRaw(file, nx, ny, bitDepth, offset, order);
+			}
+		}
+		catch(IOException e) {
+			IJ.showMessage("Unable to open " + file.getName() + ": " + e.getMessage());
+			return null;
+		}
+		catch(IllegalArgumentException e) {
+			IJ.showMessage("Unable to open " + file.getName() + ": " + e.getMessage());
+			return null;
+		}
+		if (stack.getSize() % 3 != 0) {
+			IJ.showMessage("The number of planes of " + file.getName() + " should be a multiple of 3.");
+			try {
+				stack.close();
+			}
+			catch(IOException e) {
+			}
+			return null;
+		}
+		inputTitle = file.getName();
+		return stack;
+	}
+
+	/**
+	* Main routine for the FRET computation, on the file of Compute File or
+	* on the current image.
 	*/
 	public synchronized void run() {
+		if (inputStack != null) {
+			MappedStack stack = inputStack;
+			inputStack = null;
+			compute(FrameSource.open(stack), inputTitle, stack.getWidth(), stack.getHeight());
+			thread = null;
+			return;
+		}
 	
 		// *********************************************************
 		// Retrieve the on-focus image
@@ -299,8 +422,8 @@ public class PixFRET_ extends JDialog implements ActionListener, WindowListener,
 			thread = null;
 			return;
 		}
-		if (imp.getStackSize() != 3) {
-			IJ.showMessage("The input stack size should be equal to 3.");
+		if (imp.getNChannels() != 3 && (imp.getStackSize() < 3 || imp.getStackSize() % 3 != 0)) {
+			IJ.showMessage("The input stack size should be equal to 3, or to a multiple of 3 for a time-lapse.");
 			thread = null;
 			return;
 		}
@@ -312,163 +435,126 @@ public class PixFRET_ extends JDialog implements ActionListener, WindowListener,
 			return;
 		}
 
+		compute(FrameSource.open(imp), imp.getTitle(), imp.getWidth(), imp.getHeight());
+		thread = null;
+	}
+
+	/**
+	* Compute the frames {FRET, donor, acceptor} of nx x ny pixels of a
+	* source, closed at the end, and write the outputs to the selected
+	* sinks.
+	*/
+	private void compute(FrameSource source, String title, int nx, int ny) {
 		Cursor cursor = getCursor();
 		setCursor(new Cursor(Cursor.WAIT_CURSOR));
+		int frames = source.getFrames();
 		
-		// ***********************************************************
-		// Create the PixFretImageAccess objects
-		// ***********************************************************                
-		PixFretImageAccess fret 		= new PixFretImageAccess(imp.getStack().getProcessor(1));
-		PixFretImageAccess donor  		= new PixFretImageAccess(imp.getStack().getProcessor(2));
-		PixFretImageAccess acceptor  	= new PixFretImageAccess(imp.getStack().getProcessor(3));
-		
-		//*******************************************************
-		// Smooth the images
-		//*******************************************************
-		
-		blur = (float)Math.abs(getFloatValue(txtBlur));
-		if (blur > 0.0) {
-			IJ.showStatus("Blurring the donor image ...");
-			donor.smoothGaussian(blur);
-			if (chkDisplayBlur.isSelected())
-				donor.show("Donor image blurred with value = " + blur);
-			IJ.showStatus("Blurring the acceptor image ...");
-			acceptor.smoothGaussian(blur);     
-			if (chkDisplayBlur.isSelected())
-				acceptor.show("Acceptor image blurred with value = " + blur); 
-			IJ.showStatus("Blurring the FRET image ...");
-			fret.smoothGaussian(blur);
-		}
-
 		// ***********************************************************
 		// Get the parameters
 		// ***********************************************************
 		
-		int modelDonor = pnBleedThroughDonor.getModel();
-		int modelAccep = pnBleedThroughAccep.getModel();
-		float[][] paramsDonor = pnBleedThroughDonor.getParams();
-		float[][] paramsAccep = pnBleedThroughAccep.getParams();
+		FretParameters params = getParameters();
+		FretEngine engine = new FretEngine(params);
 		displayBlurred = chkDisplayBlur.isSelected();
+		blur = params.blur;
+		if (chkCache.isSelected() && cache == null)
+			cache = new ResultCache(new File(System.getProperty("user.dir") + "/plugins/PixFRET/cache"), ResultCache.QUOTA);
+		engine.setCache(chkCache.isSelected() ? cache : null);
 
-		float BGFRET 	= pnBackground.getBackgroundFret();
-		float BGD 		= pnBackground.getBackgroundDonor();
-		float BGA 		= pnBackground.getBackgroundAcceptor();
-		fact 			= getFloatValue(txtFact);
-
-		float Nthresh = (float)Math.sqrt(BGD*BGA)*(float)fact;
-
-		int nx = fret.getWidth();
-		int ny = fret.getHeight();
-		setPreferences();
+		// ***********************************************************
+		// Outputs, nothing is displayed without the windows sink
+		// ***********************************************************
+		Vector sinks = new Vector();
+		StackSink stackSink = null;
+		if (chkWindows.isSelected() && frames > 1)
+			sinks.add(stackSink = new StackSink(displayBlurred));
+		else if (chkWindows.isSelected())
+			sinks.add(new WindowSink(rangeInf, rangeSup, displayBlurred));
+		if (chkTable.isSelected())
+			sinks.add(new TableSink("PixFRET Results", displayBlurred));
+		if (chkTiff.isSelected() && tiffDirectory != null)
+			sinks.add(new TiffSink(tiffDirectory, displayBlurred));
 
 		long chrono = System.currentTimeMillis();
                 
 		// ******************************************************
-		// expFRET and NexpFRet
+		// Backgrounds, blurring, expFRET and NexpFRet
 		// ******************************************************
-		PixFretImageAccess FRET = new PixFretImageAccess(nx, ny);
-		PixFretImageAccess NFRET = new PixFretImageAccess(nx, ny);
-		float min = Float.MAX_VALUE;
-		float max = -Float.MAX_VALUE;
-		float[][] block = new float[3][3];
-		float normTerm = 0.0f;
-		
-		int outKind = choiceOutput.getSelectedIndex();
-		IJ.showStatus("Computing the FRET expression (" + outKind +")...");
-		
-		for(int y=0;y<ny;y++) {
-			for ( int x = 0; x < nx; x++) {
-
-				donor.getNeighborhood(x, y, block);
-				float lmdonor = 0.0f;
-				for (int i=0; i<3; i++)
-				for (int j=0; j<3; j++)
-					lmdonor = lmdonor + block[i][j];
-				lmdonor = lmdonor / 9.0f;
-				float idonor = block[1][1]-BGD;
-
-				if (lmdonor > BGD*(float)fact) {
-
-					acceptor.getNeighborhood(x, y, block);
-					float lmacceptor = 0.0f;
-					for (int i=0; i<3; i++)
-					for (int j=0; j<3; j++)
-						lmacceptor = lmacceptor + block[i][j];
-					lmacceptor = lmacceptor / 9.0f;
-					float iacceptor = block[1][1]-BGA;
-
-					if (lmacceptor > BGA*(float)fact) {
-
-						fret.getNeighborhood(x, y, block);
-						float lmfret = 0.0f;
-						for (int i=0; i<3; i++)
-						for (int j=0; j<3; j++)
-							lmfret = lmfret + block[i][j];
-						lmfret = lmfret / 9.0f;
-						float ifret = block[1][1]-BGFRET;
-
-						if (lmfret > BGFRET*(float)fact) {
-							float expfret = ifret;
-							switch(modelDonor) {
-								case CST: 	expfret -= paramsDonor[0][CST]*idonor;
-											break;
-								case LIN:	expfret -= (paramsDonor[0][LIN]+paramsDonor[1][LIN]*idonor)*idonor;
-											break; 
-								case EXP:	expfret -= (paramsDonor[0][EXP]+paramsDonor[1][EXP]*(float)Math.exp(paramsDonor[2][EXP]*idonor))*idonor;
-											break;
-							}
-							switch(modelAccep) {
-								case CST: 	expfret -= paramsAccep[0][CST]*iacceptor;
-											break;
-								case LIN:	expfret -= (paramsAccep[0][LIN]+paramsAccep[1][LIN]*iacceptor)*iacceptor;
-											break; 
-								case EXP:	expfret -= (paramsAccep[0][EXP]+paramsAccep[1][EXP]*(float)Math.exp(paramsAccep[2][EXP]*iacceptor)*iacceptor);
-											break;
-							}
-							switch(outKind) {
-								case 0: 
-									normTerm = (float)(Math.abs(idonor));
-									break;
-								case 1: 
-									normTerm = (float)(Math.abs(iacceptor));
-									break;
-								case 2: 
-									normTerm = (float)(Math.abs(idonor*iacceptor));
-									break;
-								case 3: 
-									normTerm = (float)Math.sqrt(Math.abs(idonor*iacceptor));
-									break;
-								case 4: 
-									normTerm = (float)(Math.abs(idonor+expfret));
-									break;
-							}
-							float nexpfret = 0.0f;
-							if (normTerm != 0.0f) 
-								nexpfret = expfret*100.0f / normTerm;
-							float nt = (float)Math.sqrt(Math.abs(idonor*iacceptor));
-							
-							if (nt>Nthresh) {
-								FRET.pixels[x+y*nx]  = expfret;
-								NFRET.pixels[x+y*nx] = nexpfret;
-							}
-						}		
-					}                  
-				}
+		IJ.showStatus("Computing the FRET expression (" + params.output +")...");
+		ResultSink outputs[] = (ResultSink[])sinks.toArray(new ResultSink[sinks.size()]);
+		try {
+			if (frames == 1) {
+				PixFretImageAccess images[] = source.read(0);
+				engine.process(title, images[FrameSource.FRET], images[FrameSource.DONOR], images[FrameSource.ACCEPTOR], outputs);
+			}
+			else {
+				// Time-lapse: read, blur, compute and write stages
+				FretPipeline pipeline = new FretPipeline(params);
+				pipeline.setCache(chkCache.isSelected() ? cache : null);
+				pipeline.setMaxInFlight(getFramesInFlight(nx, ny));
+				pipeline.run(new FrameSource[] {source}, new String[] {title}, outputs);
+				IJ.log(pipeline.getPipeline().getReport());
 			}
 		}
-
-		// ******************************************************
-		// Display the resulting images	
-		// ******************************************************
-		if (outKind == 4)
-			NFRET.showLUT("FRET Efficiency (%) of " + imp.getTitle(), rangeInf, rangeSup);
-		else
-			NFRET.showLUT("NFRET (x100) of " + imp.getTitle(), rangeInf, rangeSup);
-		FRET.showLUT("FRET of " + imp.getTitle(), rangeInf, rangeSup);  
+		catch(IOException e) {
+			IJ.showMessage("Unable to process " + title + ": " + e.getMessage());
+		}
+		finally {
+			try {
+				source.close();
+			}
+			catch(IOException e) {
+			}
+		}
+		if (stackSink != null)
+			stackSink.show(title);
+		if (params.backgroundMode != FretParameters.MANUAL) {
+			final float fret = params.backgroundFret;
+			final float donor = params.backgroundDonor;
+			final float accep = params.backgroundAccep;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					pnBackground.setBackgrounds(fret, donor, accep);
+				}
+			});
+		}
+		setPreferences();
 		IJ.showStatus("PixFRET time:" + (System.currentTimeMillis() - chrono) + " ms");
 		setCursor(cursor);
-		
-		thread = null;
+	}
+	
+	/**
+	* Return the number of frames of a time-lapse in the pipeline at the
+	* same time: a frame holds 3 input and 2 output float planes, and the
+	* frames may take half of the free memory, with at least 2 frames and
+	* at most one per processor plus the frames read and written.
+	*/
+	private static int getFramesInFlight(int nx, int ny) {
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		long frame = 5L * 4L * nx * ny;
+		return (int)Math.max(2, Math.min(Parallel.getThreads() + 2, free / 2 / frame));
+	}
+
+	/**
+	* Get the parameters of the computation from the dialog.
+	*/
+	private FretParameters getParameters() {
+		FretParameters params = new FretParameters();
+		params.blur 		= (float)Math.abs(getFloatValue(txtBlur));
+		params.fact 		= getFloatValue(txtFact);
+		params.output 		= choiceOutput.getSelectedIndex();
+		params.modelDonor 	= pnBleedThroughDonor.getModel();
+		params.modelAccep 	= pnBleedThroughAccep.getModel();
+		params.paramsDonor 	= pnBleedThroughDonor.getParams();
+		params.paramsAccep 	= pnBleedThroughAccep.getParams();
+		params.backgroundMode 		= pnBackground.getBackgroundMode();
+		params.backgroundEstimator 	= pnBackground.getBackgroundEstimator();
+		params.backgroundTile 		= pnBackground.getBackgroundTile();
+		params.backgroundFret 		= pnBackground.getBackgroundFret();
+		params.backgroundDonor 		= pnBackground.getBackgroundDonor();
+		params.backgroundAccep 		= pnBackground.getBackgroundAcceptor();
+		return params;
 	}
 	
 	/**
@@ -489,93 +575,144 @@ public class PixFRET_ extends JDialog implements ActionListener, WindowListener,
 	}
 	
 	/**
-	* Get the preferences from the file.
+	* Get the preferences: the last profile of the setup, or the former
+	* settings file if there is none.
 	*/
 	private void getPreferences() {
+		CalibrationProfile profile = null;
 		try {
-			FileInputStream in = new FileInputStream(filename);
-			props.load(in);
+			profile = store.load(getSetup(), LAST);
 		}
-		catch(Exception e) {
+		catch(IOException e) {
+			IJ.log("PixFRET: unable to read the calibration store: " + e.getMessage());
 		}
+		if (profile == null) {
+			try {
+				FileInputStream in = new FileInputStream(filename);
+				props.load(in);
+				in.close();
+			}
+			catch(Exception e) {
+			}
+			profile = CalibrationProfile.fromProperties(props, LAST);
+		}
+		setProfile(profile);
+		updateProfiles();
+	}
 
-		float[][] paramsDonor = new float[3][3];
-		float[][] paramsAccep = new float[3][3];
-		paramsDonor[A][CST]  = Float.parseFloat(props.getProperty("Constant Donor a", "0.33818"));
-		paramsAccep[A][CST]  = Float.parseFloat(props.getProperty("Constant Accep a", "0.01534"));
-		
-		paramsDonor[A][LIN] = Float.parseFloat(props.getProperty("Linear Donor a", "0.0"));
-		paramsDonor[B][LIN] = Float.parseFloat(props.getProperty("Linear Donor b", "0.0"));
-		paramsAccep[A][LIN] = Float.parseFloat(props.getProperty("Linear Accep a", "0.0"));
-		paramsAccep[B][LIN] = Float.parseFloat(props.getProperty("Linear Accep b", "0.0"));
-		
-		paramsDonor[A][EXP] = Float.parseFloat(props.getProperty("Exponential Donor a", "0.0"));
-		paramsDonor[B][EXP] = Float.parseFloat(props.getProperty("Exponential Donor b", "0.0"));
-		paramsDonor[E][EXP] = Float.parseFloat(props.getProperty("Exponential Donor e", "0.0"));
-		paramsAccep[A][EXP] = Float.parseFloat(props.getProperty("Exponential Accep a", "0.0"));
-		paramsAccep[B][EXP] = Float.parseFloat(props.getProperty("Exponential Accep b", "0.0"));
-		paramsAccep[E][EXP] = Float.parseFloat(props.getProperty("Exponential Accep e", "0.0"));
-
-	 	fact	= Float.parseFloat(props.getProperty("fact", "1.0"));
-	 	blur	= Float.parseFloat(props.getProperty("blur", "3.0"));
-	 	
-	 	int modelDonor = Integer.parseInt(props.getProperty("Model Donor", "2"));
-	 	int modelAccep = Integer.parseInt(props.getProperty("Model Accep", "0"));
-	 	outputName = props.getProperty("Normalization", outputList[0]);
-	 	for (int i=0; i<outputList.length; i++) {
-	 		if (outputList[i].equals(outputName))
-	 			choiceOutput.setSelectedIndex(i);
-	 	}
-	 			
-		displayBlurred = props.getProperty("Display Blurred Images", "true").equals("true");
+	/**
+	* Set the preferences into the store, as the last profile of the setup.
+	* The save runs in the background.
+	*/
+	private void setPreferences() {
+		saveProfile(LAST);
+	}
+
+	/**
+	* Save the parameters and the calibrations under a name, in the
+	* background. A failed save is reported in a message, or in the log
+	* for the last profile saved at each computation.
+	*/
+	private void saveProfile(String name) {
+		CalibrationProfile profile = new CalibrationProfile(name);
+		profile.params = getParameters();
+		profile.displayBlurred = chkDisplayBlur.isSelected();
+		profile.donor = pnBleedThroughDonor.getCalibration();
+		profile.accep = pnBleedThroughAccep.getCalibration();
+		try {
+			store.save(getSetup(), profile, new CalibrationStore.Listener() {
+				public void saved(String setup, String name, int version) {
+				}
+				public void failed(String setup, String name, IOException e) {
+					if (LAST.equals(name))
+						IJ.log("PixFRET: unable to save the last profile of " + setup + ": " + e.getMessage());
+					else
+						IJ.showMessage("Unable to save the profile " + name + ": " + e.getMessage());
+				}
+			});
+		}
+		catch(IOException e) {
+			IJ.showMessage("Unable to save the profile: " + e.getMessage());
+		}
+	}
+
+	/**
+	* Load the profile of a name into the dialog.
+	*/
+	private void loadProfile(String name) {
+		try {
+			CalibrationProfile profile = store.load(getSetup(), name);
+			if (profile == null) {
+				IJ.showMessage("No profile " + name + " in the setup " + getSetup() + ".");
+				return;
+			}
+			setProfile(profile);
+		}
+		catch(IOException e) {
+			IJ.showMessage("Unable to load the profile: " + e.getMessage());
+		}
+	}
+
+	/**
+	* Show a profile in the dialog. The models keep the parameters of the
+	* profile, they are not fitted again on the calibrations.
+	*/
+	private void setProfile(CalibrationProfile profile) {
+		FretParameters params = profile.params;
+		fact = params.fact;
+		blur = params.blur;
+		displayBlurred = profile.displayBlurred;
+		if (params.output >= 0 && params.output < outputList.length)
+			choiceOutput.setSelectedIndex(params.output);
+		pnBackground.setBackgroundMode(params.backgroundMode, params.backgroundEstimator, params.backgroundTile);
+		if (params.backgroundMode == FretParameters.MANUAL)
+			pnBackground.setBackgrounds(params.backgroundFret, params.backgroundDonor, params.backgroundAccep);
 		chkDisplayBlur.setSelected(displayBlurred);
 		txtBlur.setText("" + blur);
 		txtFact.setText("" + fact); 	
-		pnBleedThroughDonor.setModelAndParams(modelDonor, paramsDonor);
-		pnBleedThroughAccep.setModelAndParams(modelAccep, paramsAccep);
-	 	
+		pnBleedThroughDonor.setCalibration(profile.donor, params.modelDonor, params.paramsDonor);
+		pnBleedThroughAccep.setCalibration(profile.accep, params.modelAccep, params.paramsAccep);
 	}
 
 	/**
-	* Set the preferences into the file.
+	* Fill the list of the profiles of the setup.
 	*/
-	private void setPreferences() {
+	private void updateProfiles() {
+		Object selected = choiceProfile.getSelectedItem();
+		choiceProfile.removeAllItems();
+		try {
+			String names[] = store.getNames(getSetup());
+			for (int i=0; i<names.length; i++)
+				if (!names[i].equals(LAST))
+					choiceProfile.addItem(names[i]);
+		}
+		catch(IOException e) {
+		}
+		if (selected != null)
+			choiceProfile.setSelectedItem(selected);
+	}
 
-		float[][] paramsDonor = pnBleedThroughDonor.getParams();
-		float[][] paramsAccep = pnBleedThroughAccep.getParams();
-		int modelDonor = pnBleedThroughDonor.getModel();
-		int modelAccep = pnBleedThroughAccep.getModel();
-		props.setProperty("Model Donor", ""+modelDonor);
-		props.setProperty("Model Accep", ""+modelAccep);
-		outputName = outputList[(int)choiceOutput.getSelectedIndex()];
+	/**
+	* Return the name of the microscope setup.
+	*/
+	private String getSetup() {
+		String setup = txtSetup.getText().trim();
+		return (setup.length() == 0 ? "default" : setup);
+	}
 
-		props.setProperty("Normalization", outputName);
-		displayBlurred = chkDisplayBlur.isSelected();
-		props.setProperty("Display Blurred Images", ""+displayBlurred);	
-		props.setProperty("Constant Donor a", "" 	+ paramsDonor[A][CST]);
-		props.setProperty("Constant Accep a", "" 	+ paramsAccep[A][CST]);
-		props.setProperty("Linear Donor a", "" 		+ paramsDonor[A][LIN]);
-		props.setProperty("Linear Donor b", "" 		+ paramsDonor[B][LIN]);
-		props.setProperty("Linear Accep a", "" 		+ paramsAccep[A][LIN]);
-		props.setProperty("Linear Accep b", "" 		+ paramsAccep[B][LIN]);
-		props.setProperty("Exponential Donor a", "" + paramsDonor[A][EXP]);
-		props.setProperty("Exponential Donor b", "" + paramsDonor[B][EXP]);
-		props.setProperty("Exponential Donor e", "" + paramsDonor[E][EXP]);
-		props.setProperty("Exponential Accep a", "" + paramsAccep[A][EXP]);
-		props.setProperty("Exponential Accep b", "" + paramsAccep[B][EXP]);
-		props.setProperty("Exponential Accep e", "" + paramsAccep[E][EXP]);
-		blur = getFloatValue(txtBlur);
-		fact = getFloatValue(txtFact);
-		props.setProperty("fact", 					"" + fact);
-		props.setProperty("blur", 					"" + blur);
-		
+	/**
+	* Wait for the pending saves before closing the dialog.
+	*/
+	public void dispose() {
 		try {
-			FileOutputStream out = new FileOutputStream(filename);
-			props.store(out, "PixFRET\n");
+			store.flush();
+		}
+		catch(InterruptedException e) {
 		}
-		catch(Exception e) {
+		catch(IOException e) {
+			// already reported by the listener of the save
 		}
+		super.dispose();
 	}
 
 } 
-
@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.*;
+import ij.gui.*;
+import ij.plugin.*;
+import java.io.*;
+
+import pixfret.*;
+
+/**
+* PixFRET Batch
+* Computation of the FRET images of all the TIFF files of a folder.
+*
+* Description:
+* Each file is a stack of three planes {FRET, donor, acceptor}. The
+* parameters are those of a profile saved by PixFRET, by default the last
+* computation of the setup. The FRET and NFRET images are written as TIFF
+* files in the output folder, and their statistics in a results table.
+* The files are read and written by many threads at once, virtual threads
+* on Java 21 and later, to hide the latency of network file systems.
+*/
+
+public class PixFRET_Batch implements PlugIn {
+
+	private static String setup 		= "default";
+	private static String profile 		= "Last";
+	private static int concurrency 		= Batch.CONCURRENCY;
+	private static boolean table 		= true;
+	private static boolean blurred 		= false;
+	private static boolean deflate 		= false;
+	private static boolean cache 		= false;
+
+	/**
+	* Entry point of the plugin.
+	*/
+	public void run(String arg) {
+		String input = IJ.getDirectory("Folder of the input TIFF files");
+		if (input == null)
+			return;
+		String output = IJ.getDirectory("Folder of the results");
+		if (output == null)
+			return;
+
+		GenericDialog gd = new GenericDialog("PixFRET Batch");
+		gd.addStringField("Setup", setup);
+		gd.addStringField("Profile", profile);
+		gd.addNumericField("Files in flight", concurrency, 0);
+		gd.addCheckbox("Results table", table);
+		gd.addCheckbox("Blurred images", blurred);
+		gd.addCheckbox("Deflate compression", deflate);
+		gd.addCheckbox("Cache of the results", cache);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		setup 		= gd.getNextString().trim();
+		profile 	= gd.getNextString().trim();
+		concurrency = (int)gd.getNextNumber();
+		table 		= gd.getNextBoolean();
+		blurred 	= gd.getNextBoolean();
+		deflate 	= gd.getNextBoolean();
+		cache 		= gd.getNextBoolean();
+
+		File home = new File(System.getProperty("user.dir") + "/plugins/PixFRET");
+		CalibrationProfile calibration;
+		try {
+			CalibrationStore store = new CalibrationStore(home);
+			calibration = store.load(setup, profile);
+		}
+		catch(IOException e) {
+			IJ.showMessage("Unable to load the profile: " + e.getMessage());
+			return;
+		}
+		if (calibration == null) {
+			IJ.showMessage("No profile " + profile + " in the setup " + setup + ".");
+			return;
+		}
+		File files[] = Batch.list(new File(input));
+		if (files.length == 0) {
+			IJ.showMessage("No TIFF file in " + input);
+			return;
+		}
+
+		TiffSink tiff = new TiffSink(new File(output), blurred);
+		tiff.setCompression(deflate);
+		TableSink results = new TableSink(null, blurred);
+		ResultSink sinks[] = (table ? new ResultSink[] {tiff, results} : new ResultSink[] {tiff});
+
+		long chrono = System.currentTimeMillis();
+		IJ.showStatus("PixFRET batch of " + files.length + " files ...");
+		Batch batch = new Batch(calibration.params);
+		batch.setConcurrency(concurrency);
+		ResultCache resultCache = (cache ? new ResultCache(new File(home, "cache"), ResultCache.QUOTA) : null);
+		batch.setCache(resultCache);
+		try {
+			batch.run(files, sinks);
+		}
+		catch(IOException e) {
+			IJ.showMessage("Unable to process the batch: " + e.getMessage());
+		}
+		if (batch.getPipeline() != null)
+			IJ.log(batch.getPipeline().getReport());
+		if (resultCache != null)
+			IJ.log(resultCache.getReport());
+		if (table)
+			results.getTable().show("PixFRET Batch Results");
+		IJ.showStatus("PixFRET batch time:" + (System.currentTimeMillis() - chrono) + " ms");
+	}
+
+}
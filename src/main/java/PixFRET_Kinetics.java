@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.*;
+import ij.gui.*;
+import ij.measure.*;
+import ij.plugin.*;
+import ij.process.*;
+
+import pixfret.*;
+
+/**
+* PixFRET Kinetics
+* Pixel by pixel fit of a kinetic model to a time series of NFRET images.
+*
+* Description:
+* The input is a stack or a hyperstack of the NFRET images computed by
+* PixFRET at each time point; for a hyperstack, the frames of the current
+* channel and slice are used. A mono-exponential rise after the stimulation
+* is fitted to the trace of each pixel:
+*	NFRET(t) = c						t <= t0
+*	NFRET(t) = c + A * (1 - exp(-k*(t-t0)))	t > t0
+* and the maps of the baseline c, the amplitude A, the rate k and the
+* reduced chi2 are shown as images.
+*/
+
+public class PixFRET_Kinetics implements PlugIn {
+
+	private static double interval 		= 1.0;		// time between two frames
+	private static int stimulation 		= 1;		// last frame before the stimulation
+	private static boolean fixedBaseline 	= false;
+	private static int iterations 		= 50;
+
+	/**
+	* Entry point of the plugin.
+	*/
+	public void run(String arg) {
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp == null) {
+			IJ.showMessage("The input stack is not open.");
+			return;
+		}
+		int type = imp.getType();
+		if (type != ImagePlus.GRAY32 && type != ImagePlus.GRAY16 && type != ImagePlus.GRAY8) {
+			IJ.showMessage("32-bits or 16-bits or 8-bits image is required.");
+			return;
+		}
+		int nt = (imp.getNFrames() > 1 ? imp.getNFrames() : imp.getStackSize());
+		if (nt < 4) {
+			IJ.showMessage("The input should be a time series of at least 4 frames.");
+			return;
+		}
+
+		Calibration cal = imp.getCalibration();
+		if (cal != null && cal.frameInterval > 0.0)
+			interval = cal.frameInterval;
+		String unit = (cal != null ? cal.getTimeUnit() : "sec");
+
+		GenericDialog gd = new GenericDialog("PixFRET Kinetics");
+		gd.addNumericField("Frame interval (" + unit + ")", interval, 3);
+		gd.addNumericField("Stimulation after frame", stimulation, 0);
+		gd.addCheckbox("Fix the baseline to the mean before the stimulation", fixedBaseline);
+		gd.addNumericField("Maximum iterations", iterations, 0);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		interval 		= gd.getNextNumber();
+		stimulation 	= (int)gd.getNextNumber();
+		fixedBaseline 	= gd.getNextBoolean();
+		iterations 		= (int)gd.getNextNumber();
+
+		if (!(interval > 0.0)) {
+			IJ.showMessage("The frame interval should be positive.");
+			return;
+		}
+		if (stimulation < 0 || stimulation > nt-3) {
+			IJ.showMessage("The stimulation should leave at least 3 frames after it.");
+			return;
+		}
+		if (fixedBaseline && stimulation < 1) {
+			IJ.showMessage("A fixed baseline requires frames before the stimulation.");
+			return;
+		}
+
+		long chrono = System.currentTimeMillis();
+		IJ.showStatus("Reading the frames ...");
+		ImageStack stack = imp.getStack();
+		int nx = imp.getWidth();
+		int ny = imp.getHeight();
+		float frames[][] = new float[nt][];
+		double times[] = new double[nt];
+		for(int t=0; t<nt; t++) {
+			int index = (imp.getNFrames() > 1 ? imp.getStackIndex(imp.getChannel(), imp.getSlice(), t+1) : t+1);
+			frames[t] = new PixFretImageAccess(stack.getProcessor(index)).pixels;
+			times[t] = t * interval;
+		}
+
+		IJ.showStatus("Fitting " + (nx*ny) + " traces ...");
+		KineticFit fit = new KineticFit(times, (stimulation - 1) * interval);
+		fit.setFixedBaseline(fixedBaseline);
+		fit.setIterations(iterations);
+		PixFretImageAccess maps[] = fit.fit(frames, nx, ny);
+
+		String suffix = " of " + imp.getTitle();
+		String titles[] = {"Baseline", "Amplitude", "Rate (1/" + unit + ")", "Chi2"};
+		for(int k=0; k<maps.length; k++) {
+			FloatProcessor fp = maps[k].createFloatProcessor();
+			fp.resetMinAndMax();
+			new ImagePlus(titles[k] + suffix, fp).show();
+		}
+		IJ.showStatus("PixFRET Kinetics time:" + (System.currentTimeMillis() - chrono) + " ms");
+	}
+
+}
@@ -67,7 +67,7 @@ public class BackgroundDetermination extends JDialog implements ActionListener,
 	private JTextField txtLocalDonor		= new JTextField("0.0", 5);
 	private JTextField txtLocalAcceptor	= new JTextField("0.0", 5);
 	
-	private int count = 0;
+	private RoiStatistics stats = null;
 	
 	private float backgroundFret, backgroundDonor, backgroundAcceptor;
 	
@@ -157,7 +157,7 @@ public class BackgroundDetermination extends JDialog implements ActionListener,
 			dispose();
 		}
 		else if (e.getSource() == bnReset) {
-			count = 0;
+			stats = null;
 			backgroundFret = 0.0f;
 			backgroundDonor = 0.0f;
 			backgroundAcceptor = 0.0f;
@@ -207,49 +207,18 @@ public class BackgroundDetermination extends JDialog implements ActionListener,
 
 		ImageProcessor maskRoi = roi.getMask();
 		Rectangle rect = roi.getBoundingRect();
-		PixFretImageAccess fret 		= new PixFretImageAccess(imp.getStack().getProcessor(1));
-		PixFretImageAccess donor  		= new PixFretImageAccess(imp.getStack().getProcessor(2));
-		PixFretImageAccess acceptor  	= new PixFretImageAccess(imp.getStack().getProcessor(3));
+		PixFretImageAccess channels[] = new PixFretImageAccess[3];
+		for (int c=0; c<3; c++)
+			channels[c] = new PixFretImageAccess(imp.getStack().getProcessor(c+1));
 		
-		float bFret 		= 0.0f;
-		float bDonor 		= 0.0f;
-		float bAcceptor 	= 0.0f;
-		int bCount = 0;
-		
-		if (maskRoi != null) {
-			PixFretImageAccess mask = new PixFretImageAccess(maskRoi);
-			int nx = mask.getWidth();
-			int ny = mask.getHeight();
-		
-			for(int y = 0; y < ny; y++)
-			for(int x = 0; x < nx; x++) {
-				if (maskRoi.getPixel(x, y) != 0.0) {
-					bFret 		+= fret.getPixel(rect.x+x, rect.y+y);
-					bDonor 		+= donor.getPixel(rect.x+x, rect.y+y);
-					bAcceptor 	+= acceptor.getPixel(rect.x+x, rect.y+y);
-					bCount++;
-				}
-			}
-		}
-		else {
-			for(int y = 0; y < rect.height; y++)
-			for(int x = 0; x < rect.width; x++) {
-				bFret 		+= fret.getPixel(rect.x+x, rect.y+y);
-				bDonor 		+= donor.getPixel(rect.x+x, rect.y+y);
-				bAcceptor 	+= acceptor.getPixel(rect.x+x, rect.y+y);
-				bCount++;
-			}		
-		}	
-		if (bCount > 0) {
-			bFret 		= bFret 	/ bCount;		
-			bDonor 		= bDonor 	/ bCount;		
-			bAcceptor 	= bAcceptor / bCount;
-		}
-		
-		backgroundFret		= (backgroundFret*count + bFret*bCount)/(count+bCount);
-		backgroundDonor 	= (backgroundDonor*count + bDonor*bCount)/(count+bCount);
-		backgroundAcceptor 	= (backgroundAcceptor*count + bAcceptor*bCount)/(count+bCount);
-		count += bCount;
+		RoiStatistics measured = RoiStatistics.measure(channels, maskRoi, rect);
+		if (stats == null)
+			stats = measured;
+		else
+			stats.add(measured);
+		backgroundFret		= (float)stats.getMean(0);
+		backgroundDonor 	= (float)stats.getMean(1);
+		backgroundAcceptor 	= (float)stats.getMean(2);
 		return true;
 	}
 
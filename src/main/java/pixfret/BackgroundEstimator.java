@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+/**
+* Automatic estimation of the background level of a whole image, without ROI.
+*
+* The estimation is done on a histogram of the image built in a single pass.
+* Each thread fills its own histogram on a band of rows, the histograms are
+* summed at the end. For 8-bits and 16-bits images the histogram has one bin
+* per gray level, for 32-bits images it has FLOAT_BINS bins between the min
+* and the max of the image.
+*
+* Three estimators are available: the mode of the histogram, a low
+* percentile and a sigma-clipped mean.
+*/
+public class BackgroundEstimator {
+
+	public static final int MODE 			= 0;
+	public static final int PERCENTILE 		= 1;
+	public static final int SIGMA_CLIPPED 	= 2;
+
+	public static final String[] NAMES = {"Histogram mode", "Low percentile", "Sigma-clipped mean"};
+
+	private static final int FLOAT_BINS = 4096;
+
+	private int method;
+	private double percentile 	= 5.0;		// percentile for the PERCENTILE method
+	private double kappa 		= 2.5;		// clipping factor for the SIGMA_CLIPPED method
+
+	/**
+	* Constructor.
+	*
+	* @param method		MODE, PERCENTILE or SIGMA_CLIPPED
+	*/
+	public BackgroundEstimator(int method) {
+		this.method = method;
+	}
+
+	/**
+	* Set the percentile used by the PERCENTILE method, in [0..100].
+	*/
+	public void setPercentile(double percentile) {
+		this.percentile = percentile;
+	}
+
+	/**
+	* Set the clipping factor used by the SIGMA_CLIPPED method.
+	*/
+	public void setKappa(double kappa) {
+		this.kappa = kappa;
+	}
+
+	/**
+	* Estimate the background level of an image.
+	*/
+	public float estimate(PixFretImageAccess image) {
+		return estimate(new Histogram(image));
+	}
+
+	/**
+	* Estimate the background level from an histogram.
+	*/
+	public float estimate(Histogram h) {
+		if (h.total == 0)
+			return 0.0f;
+		switch(method) {
+			case PERCENTILE:	return (float)percentile(h, percentile);
+			case SIGMA_CLIPPED:	return (float)sigmaClippedMean(h, kappa);
+			default:			return (float)mode(h);
+		}
+	}
+
+	/**
+	* Mode of the histogram, smoothed on 5 bins and refined by a parabola
+	* through the peak and its neighbors.
+	*/
+	private static double mode(Histogram h) {
+		int n = h.counts.length;
+		int imax = 0;
+		long smax = -1;
+		for(int i=0; i<n; i++) {
+			long s = smoothed(h, i);
+			if (s > smax) {
+				smax = s;
+				imax = i;
+			}
+		}
+		double shift = 0.0;
+		if (imax > 0 && imax < n-1) {
+			double ym = smoothed(h, imax-1);
+			double y0 = smax;
+			double yp = smoothed(h, imax+1);
+			double d = ym - 2.0*y0 + yp;
+			if (d < 0.0)
+				shift = 0.5 * (ym - yp) / d;
+		}
+		return h.getValue(imax + shift);
+	}
+
+	private static long smoothed(Histogram h, int i) {
+		long s = 0;
+		for(int k=Math.max(0, i-2); k<=Math.min(h.counts.length-1, i+2); k++)
+			s += h.counts[k];
+		return s;
+	}
+
+	/**
+	* Percentile p (in [0..100]) of the histogram.
+	*/
+	private static double percentile(Histogram h, double p) {
+		double rank = Math.max(0.0, Math.min(100.0, p)) * h.total / 100.0;
+		long cumul = 0;
+		for(int i=0; i<h.counts.length; i++) {
+			cumul += h.counts[i];
+			if (cumul >= rank)
+				return h.getValue(i);
+		}
+		return h.getValue(h.counts.length-1);
+	}
+
+	/**
+	* Mean of the histogram, iteratively clipped to [mean-kappa*sd, mean+kappa*sd].
+	* The clipping starts around the median with the scale given by the
+	* median absolute deviation, so that the bright objects do not pull
+	* the first estimate.
+	*/
+	private static double sigmaClippedMean(Histogram h, double kappa) {
+		double median = percentile(h, 50.0);
+		long[] deviations = new long[h.counts.length];
+		double c = h.getIndex(median);
+		for(int i=0; i<h.counts.length; i++) {
+			int d = (int)Math.round(Math.abs(i - c));
+			deviations[Math.min(d, deviations.length-1)] += h.counts[i];
+		}
+		long cumul = 0;
+		int mad = 0;
+		while (mad < deviations.length-1 && (cumul += deviations[mad]) < h.total / 2)
+			mad++;
+		double mean = median;
+		double sd = 1.4826 * Math.max(1, mad) * (h.getValue(1) - h.getValue(0));
+		int lo = -1;
+		int hi = -1;
+		for(int iter=0; iter<50; iter++) {
+			int nlo = Math.max(0, (int)Math.ceil(h.getIndex(mean - kappa*sd)));
+			int nhi = Math.min(h.counts.length-1, (int)Math.floor(h.getIndex(mean + kappa*sd)));
+			if ((nlo == lo && nhi == hi) || nhi < nlo)
+				break;
+			lo = nlo;
+			hi = nhi;
+			double sum = 0.0;
+			double sum2 = 0.0;
+			long count = 0;
+			for(int i=lo; i<=hi; i++) {
+				double v = h.getValue(i);
+				sum += h.counts[i] * v;
+				sum2 += h.counts[i] * v * v;
+				count += h.counts[i];
+			}
+			if (count == 0)
+				break;
+			mean = sum / count;
+			sd = Math.sqrt(Math.max(0.0, sum2/count - mean*mean));
+		}
+		return mean;
+	}
+
+	/**
+	* Histogram of an image.
+	*/
+	public static class Histogram {
+
+		public int counts[];
+		public long total = 0;
+		private float origin;		// value of the first bin
+		private float width;		// width of the bins
+
+		/**
+		* Build the histogram of an image in one pass, in parallel.
+		*/
+		public Histogram(final PixFretImageAccess image) {
+			final float[] pixels = image.pixels;
+			final int nx = image.getWidth();
+			final int ny = image.getHeight();
+			final int nbins;
+			if (image.getBitDepth() == 8 || image.getBitDepth() == 16) {
+				nbins = 1 << image.getBitDepth();
+				origin = 0.0f;
+				width = 1.0f;
+			}
+			else {
+				float[] minmax = image.getMinMax();
+				nbins = FLOAT_BINS;
+				origin = minmax[0];
+				width = (minmax[1] > minmax[0] ? (minmax[1]-minmax[0]) / (nbins-1) : 1.0f);
+			}
+			final float o = origin;
+			final float w = width;
+			int bandSize = Math.max(16, (ny + Parallel.getThreads() - 1) / Parallel.getThreads());
+			final int[][] local = new int[Parallel.getBands(ny, bandSize)][];
+			Parallel.forEachBand(ny, bandSize, new Parallel.Band() {
+				public void run(int band, int from, int to) {
+					int[] h = new int[nbins];
+					for(int k=from*nx; k<to*nx; k++) {
+						int i = Math.round((pixels[k] - o) / w);
+						if (i < 0)
+							i = 0;
+						else if (i >= nbins)
+							i = nbins-1;
+						h[i]++;
+					}
+					local[band] = h;
+				}
+			});
+			counts = new int[nbins];
+			for(int b=0; b<local.length; b++)
+			for(int i=0; i<nbins; i++)
+				counts[i] += local[b][i];
+			total = (long)nx * ny;
+		}
+
+		/**
+		* Return the value of the (fractional) bin i.
+		*/
+		public double getValue(double i) {
+			return origin + i * width;
+		}
+
+		/**
+		* Return the (fractional) bin of the value v.
+		*/
+		public double getIndex(double v) {
+			return (v - origin) / width;
+		}
+	}
+
+}
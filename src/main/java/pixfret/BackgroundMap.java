@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.util.Arrays;
+
+/**
+* Spatially varying background of an image.
+*
+* The image is divided in tiles of tileSize x tileSize pixels, and the
+* background of each tile is a low percentile of its pixels. The background
+* at any pixel is the bilinear interpolation of the grid of the tiles, the
+* nodes of the grid are at the centers of the tiles.
+*
+* The interpolation along X is precomputed once; fillRow() interpolates the
+* grid along Y for a row and then needs only one multiply-add per pixel.
+*/
+public class BackgroundMap {
+
+	private int nx;
+	private int ny;
+	private int gx;					// number of tiles along X
+	private int gy;					// number of tiles along Y
+	private int tileSize;
+	private float grid[];			// gx*gy background of the tiles
+	private int ix[];				// left node of each column
+	private float wx[];				// weight of the right node of each column
+	private float[] gridRow;		// grid interpolated along Y, for one row
+
+	/**
+	* Compute the background map of an image.
+	*
+	* @param image			the raw image
+	* @param tileSize		the size of the tiles in pixels
+	* @param percentile		the percentile taken in each tile, in [0..100]
+	*/
+	public BackgroundMap(final PixFretImageAccess image, int tileSize, final double percentile) {
+		this.nx = image.getWidth();
+		this.ny = image.getHeight();
+		this.tileSize = Math.max(1, tileSize);
+		final int ts = this.tileSize;
+		gx = (nx + ts - 1) / ts;
+		gy = (ny + ts - 1) / ts;
+		grid = new float[gx*gy];
+		final float[] pixels = image.pixels;
+		Parallel.forEachBand(gy, 1, new Parallel.Band() {
+			public void run(int band, int from, int to) {
+				float[] values = new float[ts*ts];
+				for(int j=from; j<to; j++)
+				for(int i=0; i<gx; i++) {
+					int n = 0;
+					for(int y=j*ts; y<Math.min(ny, (j+1)*ts); y++)
+					for(int x=i*ts; x<Math.min(nx, (i+1)*ts); x++)
+						values[n++] = pixels[x+nx*y];
+					Arrays.sort(values, 0, n);
+					double pos = Math.max(0.0, Math.min(100.0, percentile)) * (n-1) / 100.0;
+					int k = (int)pos;
+					grid[i+gx*j] = (k >= n-1 ? values[n-1] : values[k] + (float)(pos-k) * (values[k+1] - values[k]));
+				}
+			}
+		});
+
+		ix = new int[nx];
+		wx = new float[nx];
+		for(int x=0; x<nx; x++) {
+			float t = getNode(x, gx, nx);
+			int i = (int)Math.floor(t);
+			ix[x] = Math.max(0, Math.min(gx-1, i));
+			wx[x] = (i < 0 || i >= gx-1 ? 0.0f : t - i);
+		}
+		gridRow = new float[gx+1];
+	}
+
+	/**
+	* Return the fractional node coordinate of a pixel coordinate. The node k
+	* is at the center of the tile k; the last tile could be truncated.
+	*/
+	private float getNode(int p, int g, int n) {
+		if (g == 1)
+			return 0.0f;
+		float q = p + 0.5f;
+		float cPrev = (g-1.5f) * tileSize;				// center of the tile g-2
+		if (q < cPrev)
+			return q / tileSize - 0.5f;
+		float cLast = ((g-1) * tileSize + n) * 0.5f;	// center of the last tile
+		return (g-2) + (q - cPrev) / (cLast - cPrev);
+	}
+
+	/**
+	* Return the number of tiles along X.
+	*/
+	public int getGridWidth() {
+		return gx;
+	}
+
+	/**
+	* Return the number of tiles along Y.
+	*/
+	public int getGridHeight() {
+		return gy;
+	}
+
+	/**
+	* Return the background of the tiles, gx*gy values.
+	*/
+	public float[] getGrid() {
+		return grid;
+	}
+
+	/**
+	* Return the mean background of the tiles.
+	*/
+	public float getMean() {
+		double sum = 0.0;
+		for(int k=0; k<grid.length; k++)
+			sum += grid[k];
+		return (float)(sum / grid.length);
+	}
+
+	/**
+	* Fill a row with the interpolated background.
+	*
+	* @param y		the row
+	* @param row	output, an array of size nx
+	*/
+	public void fillRow(int y, float[] row) {
+		float t = getNode(y, gy, ny);
+		int j = (int)Math.floor(t);
+		int j0 = Math.max(0, Math.min(gy-1, j));
+		float wy = (j < 0 || j >= gy-1 ? 0.0f : t - j);
+		int o0 = j0*gx;
+		int o1 = (wy > 0.0f ? o0+gx : o0);
+		float[] g = gridRow;
+		for(int i=0; i<gx; i++)
+			g[i] = grid[o0+i] + wy * (grid[o1+i] - grid[o0+i]);
+		g[gx] = g[gx-1];
+		for(int x=0; x<nx; x++) {
+			int i = ix[x];
+			row[x] = g[i] + wx[x] * (g[i+1] - g[i]);
+		}
+	}
+
+}
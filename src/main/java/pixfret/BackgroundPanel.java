@@ -42,8 +42,12 @@ public class BackgroundPanel extends JPanel implements ActionListener {
 
 	private JButton	bnGet				= new JButton("Get");
 	private JButton	bnReset				= new JButton("Reset");
+	private JComboBox choiceStatistic	= new JComboBox(RoiStatistics.NAMES);
+	private JComboBox choiceMode;
+	private JTextField txtTile			= new JTextField("64", 5);
+	private JLabel lblTile				= new JLabel("Map tile");
 
-	private int count = 0;
+	private RoiStatistics stats = null;
 	
 	private float backgroundFret, backgroundDonor, backgroundAcceptor;
 
@@ -55,13 +59,23 @@ public class BackgroundPanel extends JPanel implements ActionListener {
 
 		JPanel pn = new JPanel();
 		pn.setLayout(layout);
-		addComponent(pn, 0, 0, 1, 1, 4, bnReset);
-		addComponent(pn, 0, 1, 1, 1, 4, bnGet);
+		addComponent(pn, 0, 0, 1, 1, 4, choiceStatistic);
+		addComponent(pn, 0, 1, 1, 1, 4, bnReset);
+		addComponent(pn, 0, 2, 1, 1, 4, bnGet);
 	
+		String[] modes = new String[2 + BackgroundEstimator.NAMES.length];
+		modes[0] = "Manual / ROI";
+		for (int i=0; i<BackgroundEstimator.NAMES.length; i++)
+			modes[i+1] = "Auto: " + BackgroundEstimator.NAMES[i];
+		modes[modes.length-1] = "Auto: Background map";
+		choiceMode = new JComboBox(modes);
+
 		setLayout(layout);
 		txtBackgroundFret		= new JTextField("" + backgroundFret, 5);
 		txtBackgroundDonor		= new JTextField("" + backgroundDonor, 5);
 		txtBackgroundAcceptor	= new JTextField("" + backgroundAcceptor, 5);
+		addComponent(this, 0, 0, 1, 1, 4, new JLabel("Mode"));
+		addComponent(this, 0, 1, 2, 1, 4, choiceMode);
 		addComponent(this, 1, 0, 1, 1, 4, new JLabel("FRET"));
 		addComponent(this, 1, 1, 1, 1, 4, txtBackgroundFret);
 		addComponent(this, 1, 2, 1, 1, 4, new JLabel(""));
@@ -69,10 +83,15 @@ public class BackgroundPanel extends JPanel implements ActionListener {
 		addComponent(this, 2, 1, 1, 1, 4, txtBackgroundDonor);
 		addComponent(this, 3, 0, 1, 1, 4, new JLabel("Acceptor"));
 		addComponent(this, 3, 1, 1, 1, 4, txtBackgroundAcceptor);
-		addComponent(this, 4, 1, 2, 1, 4, pn);
+		addComponent(this, 4, 0, 1, 1, 4, lblTile);
+		addComponent(this, 4, 1, 1, 1, 4, txtTile);
+		addComponent(this, 4, 2, 1, 1, 4, new JLabel("pixels"));
+		addComponent(this, 5, 1, 2, 1, 4, pn);
 		
 		bnReset.addActionListener(this);
 		bnGet.addActionListener(this);
+		choiceStatistic.addActionListener(this);
+		choiceMode.addActionListener(this);
 		
 		setBorder(BorderFactory.createTitledBorder("Background"));
 	}
@@ -106,13 +125,86 @@ public class BackgroundPanel extends JPanel implements ActionListener {
 		return getFloatValue(txtBackgroundAcceptor);
 	}
 
+	/**
+	* Background mode, FretParameters.MANUAL or FretParameters.AUTO.
+	*/
+	public int getBackgroundMode() {
+		int index = choiceMode.getSelectedIndex();
+		if (index == 0)
+			return FretParameters.MANUAL;
+		if (index == choiceMode.getItemCount()-1)
+			return FretParameters.MAP;
+		return FretParameters.AUTO;
+	}
+	
+	/**
+	* Estimator of the automatic background, see BackgroundEstimator.
+	*/
+	public int getBackgroundEstimator() {
+		if (getBackgroundMode() != FretParameters.AUTO)
+			return BackgroundEstimator.MODE;
+		return choiceMode.getSelectedIndex()-1;
+	}
+	
+	/**
+	* Tile size of the background map.
+	*/
+	public int getBackgroundTile() {
+		int tile = Math.round(getFloatValue(txtTile));
+		if (tile < 4) {
+			tile = 4;
+			txtTile.setText("" + tile);
+		}
+		return tile;
+	}
+	
+	/**
+	* Set the background mode, the estimator of the automatic background
+	* and the tile size of the background map.
+	*/
+	public void setBackgroundMode(int mode, int estimator, int tile) {
+		if (mode == FretParameters.AUTO && estimator >= 0 && estimator < BackgroundEstimator.NAMES.length)
+			choiceMode.setSelectedIndex(estimator+1);
+		else if (mode == FretParameters.MAP)
+			choiceMode.setSelectedIndex(choiceMode.getItemCount()-1);
+		else
+			choiceMode.setSelectedIndex(0);
+		txtTile.setText("" + tile);
+		setEnabledManual();
+	}
+	
+	/**
+	* Display the backgrounds estimated automatically.
+	*/
+	public void setBackgrounds(float fret, float donor, float acceptor) {
+		txtBackgroundFret.setText(IJ.d2s(fret));
+		txtBackgroundDonor.setText(IJ.d2s(donor));
+		txtBackgroundAcceptor.setText(IJ.d2s(acceptor));
+	}
+
+	/**
+	* Enable the components of the manual mode.
+	*/
+	private void setEnabledManual() {
+		boolean manual = (getBackgroundMode() == FretParameters.MANUAL);
+		bnGet.setEnabled(manual);
+		bnReset.setEnabled(manual);
+		choiceStatistic.setEnabled(manual);
+		txtBackgroundFret.setEditable(manual);
+		txtBackgroundDonor.setEditable(manual);
+		txtBackgroundAcceptor.setEditable(manual);
+		boolean map = (getBackgroundMode() == FretParameters.MAP);
+		txtTile.setEnabled(map);
+		lblTile.setEnabled(map);
+	}
+
 	/**
 	 * Implements the actionPerformed for the ActionListener.
 	 */
 	public synchronized  void actionPerformed(ActionEvent e) {
 	
 		if (e.getSource() == bnReset) {
-			count = 0;
+			stats = null;
 			backgroundFret = 0.0f;
 			backgroundDonor = 0.0f;
 			backgroundAcceptor = 0.0f;
@@ -129,6 +221,17 @@ public class BackgroundPanel extends JPanel implements ActionListener {
 				bnGet.setText("Add");
 			}
 		}
+		else if (e.getSource() == choiceMode) {
+			setEnabledManual();
+		}
+		else if (e.getSource() == choiceStatistic) {
+			if (stats != null) {
+				update();
+				txtBackgroundFret.setText(IJ.d2s(backgroundFret));
+				txtBackgroundDonor.setText(IJ.d2s(backgroundDonor));
+				txtBackgroundAcceptor.setText(IJ.d2s(backgroundAcceptor));
+			}
+		}
 	}
 
 	/**
@@ -157,52 +260,29 @@ public class BackgroundPanel extends JPanel implements ActionListener {
 
 		ImageProcessor maskRoi = roi.getMask();
 		Rectangle rect = roi.getBoundingRect();
-		PixFretImageAccess fret 		= new PixFretImageAccess(imp.getStack().getProcessor(1));
-		PixFretImageAccess donor  		= new PixFretImageAccess(imp.getStack().getProcessor(2));
-		PixFretImageAccess acceptor  	= new PixFretImageAccess(imp.getStack().getProcessor(3));
+		PixFretImageAccess channels[] = new PixFretImageAccess[3];
+		for (int c=0; c<3; c++)
+			channels[c] = new PixFretImageAccess(imp.getStack().getProcessor(c+1));
 		
-		float bFret 		= 0.0f;
-		float bDonor 		= 0.0f;
-		float bAcceptor 	= 0.0f;
-		int bCount = 0;
-		
-		if (maskRoi != null) {
-			PixFretImageAccess mask = new PixFretImageAccess(maskRoi);
-			int nx = mask.getWidth();
-			int ny = mask.getHeight();
-		
-			for(int y = 0; y < ny; y++)
-			for(int x = 0; x < nx; x++) {
-				if (maskRoi.getPixel(x, y) != 0.0) {
-					bFret 		+= fret.getPixel(rect.x+x, rect.y+y);
-					bDonor 		+= donor.getPixel(rect.x+x, rect.y+y);
-					bAcceptor 	+= acceptor.getPixel(rect.x+x, rect.y+y);
-					bCount++;
-				}
-			}
-		}
-		else {
-			for(int y = 0; y < rect.height; y++)
-			for(int x = 0; x < rect.width; x++) {
-				bFret 		+= fret.getPixel(rect.x+x, rect.y+y);
-				bDonor 		+= donor.getPixel(rect.x+x, rect.y+y);
-				bAcceptor 	+= acceptor.getPixel(rect.x+x, rect.y+y);
-				bCount++;
-			}		
-		}	
-		if (bCount > 0) {
-			bFret 		= bFret 	/ bCount;		
-			bDonor 		= bDonor 	/ bCount;		
-			bAcceptor 	= bAcceptor / bCount;
-		}
-		
-		backgroundFret		= (backgroundFret*count + bFret*bCount)/(count+bCount);
-		backgroundDonor 	= (backgroundDonor*count + bDonor*bCount)/(count+bCount);
-		backgroundAcceptor 	= (backgroundAcceptor*count + bAcceptor*bCount)/(count+bCount);
-		count += bCount;
+		RoiStatistics measured = RoiStatistics.measure(channels, maskRoi, rect);
+		if (stats == null)
+			stats = measured;
+		else
+			stats.add(measured);
+		update();
 		return true;
 	}
 	
+	/**
+	* Update the background levels from the statistics of the ROIs.
+	*/
+	private void update() {
+		int statistic = choiceStatistic.getSelectedIndex();
+		backgroundFret		= (float)stats.get(0, statistic);
+		backgroundDonor 	= (float)stats.get(1, statistic);
+		backgroundAcceptor 	= (float)stats.get(2, statistic);
+	}
+	
 	/**
 	* Get a double value from a JTextField.
 	*/
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Batch computation of many files of three planes {FRET, donor, acceptor},
+* e.g. the wells of a plate.
+*
+* The files go through a FretPipeline whose read and write stages run on
+* virtual threads when the Java runtime has them: each file is opened and
+* read by a single read, and thousands of files can be in flight, which
+* hides the latency of a network file system. The blur and the computation
+* stay on as many platform threads as processors. Without virtual threads
+* the I/O stages have at most 64 platform threads, see Threads.
+*/
+public class Batch {
+
+	public static final int CONCURRENCY	= 256;		// files read or written at the same time
+
+	private FretParameters params;
+	private int concurrency = CONCURRENCY;
+	private Pipeline pipeline = null;
+	private ResultCache cache = null;
+
+	/**
+	* Constructor.
+	*/
+	public Batch(FretParameters params) {
+		this.params = params;
+	}
+
+	/**
+	* Set the number of files read or written at the same time, which
+	* bounds the number of files in memory.
+	*/
+	public void setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	* Set the cache of the FRET images, null for no cache.
+	*/
+	public void setCache(ResultCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	* Return the pipeline of the last run, for its report.
+	*/
+	public Pipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	* Return the TIFF files of a directory sorted by name.
+	*/
+	public static File[] list(File directory) {
+		File files[] = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				String name = file.getName().toLowerCase();
+				return file.isFile() && !name.startsWith(".") && (name.endsWith(".tif") || name.endsWith(".tiff"));
+			}
+		});
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	* Compute all the files, the outputs are titled by the names of the
+	* files. The sinks receive the outputs from several threads and in
+	* any order.
+	*/
+	public void run(File files[], ResultSink sinks[]) throws IOException {
+		FrameSource sources[] = new FrameSource[files.length];
+		String titles[] = new String[files.length];
+		for(int k=0; k<files.length; k++) {
+			sources[k] = FrameSource.open(files[k]);
+			titles[k] = files[k].getName();
+		}
+		run(sources, titles, sinks);
+	}
+
+	/**
+	* Compute the frames of sources which can be read from several threads,
+	* e.g. the sources of FrameSource.open(File).
+	*/
+	public void run(FrameSource sources[], String titles[], ResultSink sinks[]) throws IOException {
+		int io = Threads.getIOThreads(concurrency);
+		FretPipeline fp = new FretPipeline(params);
+		fp.setThreads(FretPipeline.READ, io);
+		fp.setThreads(FretPipeline.WRITE, io);
+		fp.setVirtual(FretPipeline.READ, true);
+		fp.setVirtual(FretPipeline.WRITE, true);
+		fp.setMaxInFlight(io + 2 * Parallel.getThreads());
+		fp.setCache(cache);
+		try {
+			fp.run(sources, titles, sinks);
+		}
+		finally {
+			pipeline = fp.getPipeline();
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.*;
+
+/**
+* Incremental calibration of a bleed-through model.
+*
+* The calibration accumulates the scatter histograms measured on many
+* images and ROIs. The histograms and their regression moments are merged,
+* so the models can be fitted again after each addition. The measures
+* can be added from several threads.
+*
+* The state of the calibration, with the confidence intervals of the
+* fitted parameters if they were computed, can be saved to a file and read
+* again to extend the calibration in a later session.
+*/
+public class BleedThroughCalibration {
+
+	private static final int MAGIC 		= 0x50464254;	// "PFBT"
+	private static final int VERSION 	= 3;
+
+	private ScatterHistogram histogram = null;
+	private int measures = 0;
+	private double intervals[][][] = null;	// [param][model] = {low, high}
+
+	/**
+	* Add the histogram of a measure to the calibration.
+	*/
+	public synchronized void add(ScatterHistogram h) {
+		if (histogram == null)
+			histogram = new ScatterHistogram(h.getWidth());
+		histogram.add(h);
+		measures++;
+		intervals = null;
+	}
+
+	/**
+	* Merge an other calibration into this one.
+	*/
+	public void add(BleedThroughCalibration calibration) {
+		ScatterHistogram h = calibration.getHistogram();
+		int n = calibration.getMeasures();
+		if (h == null)
+			return;
+		synchronized(this) {
+			add(h);
+			measures += n - 1;
+		}
+	}
+
+	/**
+	* Return a copy of the accumulated histogram, null if the calibration
+	* is empty.
+	*/
+	public synchronized ScatterHistogram getHistogram() {
+		if (histogram == null)
+			return null;
+		ScatterHistogram copy = new ScatterHistogram(histogram.getWidth());
+		copy.add(histogram);
+		return copy;
+	}
+
+	/**
+	* Set the confidence intervals of the parameters fitted on the
+	* calibration, intervals[param][model] = {low, high}. They are discarded
+	* when a measure is added.
+	*/
+	public synchronized void setIntervals(double[][][] intervals) {
+		this.intervals = intervals;
+	}
+
+	/**
+	* Return the confidence intervals of the parameters, null if they
+	* have not been computed.
+	*/
+	public synchronized double[][][] getIntervals() {
+		return intervals;
+	}
+
+	/**
+	* Return the number of measures added to the calibration.
+	*/
+	public synchronized int getMeasures() {
+		return measures;
+	}
+
+	/**
+	* Return true if nothing has been added to the calibration.
+	*/
+	public synchronized boolean isEmpty() {
+		return histogram == null || histogram.size() == 0;
+	}
+
+	/**
+	* Remove all the measures.
+	*/
+	public synchronized void reset() {
+		histogram = null;
+		measures = 0;
+		intervals = null;
+	}
+
+	/**
+	* Write the calibration into a stream.
+	*/
+	public synchronized void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(measures);
+		int nb = (histogram == null ? 0 : histogram.size());
+		out.writeFloat(histogram == null ? 0.0f : histogram.getWidth());
+		out.writeInt(nb);
+		if (nb > 0) {
+			int c[] = new int[nb];
+			int r[] = new int[nb];
+			int count[] = new int[nb];
+			histogram.getBins(c, r, count);
+			double[] moments = histogram.getMoments();
+			for(int i=0; i<ScatterHistogram.MOMENTS; i++)
+				out.writeDouble(moments[i]);
+			for(int k=0; k<nb; k++) {
+				out.writeInt(c[k]);
+				out.writeShort(r[k]);
+				out.writeInt(count[k]);
+			}
+		}
+		out.writeBoolean(intervals != null);
+		if (intervals != null) {
+			out.writeInt(intervals.length);
+			out.writeInt(intervals[0].length);
+			for(int p=0; p<intervals.length; p++)
+			for(int m=0; m<intervals[p].length; m++) {
+				out.writeDouble(intervals[p][m][0]);
+				out.writeDouble(intervals[p][m][1]);
+			}
+		}
+	}
+
+	/**
+	* Read a calibration from a stream.
+	*/
+	public static BleedThroughCalibration read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a PixFRET calibration.");
+		int version = in.readInt();
+		if (version > VERSION)
+			throw new IOException("Unsupported version of PixFRET calibration: " + version);
+		BleedThroughCalibration calibration = new BleedThroughCalibration();
+		calibration.measures = in.readInt();
+		float width = in.readFloat();
+		int nb = in.readInt();
+		if (nb > 0) {
+			ScatterHistogram h = new ScatterHistogram(width);
+			double[] moments = new double[ScatterHistogram.MOMENTS];
+			for(int i=0; i<ScatterHistogram.MOMENTS; i++)
+				moments[i] = in.readDouble();
+			h.setMoments(moments);
+			for(int k=0; k<nb; k++) {
+				int c = in.readInt();
+				int r = in.readShort();
+				h.add(c, r, in.readInt());
+			}
+			calibration.histogram = h;
+		}
+		if (version >= 2 && in.readBoolean()) {
+			// The version 2 has the 3 parameters of the 3 first models
+			int np = (version == 2 ? 3 : in.readInt());
+			int nm = (version == 2 ? 3 : in.readInt());
+			double intervals[][][] = new double[BleedThroughModel.MAX_PARAMETERS][BleedThroughModel.count()][2];
+			for(int p=0; p<intervals.length; p++)
+			for(int m=0; m<intervals[p].length; m++)
+				intervals[p][m][0] = intervals[p][m][1] = Double.NaN;
+			for(int p=0; p<np; p++)
+			for(int m=0; m<nm; m++) {
+				double lo = in.readDouble();
+				double hi = in.readDouble();
+				if (p < intervals.length && m < intervals[p].length) {
+					intervals[p][m][0] = lo;
+					intervals[p][m][1] = hi;
+				}
+			}
+			calibration.intervals = intervals;
+		}
+		return calibration;
+	}
+
+	/**
+	* Save the calibration into a file.
+	*/
+	public void save(String filename) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		try {
+			write(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	* Load a calibration from a file.
+	*/
+	public static BleedThroughCalibration load(String filename) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+		try {
+			return read(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+}
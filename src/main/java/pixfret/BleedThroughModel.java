@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import ij.IJ;
+
+/**
+* Model of the bleed-through of a channel into the FRET channel.
+*
+* The bleed-through ratio BT(x) is a function of the intensity x of the
+* channel, the intensity expected in the FRET channel is BT(x) * x. A
+* model supplies its fitter, on the cells of the calibration scatter plot,
+* and an Evaluator with fixed parameters that the FretEngine calls once per
+* row, so the choice of the model is not made for each pixel.
+*
+* The models are registered in MODELS, their index is the model id stored
+* in the preferences and in FretParameters. The parameters of all the
+* models of a channel are kept in a float[MAX_PARAMETERS][count()] array,
+* indexed by [parameter][model].
+*/
+public abstract class BleedThroughModel {
+
+	public static final int MAX_PARAMETERS = 3;
+
+	private static final BleedThroughModel[] MODELS = {
+		new ConstantModel(),
+		new LinearModel(),
+		new ExponentialModel(),
+		new PowerLawModel(),
+		new PolynomialModel()
+	};
+
+	/**
+	* Bleed-through of a row of pixels for fixed parameters.
+	*/
+	public interface Evaluator {
+
+		/**
+		* Compute out[i] = BT(x[i]) * x[i] for the n first pixels.
+		*/
+		public void bleedThrough(float x[], float out[], int n);
+	}
+
+	/**
+	* Return the number of models.
+	*/
+	public static int count() {
+		return MODELS.length;
+	}
+
+	/**
+	* Return the model of a given id.
+	*/
+	public static BleedThroughModel get(int id) {
+		return MODELS[id];
+	}
+
+	/**
+	* Return the model of a given name, null if there is none.
+	*/
+	public static BleedThroughModel get(String name) {
+		for(int m=0; m<MODELS.length; m++)
+			if (MODELS[m].getName().equals(name))
+				return MODELS[m];
+		return null;
+	}
+
+	/**
+	* Return the name of the model, also used in the preference keys.
+	*/
+	public abstract String getName();
+
+	/**
+	* Return the short name of the model shown in the dialog.
+	*/
+	public String getLabel() {
+		return getName();
+	}
+
+	/**
+	* Return the names of the parameters.
+	*/
+	public abstract String[] getParameterNames();
+
+	/**
+	* Return the number of parameters.
+	*/
+	public int getParameters() {
+		return getParameterNames().length;
+	}
+
+	/**
+	* Return the formula of the bleed-through ratio, variable is the name
+	* of the intensity and a[p] the parameters.
+	*/
+	public abstract String getFormula(double a[], String variable);
+
+	/**
+	* Return the bleed-through ratio at the intensity x.
+	*/
+	public abstract double eval(double a[], double x);
+
+	/**
+	* Estimate the parameters from the moments of the selection [sel[0],
+	* sel[2][ x [sel[1], sel[3][ of a moment table. The estimate is the
+	* starting point of solve(), or the least squares fit if isClosedForm()
+	* is true.
+	*
+	* @return false if there are not enough points
+	*/
+	public abstract boolean estimate(MomentTable table, int sel[], double a[]);
+
+	/**
+	* Return true if estimate() returns the least squares fit.
+	*/
+	public boolean isClosedForm() {
+		return false;
+	}
+
+	/**
+	* Weighted least squares fit of the ratio y on the intensity x.
+	*
+	* @param a		initial parameters on input, fitted parameters on output
+	* @param lm		workspace of getParameters() parameters for the
+	*				nonlinear models
+	* @return false if the fit failed
+	*/
+	public abstract boolean solve(double x[], double y[], double w[], int n, double a[], LevenbergMarquardt lm);
+
+	/**
+	* Return the evaluator of the bleed-through for the parameters a.
+	*/
+	public abstract Evaluator compile(float a[]);
+
+	/**
+	* Return the evaluator of the bleed-through for the parameters of this
+	* model in a [parameter][model] array.
+	*/
+	public Evaluator compile(float params[][], int id) {
+		float a[] = new float[getParameters()];
+		for(int p=0; p<a.length; p++)
+			a[p] = params[p][id];
+		return compile(a);
+	}
+
+	/**
+	* Return the parameters of this model in a [parameter][model] array.
+	*/
+	public double[] getValues(float params[][], int id) {
+		double a[] = new double[getParameters()];
+		for(int p=0; p<a.length; p++)
+			a[p] = params[p][id];
+		return a;
+	}
+
+	/**
+	* Format a term of a formula with its sign.
+	*/
+	protected static String term(double value, String factor) {
+		return (value < 0 ? " - " : " + ") + IJ.d2s(Math.abs(value), 5) + factor;
+	}
+
+	/**
+	* Return true if all the parameters are finite.
+	*/
+	protected static boolean isFinite(double a[]) {
+		for(int p=0; p<a.length; p++)
+			if (Double.isNaN(a[p]) || Double.isInfinite(a[p]))
+				return false;
+		return true;
+	}
+
+}
@@ -31,11 +31,16 @@ import ij.gui.*;
 import ij.process.*;
 
 import ij.text.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Properties;
+import java.util.concurrent.*;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import javax.swing.table.*;
 import java.io.*;
+import ij.io.*;
 
 /**
 * PixFRET
@@ -61,19 +66,12 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 	private final int 	DONOR	= 0;
 	private final int	ACCEP	= 1;
 	
-	private final int	CST		= 0;		// Constant Model
-	private final int	LIN		= 1;		// Linear Model
-	private final int 	EXP 	= 2;		// Exponential Model
-
-	private final int	A		= 0;		// Constant Model
-	private final int	B		= 1;		// Linear Model
-	private final int 	E 		= 2;		// Exponential Model
-
 	private JPanel  pnParameters[];
 	private JPanel  pnFormula[];
 	private int channel;
-	private JTextField txtParams[][] 		= new JTextField[3][3];
-	private JLabel	   lblParams[][] 		= new JLabel[3][3];
+	private JTextField txtParams[][] 		= new JTextField[BleedThroughModel.MAX_PARAMETERS][BleedThroughModel.count()];
+	private JLabel	   lblParams[][] 		= new JLabel[BleedThroughModel.MAX_PARAMETERS][BleedThroughModel.count()];
+	private JLabel	   lblIntervals[][] 	= new JLabel[BleedThroughModel.MAX_PARAMETERS][BleedThroughModel.count()];
 
 	private JTextField txtBackFret 			= new JTextField("0", 5);
 	private JTextField txtBackChannel		= new JTextField("0", 5);
@@ -88,23 +86,27 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 	private JButton	bnGetModel				= new JButton("Get");
 	private JButton	bnResetModel			= new JButton("Reset");
 	private JButton	bnAcceptModel			= new JButton("Accept");
+	private JButton	bnIntervals				= new JButton("CI");
+	private JButton	bnSaveModel				= new JButton("Save...");
+	private JButton	bnLoadModel				= new JButton("Load...");
 	private JButton	bnGetBack				= new JButton("Get");
 	private JButton	bnResetBack				= new JButton("Reset");
 	private JButton	bnAcceptBack			= new JButton("Accept");
-	private float params[][] 				= new float[3][3];
-
-	private String[] paramName				= {"a", "b", "e"};
-	private String[] modelName				= {"Constant", "Linear", "Expo."};
+	private JButton	bnAutoBack				= new JButton("Auto");
+	private JComboBox choiceStatistic		= new JComboBox(RoiStatistics.NAMES);
+	private JComboBox choiceFit				= new JComboBox(RobustFit.NAMES);
+	private JLabel lblFit 					= new JLabel("Fit");
 	
 	private Plot plot;
 	private	int nbins = 256;
 	
-	private JRadioButton chkModel[]			= new JRadioButton[3];
+	private JRadioButton chkModel[]			= new JRadioButton[BleedThroughModel.count()];
 	
 	private boolean data = false;
-	private boolean fit[] = {false, false, false};
+	private boolean fit[] = new boolean[BleedThroughModel.count()];
 
-	private int countBack = 0;
+	private RoiStatistics statsBack = null;
+	private BackgroundPanel backgroundPanel = null;	// estimator of the Auto background
 	
 	private float backgroundFret=0, backgroundChannel=0;
 	
@@ -114,8 +116,13 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 	private JLabel lblFormula[];
 	private JTabbedPane tabbedPane;
 
-	private	float valueChannel[];
-	private	float valueRatio[];
+	private volatile int generation = 0;	// incremented by each refresh of the plot, a stale refresh is discarded
+	private volatile int epoch = 0;			// incremented by each reset, the measures of a discarded calibration are dropped
+	private Future<?> pending;				// last refresh of the plot
+	private ArrayList<Future<?>> measures = new ArrayList<Future<?>>();	// measures in the executor, used by the event thread
+	private Future<?> pendingIntervals;		// last bootstrap
+	
+	private BleedThroughCalibration calibration = new BleedThroughCalibration();
 	
 	/**
 	* Constructor
@@ -136,8 +143,10 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 
 		JPanel pnBackButtons = new JPanel();
 		pnBackButtons.setLayout(new FlowLayout(FlowLayout.RIGHT));
+		pnBackButtons.add(choiceStatistic);
 		pnBackButtons.add(bnResetBack);
 		pnBackButtons.add(bnGetBack);
+		pnBackButtons.add(bnAutoBack);
 		pnBackButtons.add(bnAcceptBack);
 		
 		JPanel pnBack = new JPanel();
@@ -153,22 +162,33 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 		addComponent(pnModelParams, 0, 0, 2, 1, 1, lblGaussianBlur);
 		addComponent(pnModelParams, 0, 2, 1, 1, 1, txtSmooth);
 		addComponent(pnModelParams, 0, 4, 3, 1, 1, lblRecommended);
-		for (int m=0; m<3; m++) {
-			chkModel[m] = new JRadioButton(modelName[m]);
+		int models = BleedThroughModel.count();
+		for (int m=0; m<models; m++) {
+			BleedThroughModel model = BleedThroughModel.get(m);
+			String names[] = model.getParameterNames();
+			chkModel[m] = new JRadioButton(model.getLabel());
 			group.add(chkModel[m]);
-			addComponent(pnModelParams, m+1, 0, 1, 1, 1, chkModel[m]);
-			for (int p=0; p<3; p++) {
+			addComponent(pnModelParams, 2*m+1, 0, 1, 1, 1, chkModel[m]);
+			for (int p=0; p<BleedThroughModel.MAX_PARAMETERS; p++) {
 				txtParams[p][m] = new JTextField("---", 7);
-				lblParams[p][m] = new JLabel(paramName[p], JLabel.RIGHT);
+				lblParams[p][m] = new JLabel(p < names.length ? names[p] : "", JLabel.RIGHT);
+				lblIntervals[p][m] = new JLabel("");
+				lblIntervals[p][m].setFont(lblIntervals[p][m].getFont().deriveFont(9f));
 			}
-			for (int p=0; p<m+1; p++) {
-				addComponent(pnModelParams, m+1, 1+p*2, 1, 1, 1, lblParams[p][m]);
-				addComponent(pnModelParams, m+1, 2+p*2, 1, 1, 1, txtParams[p][m]);
+			for (int p=0; p<names.length; p++) {
+				addComponent(pnModelParams, 2*m+1, 1+p*2, 1, 1, 1, lblParams[p][m]);
+				addComponent(pnModelParams, 2*m+1, 2+p*2, 1, 1, 1, txtParams[p][m]);
+				addComponent(pnModelParams, 2*m+2, 2+p*2, 1, 1, 0, lblIntervals[p][m]);
 			}
 		}
+		addComponent(pnModelParams, 2*models+1, 0, 1, 1, 1, lblFit);
+		addComponent(pnModelParams, 2*models+1, 1, 3, 1, 1, choiceFit);
 		
 		JPanel pnModelButtons = new JPanel();
 		pnModelButtons.setLayout(new FlowLayout(FlowLayout.RIGHT));
+		pnModelButtons.add(bnLoadModel);
+		pnModelButtons.add(bnSaveModel);
+		pnModelButtons.add(bnIntervals);
 		pnModelButtons.add(bnResetModel);
 		pnModelButtons.add(bnGetModel);
 		pnModelButtons.add(bnAcceptModel);
@@ -197,9 +217,14 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 		bnGetBack.addActionListener(this);
 		bnResetBack.addActionListener(this);
 		bnAcceptBack.addActionListener(this);
+		bnAutoBack.addActionListener(this);
 		bnGetModel.addActionListener(this);
 		bnResetModel.addActionListener(this);
+		bnSaveModel.addActionListener(this);
+		bnLoadModel.addActionListener(this);
 		bnAcceptModel.addActionListener(this);
+		choiceFit.addActionListener(this);
+		bnIntervals.addActionListener(this);
 		
 		setEnabledModel(false);
 	}
@@ -210,12 +235,17 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 		bnResetModel.setEnabled(state);
 		bnGetModel.setEnabled(state);
 		bnAcceptModel.setEnabled(state);
+		bnSaveModel.setEnabled(state);
+		bnLoadModel.setEnabled(state);
 		txtSmooth.setEnabled(state);
 		lblGaussianBlur.setEnabled(state);
 		lblRecommended.setEnabled(state);
-		for (int m=0; m<3; m++) {
+		lblFit.setEnabled(state);
+		choiceFit.setEnabled(state);
+		bnIntervals.setEnabled(state);
+		for (int m=0; m<chkModel.length; m++) {
 			chkModel[m].setEnabled(state);
-			for (int p=0; p<3; p++) {
+			for (int p=0; p<BleedThroughModel.MAX_PARAMETERS; p++) {
 				txtParams[p][m].setEnabled(state);
 				lblParams[p][m].setEnabled(state);
 			}
@@ -226,9 +256,9 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 	* Get the model parameters of this channel.
 	*/
 	public float[][] getParams() {
-		float[][] para = new float[3][3];
-		for(int m=0; m<3; m++) 
-		for(int p=0; p<3; p++)
+		float[][] para = new float[BleedThroughModel.MAX_PARAMETERS][BleedThroughModel.count()];
+		for(int m=0; m<chkModel.length; m++) 
+		for(int p=0; p<BleedThroughModel.get(m).getParameters(); p++)
 			para[p][m] = getFloatValue(txtParams[p][m]);
 		return para;
 	}
@@ -236,7 +266,7 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 	/**
 	*/
 	public int getModel() {
-		for(int m=0; m<3; m++)
+		for(int m=0; m<chkModel.length; m++)
 			if (chkModel[m].isSelected())
 				return m;
 		return 0;
@@ -245,10 +275,10 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 	/**
 	*/
 	public void setModelAndParams(int model, float[][] params) {
-		for(int m=0; m<3; m++)
-			chkModel[model].setSelected((m==model));
-		for(int m=0; m<3; m++) 
-		for(int p=0; p<3; p++)
+		for(int m=0; m<chkModel.length; m++)
+			chkModel[m].setSelected((m==model));
+		for(int m=0; m<chkModel.length; m++) 
+		for(int p=0; p<BleedThroughModel.get(m).getParameters(); p++)
 			txtParams[p][m].setText("" + IJ.d2s(params[p][m], 5));
 	}
 	
@@ -285,76 +315,49 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 	public void setParamsFormula(JLabel lblFormula[], JTabbedPane tabbedPane) {
 		this.lblFormula = lblFormula;
 		this.tabbedPane = tabbedPane;
-		float[][] params = getParams();
-		int model = getModel();
-		if (channel == DONOR)
-			switch(model) {
-				case CST:	lblFormula[DONOR].setText("BTdon = " + IJ.d2s(params[A][CST], 5));
-							break;
-				case LIN:	String sign = (params[B][LIN] < 0 ? "-" : "+");
-							lblFormula[DONOR].setText("BTdon = " + IJ.d2s(params[A][LIN], 5) + "* DONORdon " + sign + " " + IJ.d2s(Math.abs(params[B][LIN]), 5));
-							break;
-				case EXP:	lblFormula[DONOR].setText("BTdon = " + IJ.d2s(params[A][EXP], 5) + " + " + IJ.d2s(params[B][EXP], 5) +  "* exp(" + IJ.d2s(params[E][EXP], 5) + " * DONORdon)");
-							break;
-			}
-		else 
-			switch(model) {
-				case CST:	lblFormula[ACCEP].setText("BTacc = " + IJ.d2s(params[A][CST], 5));
-							break;
-				case LIN:	String sign = (params[B][LIN] < 0 ? "-" : "+");
-							lblFormula[ACCEP].setText("BTacc = " + IJ.d2s(params[A][LIN], 5) + "* ACCEPTORacc " + sign + " " + IJ.d2s(Math.abs(params[B][LIN]), 5));
-							break;
-				case EXP:	lblFormula[ACCEP].setText("BTacc = " + IJ.d2s(params[A][EXP], 5) + " + " + IJ.d2s(params[B][EXP], 5) +  "* exp(" + IJ.d2s(params[E][EXP], 5) + " * ACCEPTORacc)");
-							break;
-			}
-
-		tabbedPane.setSelectedIndex(0);
+		setParamsFormula();
 	}
 
 	/**
 	* Change the formula of the current channel in the pane 0.
 	*/
 	public void setParamsFormula() {
-	
-		float[][] params = getParams();
 		int model = getModel();
+		BleedThroughModel bt = BleedThroughModel.get(model);
+		double a[] = bt.getValues(getParams(), model);
 		if (channel == DONOR)
-			switch(model) {
-				case CST:	lblFormula[DONOR].setText("BTdon = " + IJ.d2s(params[A][CST], 5));
-							break;
-				case LIN:	String sign = (params[B][LIN] < 0 ? "-" : "+");
-							lblFormula[DONOR].setText("BTdon = " + IJ.d2s(params[A][LIN], 5) + "* DONORdon " + sign + " " + IJ.d2s(Math.abs(params[B][LIN]), 5));
-							break;
-				case EXP:	lblFormula[DONOR].setText("BTdon = " + IJ.d2s(params[A][EXP], 5) + " + " + IJ.d2s(params[B][EXP], 5) +  "* exp(" + IJ.d2s(params[E][EXP], 5) + " * DONORdon)");
-							break;
-			}
+			lblFormula[DONOR].setText("BTdon = " + bt.getFormula(a, "DONORdon"));
 		else 
-			switch(model) {
-				case CST:	lblFormula[ACCEP].setText("BTacc = " + IJ.d2s(params[A][CST], 5));
-							break;
-				case LIN:	String sign = (params[B][LIN] < 0 ? "-" : "+");
-							lblFormula[ACCEP].setText("BTacc = " + IJ.d2s(params[A][LIN], 5) + "* ACCEPTORacc " + sign + " " + IJ.d2s(Math.abs(params[B][LIN]), 5));
-							break;
-				case EXP:	lblFormula[ACCEP].setText("BTacc = " + IJ.d2s(params[A][EXP], 5) + " + " + IJ.d2s(params[B][EXP], 5) +  "* exp(" + IJ.d2s(params[E][EXP], 5) + " * ACCEPTORacc)");
-							break;
-			}
-
+			lblFormula[ACCEP].setText("BTacc = " + bt.getFormula(a, "ACCEPTORacc"));
 		tabbedPane.setSelectedIndex(0);
 	}
 
 	/**
 	 * Implements the actionPerformed for the ActionListener.
 	 */
-	public synchronized  void actionPerformed(ActionEvent e) {
+	public void actionPerformed(ActionEvent e) {
 		if (e.getSource() == bnResetModel) {
 			bnGetModel.setEnabled(true);
-			resetModel();	
+			resetCalibration();
 			plot.setEnabledScatteredPlot(true);
 		}
 		else if (e.getSource() == bnGetModel) {
 			plot.setEnabledScatteredPlot(true);
 			measure();
 		}
+		else if (e.getSource() == choiceFit) {
+			plot.setRobust(choiceFit.getSelectedIndex());
+			showIntervals(null);
+		}
+		else if (e.getSource() == bnIntervals) {
+			computeIntervals();
+		}
+		else if (e.getSource() == bnSaveModel) {
+			saveCalibration();
+		}
+		else if (e.getSource() == bnLoadModel) {
+			loadCalibration();
+		}
 		else if (e.getSource() == bnAcceptModel) {
 			plot.setEnabledScatteredPlot(true);
 			plot.force();
@@ -363,12 +366,12 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 		else if (e.getSource() == bnResetBack) {
 			txtBackChannel.setText("0");
 			txtBackFret.setText("0");
-			countBack = 0;
+			statsBack = null;
 			backgroundChannel = getFloatValue(txtBackChannel);
 			backgroundFret    = getFloatValue(txtBackFret);
 			setEnabledModel(false);
 			bnGetBack.setText("Get");
-			resetModel();
+			resetCalibration();
 			plot.setEnabledScatteredPlot(false);
 		}
 		else if (e.getSource() == bnGetBack) {
@@ -377,6 +380,11 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 			setEnabledModel(false);
 			background();
 		}
+		else if (e.getSource() == bnAutoBack) {
+			plot.setEnabledScatteredPlot(false);
+			setEnabledModel(false);
+			autoBackground();
+		}
 		else if (e.getSource() == bnAcceptBack) {
 //			bnGetBack.setEnabled(false);
 			bnResetModel.setEnabled(true);
@@ -384,26 +392,42 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 			bnAcceptModel.setEnabled(true);
 			backgroundChannel = getFloatValue(txtBackChannel);
 			backgroundFret    = getFloatValue(txtBackFret);
-			resetModel();	
+			resetCalibration();
 			setEnabledModel(true);
 			plot.setEnabledScatteredPlot(true);
 		}
 	}
 
+	/**
+	* Discard the accumulated calibration, the ratios depend on the backgrounds.
+	*/
+	private void resetCalibration() {
+		generation++;
+		epoch++;
+		if (pending != null)
+			pending.cancel(true);
+		for(Future<?> measure : measures)
+			measure.cancel(true);
+		measures.clear();
+		setCursor(Cursor.getDefaultCursor());
+		calibration.reset();
+		bnGetModel.setText("Get");
+		resetModel();
+	}
+
 	/**
 	* Reset the model parameters.
 	*/
 	private void resetModel() {
-		for(int i = 0; i < 3; i++)
-		for(int m = 0; m < 3; m++) {
+		for(int i = 0; i < BleedThroughModel.MAX_PARAMETERS; i++)
+		for(int m = 0; m < fit.length; m++) {
 			txtParams[i][m].setText("---");
 		}
-		fit[0] = false;
-		fit[1] = false;
-		fit[2] = false;
+		showIntervals(null);
+		Arrays.fill(fit, false);
 		plot.reset();
 		
-		plot.set(params, fit, 0, 255, 0, 255, null, null);
+		plot.set(fit, 0, 255, 0, 255, null, null, null);
 	}	
 
 	/**
@@ -449,50 +473,66 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 
 		ImageProcessor maskRoi = roi.getMask();
 		Rectangle rect = roi.getBoundingRect();
-		PixFretImageAccess fret 		= new PixFretImageAccess(imp.getStack().getProcessor(1));
-		PixFretImageAccess channel 		= new PixFretImageAccess(imp.getStack().getProcessor(2));
-		
-		float bFret 		= 0.0f;
-		float bChannel 		= 0.0f;
-		int bCount = 0;
-		
-		if (maskRoi != null) {
-			PixFretImageAccess mask = new PixFretImageAccess(maskRoi);
-			int nx = mask.getWidth();
-			int ny = mask.getHeight();
+		PixFretImageAccess channels[] = new PixFretImageAccess[2];
+		for (int c=0; c<2; c++)
+			channels[c] = new PixFretImageAccess(imp.getStack().getProcessor(c+1));
 		
-			for(int y = 0; y < ny; y++)
-			for(int x = 0; x < nx; x++) {
-				if (maskRoi.getPixel(x, y) != 0.0) {
-					bFret 		+= fret.getPixel(rect.x+x, rect.y+y);
-					bChannel	+= channel.getPixel(rect.x+x, rect.y+y);
-					bCount++;
-				}
-			}
+		RoiStatistics measured = RoiStatistics.measure(channels, maskRoi, rect);
+		if (statsBack == null)
+			statsBack = measured;
+		else
+			statsBack.add(measured);
+		int statistic = choiceStatistic.getSelectedIndex();
+		backgroundFret		= (float)statsBack.get(0, statistic);
+		backgroundChannel 	= (float)statsBack.get(1, statistic);
+		txtBackFret.setText("" + IJ.d2s(backgroundFret));
+		txtBackChannel.setText("" + IJ.d2s(backgroundChannel));
+		resetModel();
+	}
+
+	/**
+	* Set the panel of the FRET backgrounds, whose automatic estimator is
+	* used by the Auto button, the mode of the histogram without it.
+	*/
+	public void setBackgroundPanel(BackgroundPanel panel) {
+		backgroundPanel = panel;
+	}
+
+	/**
+	* Estimate the background level on the whole images, without ROI, with
+	* the estimator selected in the background panel.
+	*/
+	private void autoBackground() {
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp == null) {
+			IJ.showMessage("Please open a stack of images");
+			return;
 		}
-		else {
-			for(int y = 0; y < rect.height; y++)
-			for(int x = 0; x < rect.width; x++) {
-				bFret 		+= fret.getPixel(rect.x+x, rect.y+y);
-				bChannel	+= channel.getPixel(rect.x+x, rect.y+y);
-				bCount++;
-			}		
-		}	
-		if (bCount > 0) {
-			bFret 		= bFret 	/ bCount;		
-			bChannel	= bChannel 	/ bCount;		
+		if (imp.getStackSize() != 2) {
+			IJ.showMessage("The input stack size should be equal to 2.");
+			return;
 		}
-		
-		backgroundFret		= (backgroundFret*countBack + bFret*bCount)/(countBack+bCount);
-		backgroundChannel 	= (backgroundChannel*countBack + bChannel*bCount)/(countBack+bCount);
-		countBack += bCount;
+		int type = imp.getType();
+		if (type != ImagePlus.GRAY32 && type != ImagePlus.GRAY16 && type != ImagePlus.GRAY8) {
+			IJ.showMessage("32-bits or 16-bits or 8-bits image is required.");
+			return;
+		}
+		int id = (backgroundPanel == null ? BackgroundEstimator.MODE : backgroundPanel.getBackgroundEstimator());
+		BackgroundEstimator estimator = new BackgroundEstimator(id);
+		statsBack = null;
+		backgroundFret		= estimator.estimate(new PixFretImageAccess(imp.getStack().getProcessor(1)));
+		backgroundChannel 	= estimator.estimate(new PixFretImageAccess(imp.getStack().getProcessor(2)));
 		txtBackFret.setText("" + IJ.d2s(backgroundFret));
 		txtBackChannel.setText("" + IJ.d2s(backgroundChannel));
 		resetModel();
 	}
 
 	/**
-	* Measure the bleed-through level in the ROI.
+	* Measure the bleed-through level in the ROI. The smoothing and the
+	* histogram run in the shared executor. Every measure is added to the
+	* calibration, even if another one is started meanwhile, unless the
+	* calibration is reset. Return false if the measure could not be
+	* started.
 	*/
 	public boolean measure() {
 		ImagePlus imp = WindowManager.getCurrentImage();
@@ -515,179 +555,229 @@ public class BleedThroughPanel  extends JPanel implements ActionListener {
 			return false;
 		}
 		
-		ImageProcessor maskRoi = roi.getMask();
-		Rectangle rect = roi.getBoundingRect();
+		final ImageProcessor maskRoi = roi.getMask();
+		final Rectangle rect = roi.getBoundingRect();
 		
-		Cursor cursor = this.getCursor();
 		this.setCursor(new Cursor(Cursor.WAIT_CURSOR));
 		IJ.showStatus("PixFRET: Starting measure...");
-		PixFretImageAccess sbt     = new PixFretImageAccess(imp.getStack().getProcessor(1));
-		PixFretImageAccess channel = new PixFretImageAccess(imp.getStack().getProcessor(2));
-		float sigma = getFloatValue(txtSmooth);
-		
-		
-		IJ.showStatus("PixFRET: Smoothing ...");
-		sbt.smoothGaussian(sigma);
-		channel.smoothGaussian(sigma);
-	
-		float ratioMax = 2f;
-		float rscale = 512;
-		
-		IJ.showStatus("PixFRET: Computing ...");
-		int nr = FMath.ceil(ratioMax*rscale)+1;
-		
-		int nx = FMath.ceil(nbins);
-		int ny = FMath.ceil(nbins);
-		int nix = channel.getWidth();
-		
-		byte[][] dataByte = null; //new byte[n][n];
-				
-		float cmin = Float.MAX_VALUE;
-		float cmax = -Float.MAX_VALUE;
-		float bmin = Float.MAX_VALUE;
-		float bmax = -Float.MAX_VALUE;
-		
-		float rmin = Float.MAX_VALUE;
-		float rmax = -Float.MAX_VALUE;
-		
-		int index = 0;
+		final PixFretImageAccess sbt     = new PixFretImageAccess(imp.getStack().getProcessor(1));
+		final PixFretImageAccess channel = new PixFretImageAccess(imp.getStack().getProcessor(2));
+		final float sigma = getFloatValue(txtSmooth);
+		final float bgChannel = backgroundChannel;
+		final float bgFret = backgroundFret;
+		final int ep = epoch;
 		
-		if (maskRoi != null) {
-			/***/
-			PixFretImageAccess mask = new PixFretImageAccess(maskRoi);
-			int mx = mask.getWidth();
-			int my = mask.getHeight();
-		
-			for(int y = 0; y < my; y++) 
-			for(int x = 0; x < mx; x++) {
-				float chan = channel.pixels[rect.x+x + nix*(rect.y+y)]-backgroundChannel;
-				if (chan > 0) {
-					if (chan < cmin)
-						cmin = chan;
-					else if (chan > cmax)
-						cmax = chan;
-				}
-			}		
-
-			float cscale = 1f;
-			float coff = -cmin;
-			int nc = FMath.ceil(cmax-cmin);
-			dataByte = new byte[nc][nr];
-
-			int count = 0;
-			for(int y = 0; y < my; y++)
-			for(int x = 0; x < mx; x++) {
-				if (maskRoi.getPixel(x, y) != 0.0) {
-					index = rect.x+x + nix*(rect.y+y);
-					float chan = channel.pixels[index]-backgroundChannel;
-					if (chan > 0) {
-						float ratio = (sbt.pixels[index]-backgroundFret)/chan;
-						if (ratio > 0 && ratio < ratioMax) {
-							int c = FMath.round(chan*cscale+coff);
-							int r = FMath.round(ratio*rscale);
-							if (c >= 0)
-							if (c < nc)
-					//		if (dataByte[c][r] == 0) {
-								dataByte[c][r]++;
-								count++;
-					//		}
-						}
+		for(Iterator<Future<?>> it = measures.iterator(); it.hasNext(); )
+			if (it.next().isDone())
+				it.remove();
+		measures.add(Parallel.getExecutor().submit(new Runnable() {
+			public void run() {
+				IJ.showStatus("PixFRET: Smoothing ...");
+				sbt.smoothGaussian(sigma);
+				channel.smoothGaussian(sigma);
+				if (ep != epoch)
+					return;
+			
+				IJ.showStatus("PixFRET: Computing ...");
+				final ScatterHistogram histo = ScatterHistogram.measure(channel, sbt, bgChannel, bgFret, maskRoi, rect);
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (ep != epoch)
+							return;
+						calibration.add(histo);
+						bnGetModel.setText("Add");
+						showCalibration();
 					}
-				}
-			}	
-			valueChannel = new float[count];
-			valueRatio = new float[count];
-			count = 0;			
-			for(int c = 0; c < nc; c++)
-			for(int r = 0; r < nr; r++) {
-				if (dataByte[c][r] == 1) {
-					valueChannel[count] = (c-coff)/cscale; 
-					valueRatio[count] = (r/rscale);
-					if (valueRatio[count] < rmin)
-						rmin = valueRatio[count];
-					else if (valueRatio[count] > rmax)
-						rmax = valueRatio[count];
-					count++;
-				}
+				});
 			}
-		}
-		else {
-			for(int y = rect.y; y < rect.y+rect.height; y++)
-			for(int x = rect.x; x < rect.x+rect.width;  x++) {
-				float chan = channel.pixels[x + nix*y]-backgroundChannel;
-				if (chan > 0) {
-					if (chan < cmin)
-						cmin = chan;
-					else if (chan > cmax)
-						cmax = chan;
+		}));
+		return true;
+	}
+	
+	/**
+	* Fit the models on the accumulated calibration and display it.
+	*/
+	private void showCalibration() {
+		showCalibration(true);
+	}
+
+	/**
+	* Display the accumulated calibration. The models are fitted on it if
+	* refit is true, else they are drawn with the displayed parameters.
+	*/
+	private void showCalibration(final boolean refit) {
+		final ScatterHistogram histo = calibration.getHistogram();
+		if (histo == null)
+			return;
+		final int gen = ++generation;
+		this.setCursor(new Cursor(Cursor.WAIT_CURSOR));
+		showIntervals(null);
+		submit(new Runnable() {
+			public void run() {
+				int nb = histo.size();
+				int ic[] = new int[nb];
+				int ir[] = new int[nb];
+				int binCount[] = new int[nb];
+				histo.getBins(ic, ir, binCount);
+				float binChannel[] = new float[nb];
+				float binRatio[] = new float[nb];
+				float cmin = Float.MAX_VALUE;
+				float cmax = -Float.MAX_VALUE;
+				float rmin = Float.MAX_VALUE;
+				float rmax = -Float.MAX_VALUE;
+				for(int k = 0; k < nb; k++) {
+					binChannel[k] = histo.getChannel(ic[k]);
+					binRatio[k] = ScatterHistogram.getRatio(ir[k]);
+					cmin = Math.min(cmin, binChannel[k]);
+					cmax = Math.max(cmax, binChannel[k]);
+					rmin = Math.min(rmin, binRatio[k]);
+					rmax = Math.max(rmax, binRatio[k]);
 				}
-			}		
-			float cscale = 1f;
-			float coff = -cmin;
-			int nc = FMath.ceil(cmax-cmin);
-			dataByte = new byte[nc][nr];
-			int count = 0;
-			for(int y = rect.y; y < rect.y+rect.height; y++)
-			for(int x = rect.x; x < rect.x+rect.width;  x++) {
-				index = x + nix*y;
-				float chan = (channel.pixels[index]-backgroundChannel);
-				if (chan > 0) {
-					float ratio = (sbt.pixels[index]-backgroundFret) / chan;
-					if (ratio > 0 && ratio < ratioMax) {
-						int c = FMath.round(chan*cscale+coff);
-						int r = FMath.round(ratio*rscale);
-						if (c >= 0)
-						if (c < nc)
-				//		if (dataByte[c][r] == 0) {
-							dataByte[c][r]++;
-							count++;
-				//		}
+				final Plot.Update update = plot.prepare(cmin, cmax, rmin, rmax, binChannel, binRatio, binCount, refit);
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (gen != generation)
+							return;
+						data = true;
+						plot.show(update, fit);
+						if (!refit)
+							plot.force();
+						setCursor(Cursor.getDefaultCursor());
+						IJ.showStatus("PixFRET: " + calibration.getMeasures() + " measures, " + histo.getTotal() + " pixels");
 					}
-				}
+				});
 			}
-			valueChannel = new float[count];
-			valueRatio = new float[count];
-/*			count = 0;			
-			for(int c = 0; c < nc; c++)
-			for(int r = 0; r < nr; r++) {
-				if (dataByte[c][r] > 0) {
-					valueChannel[count] = (c-coff)/cscale; 
-					valueRatio[count] = (r/rscale);
-					if (valueRatio[count] < rmin)
-						rmin = valueRatio[count];
-					else if (valueRatio[count] > rmax)
-						rmax = valueRatio[count];
-					count++;
+		});
+	}
+
+	/**
+	* Run a refresh of the plot in the shared executor, cancelling the
+	* previous one if it is still running.
+	*/
+	private void submit(Runnable task) {
+		if (pending != null)
+			pending.cancel(true);
+		pending = Parallel.getExecutor().submit(task);
+	}
+
+	/**
+	* Save the calibration into a file.
+	*/
+	private void saveCalibration() {
+		if (calibration.isEmpty()) {
+			IJ.showMessage("The calibration is empty.");
+			return;
+		}
+		SaveDialog sd = new SaveDialog("Save the " + getChannelName() + " calibration", "PixFRET-" + getChannelName(), ".pfbt");
+		if (sd.getFileName() == null)
+			return;
+		try {
+			calibration.save(sd.getDirectory() + sd.getFileName());
+		}
+		catch(IOException ex) {
+			IJ.showMessage("Unable to save the calibration: " + ex.getMessage());
+		}
+	}
+
+	/**
+	* Load a calibration from a file, it is added to the current calibration.
+	*/
+	private void loadCalibration() {
+		OpenDialog od = new OpenDialog("Load a " + getChannelName() + " calibration", null);
+		if (od.getFileName() == null)
+			return;
+		try {
+			BleedThroughCalibration loaded = BleedThroughCalibration.load(od.getDirectory() + od.getFileName());
+			boolean empty = calibration.isEmpty();
+			calibration.add(loaded);
+			if (empty)
+				calibration.setIntervals(loaded.getIntervals());
+		}
+		catch(IOException ex) {
+			IJ.showMessage("Unable to load the calibration: " + ex.getMessage());
+			return;
+		}
+		setEnabledModel(true);
+		bnGetModel.setText("Add");
+		plot.setEnabledScatteredPlot(true);
+		showCalibration();
+		showIntervals(calibration.getIntervals());
+	}
+
+	/**
+	* Return the calibration of this channel.
+	*/
+	public BleedThroughCalibration getCalibration() {
+		return calibration;
+	}
+
+	/**
+	* Replace the calibration of this channel and the parameters of the
+	* models, e.g. by those of a profile. The models are not fitted again,
+	* the plot shows them with the given parameters.
+	*/
+	public void setCalibration(BleedThroughCalibration loaded, int model, float[][] params) {
+		resetCalibration();
+		setModelAndParams(model, params);
+		if (loaded == null || loaded.isEmpty())
+			return;
+		calibration.add(loaded);
+		calibration.setIntervals(loaded.getIntervals());
+		setEnabledModel(true);
+		bnGetModel.setText("Add");
+		plot.setEnabledScatteredPlot(true);
+		showCalibration(false);
+		showIntervals(calibration.getIntervals());
+	}
+
+	/**
+	* Compute the bootstrap confidence intervals of the parameters, show
+	* them and store them with the calibration.
+	*/
+	private void computeIntervals() {
+		final Callable<double[][][]> bootstrap = plot.getBootstrap(Bootstrap.REPLICATES);
+		if (bootstrap == null)
+			return;
+		final int gen = generation;
+		IJ.showStatus("PixFRET: Bootstrap ...");
+		if (pendingIntervals != null)
+			pendingIntervals.cancel(true);
+		pendingIntervals = Parallel.getExecutor().submit(new Runnable() {
+			public void run() {
+				final double intervals[][][];
+				try {
+					intervals = bootstrap.call();
 				}
-			}
-*/
-			count = 0;			
-			for(int c = 0; c < nc; c++)
-			for(int r = 0; r < nr; r++) {
-				for(int i=0; i<dataByte[c][r]; i++) {
-					valueChannel[count] = (c-coff)/cscale; 
-					valueRatio[count] = (r/rscale);
-					if (valueRatio[count] < rmin)
-						rmin = valueRatio[count];
-					else if (valueRatio[count] > rmax)
-						rmax = valueRatio[count];
-					count++;
+				catch(Exception ex) {
+					return;
 				}
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						IJ.showStatus("PixFRET");
+						if (gen != generation || intervals == null)
+							return;
+						calibration.setIntervals(intervals);
+						showIntervals(intervals);
+					}
+				});
 			}
+		});
+	}
 
+	/**
+	* Show the confidence intervals under the parameters, clear them if
+	* intervals is null.
+	*/
+	private void showIntervals(double[][][] intervals) {
+		for(int p=0; p<BleedThroughModel.MAX_PARAMETERS; p++)
+		for(int m=0; m<fit.length; m++) {
+			if (intervals == null || m >= intervals[p].length || Double.isNaN(intervals[p][m][0]))
+				lblIntervals[p][m].setText("");
+			else
+				lblIntervals[p][m].setText("[" + IJ.d2s(intervals[p][m][0], 5) + ", " + IJ.d2s(intervals[p][m][1], 5) + "]");
 		}
-
-		data = true;
-		fit[0] = false;
-		fit[1] = false;
-		fit[2] = false;
-		
-		this.setCursor(cursor);
-		IJ.showStatus("PixFRET");
-		plot.set(params, fit,  cmin, cmax, rmin, rmax, valueChannel, valueRatio);
-		return true;
 	}
-	
+
 	/**
 	* Get a double value from a JTextField.
 	*/
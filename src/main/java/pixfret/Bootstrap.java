@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+* Bootstrap confidence intervals of the bleed-through model parameters.
+*
+* The replicates are Poisson bootstraps of a weighted calibration: each
+* point keeps its position and receives a weight drawn from a Poisson law
+* of mean its weight, which is equivalent to resampling the pixels with
+* replacement. The replicates are fitted in parallel, each one with its
+* own generator seeded by its index, so the intervals are reproducible.
+*
+* For the robust methods, the robust weights of the fit on the data are
+* kept for all the replicates, which are then plain weighted least squares
+* fits (one-step bootstrap).
+*/
+public class Bootstrap {
+
+	public static final int REPLICATES 	= 200;
+	public static final double LEVEL 	= 0.95;
+
+	private static final long SEED 		= 4242L;
+	private static final int BAND 		= 4;		// number of replicates per task
+
+	/**
+	* Compute the percentile confidence intervals of the parameters.
+	*
+	* @param method		fitting method, see RobustFit
+	* @param x			channel of the points
+	* @param y			ratio of the points
+	* @param w			weight of the points
+	* @param n			number of points
+	* @param estimate	estimate[model] are the parameters fitted on the data,
+	*					see RobustFit.fit(), null if the model is not fitted
+	* @param replicates	number of bootstrap replicates
+	* @return intervals[param][model] = {low, high}, NaN if not available
+	*/
+	public static double[][][] run(final int method, final double x[], final double y[], final double w[], final int n, final double estimate[][], final int replicates) {
+		final int models = BleedThroughModel.count();
+		final double values[][][] = new double[BleedThroughModel.MAX_PARAMETERS][models][replicates];	// [param][model][replicate]
+		for(int p=0; p<BleedThroughModel.MAX_PARAMETERS; p++)
+		for(int m=0; m<models; m++)
+			Arrays.fill(values[p][m], Double.NaN);
+
+		final double robust[][] = new double[models][n];
+		RobustFit fit = new RobustFit(method);
+		for(int m=0; m<models; m++)
+			if (estimate[m] != null) {
+				BleedThroughModel model = BleedThroughModel.get(m);
+				double a[] = estimate[m].clone();
+				fit.fit(model, x, y, w, n, a);
+				fit.getWeights(model, x, y, n, a, robust[m]);
+			}
+
+		Parallel.forEachBand(replicates, BAND, new Parallel.Band() {
+			public void run(int band, int from, int to) {
+				RobustFit fit = new RobustFit(RobustFit.LEAST_SQUARES);
+				double pw[] = new double[n];
+				double rw[] = new double[n];
+				for(int r=from; r<to; r++) {
+					Random random = new Random(SEED + r);
+					for(int i=0; i<n; i++)
+						pw[i] = poisson(random, w[i]);
+					for(int m=0; m<models; m++) {
+						if (estimate[m] == null)
+							continue;
+						for(int i=0; i<n; i++)
+							rw[i] = pw[i] * robust[m][i];
+						double a[] = estimate[m].clone();
+						if (fit.fit(BleedThroughModel.get(m), x, y, rw, n, a))
+							for(int p=0; p<a.length; p++)
+								values[p][m][r] = a[p];
+					}
+				}
+			}
+		});
+
+		double intervals[][][] = new double[BleedThroughModel.MAX_PARAMETERS][models][2];
+		for(int p=0; p<BleedThroughModel.MAX_PARAMETERS; p++)
+		for(int m=0; m<models; m++)
+			intervals[p][m] = getInterval(values[p][m]);
+		return intervals;
+	}
+
+	/**
+	* Return the percentile interval of the finite values.
+	*/
+	private static double[] getInterval(double v[]) {
+		double sorted[] = new double[v.length];
+		int n = 0;
+		for(int k=0; k<v.length; k++)
+			if (!Double.isNaN(v[k]) && !Double.isInfinite(v[k]))
+				sorted[n++] = v[k];
+		if (n < 2)
+			return new double[] {Double.NaN, Double.NaN};
+		Arrays.sort(sorted, 0, n);
+		double alpha = 0.5 * (1.0 - LEVEL);
+		return new double[] {sorted[(int)Math.floor(alpha * (n-1))], sorted[(int)Math.ceil((1.0-alpha) * (n-1))]};
+	}
+
+	/**
+	* Draw a Poisson variable, by inversion for small means and by the
+	* normal approximation for large means.
+	*/
+	private static double poisson(Random random, double mean) {
+		if (mean <= 0.0)
+			return 0.0;
+		if (mean > 30.0)
+			return Math.max(0.0, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+		double p = Math.exp(-mean);
+		double cumul = p;
+		double u = random.nextDouble();
+		int k = 0;
+		while (u > cumul && k < 1000) {
+			k++;
+			p *= mean / k;
+			cumul += p;
+		}
+		return k;
+	}
+
+}
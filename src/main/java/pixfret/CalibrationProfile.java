@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+* Named set of the parameters of a FRET computation with the bleed-through
+* calibrations of the donor and of the acceptor, including their binned
+* histograms. The profiles are kept by the CalibrationStore.
+*/
+public class CalibrationProfile {
+
+	private static final int MAGIC 		= 0x50465046;	// "PFPF"
+	private static final int VERSION 	= 1;
+
+	public String name					= "";
+	public int version					= 0;		// assigned by the store
+	public long time					= 0L;		// time of the save, in ms
+	public FretParameters params		= new FretParameters();
+	public boolean displayBlurred		= true;
+	public BleedThroughCalibration donor = new BleedThroughCalibration();
+	public BleedThroughCalibration accep = new BleedThroughCalibration();
+
+	/**
+	* Constructor.
+	*/
+	public CalibrationProfile(String name) {
+		this.name = name;
+	}
+
+	/**
+	* Write the profile into a stream, the name, the version and the time
+	* are kept by the store.
+	*/
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeFloat(params.blur);
+		out.writeFloat(params.fact);
+		out.writeInt(params.output);
+		out.writeBoolean(displayBlurred);
+		out.writeInt(params.modelDonor);
+		out.writeInt(params.modelAccep);
+		writeParams(out, params.paramsDonor);
+		writeParams(out, params.paramsAccep);
+		out.writeInt(params.backgroundMode);
+		out.writeInt(params.backgroundEstimator);
+		out.writeInt(params.backgroundTile);
+		out.writeFloat(params.backgroundPercentile);
+		out.writeFloat(params.backgroundFret);
+		out.writeFloat(params.backgroundDonor);
+		out.writeFloat(params.backgroundAccep);
+		donor.write(out);
+		accep.write(out);
+	}
+
+	/**
+	* Read a profile from a stream.
+	*/
+	public static CalibrationProfile read(DataInputStream in, String name) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a PixFRET profile.");
+		int version = in.readInt();
+		if (version > VERSION)
+			throw new IOException("Unsupported version of PixFRET profile: " + version);
+		CalibrationProfile profile = new CalibrationProfile(name);
+		FretParameters params = profile.params;
+		params.blur 		= in.readFloat();
+		params.fact 		= in.readFloat();
+		params.output 		= in.readInt();
+		profile.displayBlurred = in.readBoolean();
+		params.modelDonor 	= in.readInt();
+		params.modelAccep 	= in.readInt();
+		readParams(in, params.paramsDonor);
+		readParams(in, params.paramsAccep);
+		params.backgroundMode 		= in.readInt();
+		params.backgroundEstimator 	= in.readInt();
+		params.backgroundTile 		= in.readInt();
+		params.backgroundPercentile = in.readFloat();
+		params.backgroundFret 		= in.readFloat();
+		params.backgroundDonor 		= in.readFloat();
+		params.backgroundAccep 		= in.readFloat();
+		profile.donor = BleedThroughCalibration.read(in);
+		profile.accep = BleedThroughCalibration.read(in);
+		return profile;
+	}
+
+	/**
+	* Write the [parameter][model] array with its size.
+	*/
+	private static void writeParams(DataOutputStream out, float params[][]) throws IOException {
+		out.writeInt(params.length);
+		out.writeInt(params[0].length);
+		for(int p=0; p<params.length; p++)
+		for(int m=0; m<params[p].length; m++)
+			out.writeFloat(params[p][m]);
+	}
+
+	/**
+	* Read a [parameter][model] array, the unknown parameters or models are
+	* skipped.
+	*/
+	private static void readParams(DataInputStream in, float params[][]) throws IOException {
+		int np = in.readInt();
+		int nm = in.readInt();
+		for(int p=0; p<np; p++)
+		for(int m=0; m<nm; m++) {
+			float value = in.readFloat();
+			if (p < params.length && m < params[p].length)
+				params[p][m] = value;
+		}
+	}
+
+	/**
+	* Import the settings of the former PixFRETSettings.txt file.
+	*/
+	public static CalibrationProfile fromProperties(Properties props, String name) {
+		CalibrationProfile profile = new CalibrationProfile(name);
+		FretParameters params = profile.params;
+		readModels(props, "Donor", 0.33818f, params.paramsDonor);
+		readModels(props, "Accep", 0.01534f, params.paramsAccep);
+		params.fact	= Float.parseFloat(props.getProperty("fact", "1.0"));
+		params.blur	= Float.parseFloat(props.getProperty("blur", "3.0"));
+		params.modelDonor = Integer.parseInt(props.getProperty("Model Donor", "2"));
+		params.modelAccep = Integer.parseInt(props.getProperty("Model Accep", "0"));
+		String output = props.getProperty("Normalization", FretParameters.OUTPUTS[0]);
+		for (int i=0; i<FretParameters.OUTPUTS.length; i++)
+			if (FretParameters.OUTPUTS[i].equals(output))
+				params.output = i;
+		params.backgroundMode = Integer.parseInt(props.getProperty("Background Mode", "" + FretParameters.MANUAL));
+		params.backgroundEstimator = Integer.parseInt(props.getProperty("Background Estimator", "" + BackgroundEstimator.MODE));
+		params.backgroundTile = Integer.parseInt(props.getProperty("Background Tile", "64"));
+		profile.displayBlurred = props.getProperty("Display Blurred Images", "true").equals("true");
+		return profile;
+	}
+
+	/**
+	* Read the parameters of the bleed-through models of a channel, the
+	* keys are "<model> <channel> <parameter>".
+	*/
+	private static void readModels(Properties props, String channel, float constant, float params[][]) {
+		for (int m=0; m<BleedThroughModel.count(); m++) {
+			BleedThroughModel model = BleedThroughModel.get(m);
+			String names[] = model.getParameterNames();
+			for (int p=0; p<names.length; p++) {
+				String def = (m == FretParameters.CST ? "" + constant : "0.0");
+				params[p][m] = Float.parseFloat(props.getProperty(model.getName() + " " + channel + " " + names[p], def));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,424 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+* Store of the calibration profiles, one file per microscope setup in a
+* directory. A file holds many named profiles, with several versions of
+* each name.
+*
+* The file starts with an index of the entries {name, version, time,
+* offset, length}, followed by the profiles. The loads map the file and
+* read only the index and the requested entry. The saves run in a single
+* background thread, so they never block the computation. They rewrite
+* the file into a temporary file, and move it over the previous one, so a
+* reader always sees a complete file. The MAX_VERSIONS last versions of a
+* name are kept.
+*/
+public class CalibrationStore {
+
+	public static final String EXTENSION 	= ".pfstore";
+	public static final int MAX_VERSIONS 	= 10;
+
+	private static final int MAGIC 			= 0x50464353;	// "PFCS"
+	private static final int VERSION 		= 1;
+
+	private static ExecutorService writer = null;
+
+	private File directory;
+	private IOException failure = null;		// first failed save since the last flush()
+
+	/**
+	* Entry of the index of a setup.
+	*/
+	public static class Entry {
+		public String name;
+		public int version;
+		public long time;
+		private long offset;
+		private int length;
+	}
+
+	/**
+	* Constructor, the directory is created by the first save.
+	*/
+	public CalibrationStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	* Return the setups of the store.
+	*/
+	public String[] getSetups() {
+		String files[] = directory.list();
+		if (files == null)
+			return new String[0];
+		ArrayList<String> setups = new ArrayList<String>();
+		for(int k=0; k<files.length; k++)
+			if (files[k].endsWith(EXTENSION))
+				setups.add(files[k].substring(0, files[k].length() - EXTENSION.length()));
+		String s[] = setups.toArray(new String[setups.size()]);
+		Arrays.sort(s);
+		return s;
+	}
+
+	/**
+	* Return the entries of a setup, empty if the setup does not exist.
+	*/
+	public Entry[] list(String setup) throws IOException {
+		File file = getFile(setup);
+		if (!file.exists())
+			return new Entry[0];
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			return readIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	* Return the names of the profiles of a setup, each name once.
+	*/
+	public String[] getNames(String setup) throws IOException {
+		Entry entries[] = list(setup);
+		ArrayList<String> names = new ArrayList<String>();
+		for(int k=0; k<entries.length; k++)
+			if (!names.contains(entries[k].name))
+				names.add(entries[k].name);
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	* Load the last version of a profile, null if there is none.
+	*/
+	public CalibrationProfile load(String setup, String name) throws IOException {
+		return load(setup, name, -1);
+	}
+
+	/**
+	* Load a version of a profile, the last one if version is negative,
+	* null if there is none.
+	*/
+	public CalibrationProfile load(String setup, String name, int version) throws IOException {
+		File file = getFile(setup);
+		if (!file.exists())
+			return null;
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			Entry entries[] = readIndex(buffer);
+			Entry found = null;
+			for(int k=0; k<entries.length; k++)
+				if (entries[k].name.equals(name) && (version < 0 || entries[k].version == version))
+					if (found == null || entries[k].version > found.version)
+						found = entries[k];
+			if (found == null)
+				return null;
+			ByteBuffer slice = buffer.duplicate();
+			slice.position((int)found.offset);
+			slice.limit((int)(found.offset + found.length));
+			CalibrationProfile profile = CalibrationProfile.read(new DataInputStream(new ByteBufferInputStream(slice.slice())), name);
+			profile.version = found.version;
+			profile.time = found.time;
+			return profile;
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	* Listener of the end of a save, called by the writer thread.
+	*/
+	public interface Listener {
+		public void saved(String setup, String name, int version);
+		public void failed(String setup, String name, IOException e);
+	}
+
+	/**
+	* Save a new version of a profile in the background. The profile is
+	* serialized immediately, so it can be modified after the call. A
+	* failure of the save is reported by flush().
+	*
+	* @return the future of the version number of the saved profile
+	*/
+	public Future<Integer> save(String setup, CalibrationProfile profile) throws IOException {
+		return save(setup, profile, null);
+	}
+
+	/**
+	* Save a new version of a profile in the background, the listener, if
+	* not null, is called at the end of the save.
+	*
+	* @return the future of the version number of the saved profile
+	*/
+	public Future<Integer> save(final String setup, CalibrationProfile profile, final Listener listener) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		profile.write(out);
+		out.flush();
+		final String name = profile.name;
+		final byte data[] = bytes.toByteArray();
+		return getWriter().submit(new Callable<Integer>() {
+			public Integer call() throws IOException {
+				int version;
+				try {
+					version = write(setup, name, data);
+				}
+				catch(IOException e) {
+					synchronized(CalibrationStore.this) {
+						if (failure == null)
+							failure = e;
+					}
+					if (listener != null)
+						listener.failed(setup, name, e);
+					throw e;
+				}
+				if (listener != null)
+					listener.saved(setup, name, version);
+				return version;
+			}
+		});
+	}
+
+	/**
+	* Wait for the end of the pending saves, and throw the first failure of
+	* the saves since the previous flush().
+	*/
+	public void flush() throws InterruptedException, IOException {
+		try {
+			getWriter().submit(new Runnable() {
+				public void run() {
+				}
+			}).get();
+		}
+		catch(ExecutionException ex) {
+		}
+		IOException e;
+		synchronized(this) {
+			e = failure;
+			failure = null;
+		}
+		if (e != null)
+			throw e;
+	}
+
+	/**
+	* Add a profile to the file of a setup, run by the writer thread.
+	*/
+	private int write(String setup, String name, byte data[]) throws IOException {
+		File file = getFile(setup);
+		Entry entries[] = new Entry[0];
+		byte previous[][] = new byte[0][];
+		if (file.exists()) {
+			FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+			try {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				entries = readIndex(buffer);
+				previous = new byte[entries.length][];
+				for(int k=0; k<entries.length; k++) {
+					previous[k] = new byte[entries[k].length];
+					buffer.position((int)entries[k].offset);
+					buffer.get(previous[k]);
+				}
+			}
+			finally {
+				channel.close();
+			}
+		}
+
+		// The new version, and the last MAX_VERSIONS-1 versions of the name
+		int version = 1;
+		for(int k=0; k<entries.length; k++)
+			if (entries[k].name.equals(name))
+				version = Math.max(version, entries[k].version + 1);
+		ArrayList<Entry> kept = new ArrayList<Entry>();
+		ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+		for(int k=0; k<entries.length; k++) {
+			if (entries[k].name.equals(name) && entries[k].version <= version - MAX_VERSIONS)
+				continue;
+			kept.add(entries[k]);
+			blocks.add(previous[k]);
+		}
+		Entry entry = new Entry();
+		entry.name = name;
+		entry.version = version;
+		entry.time = System.currentTimeMillis();
+		kept.add(entry);
+		blocks.add(data);
+
+		// The offsets have a fixed size, the size of the index does not
+		// depend on them
+		long offset = writeIndex(new DataOutputStream(new ByteArrayOutputStream()), kept);
+		for(int k=0; k<kept.size(); k++) {
+			kept.get(k).offset = offset;
+			kept.get(k).length = blocks.get(k).length;
+			offset += blocks.get(k).length;
+		}
+
+		directory.mkdirs();
+		File temp = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			FileOutputStream stream = new FileOutputStream(temp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+				writeIndex(out, kept);
+				for(int k=0; k<blocks.size(); k++)
+					out.write(blocks.get(k));
+				out.flush();
+				stream.getFD().sync();
+			}
+			finally {
+				stream.close();
+			}
+			move(temp, file);
+		}
+		finally {
+			temp.delete();
+		}
+		return version;
+	}
+
+	/**
+	* Replace the target by the source, atomically if the file system can.
+	*/
+	private static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(AtomicMoveNotSupportedException ex) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(FileSystemException ex) {
+			// On Windows, a mapping of the target is released by the GC
+			System.gc();
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	* Write the index, return its size in bytes.
+	*/
+	private static long writeIndex(DataOutputStream out, ArrayList<Entry> entries) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(entries.size());
+		for(int k=0; k<entries.size(); k++) {
+			Entry entry = entries.get(k);
+			out.writeUTF(entry.name);
+			out.writeInt(entry.version);
+			out.writeLong(entry.time);
+			out.writeLong(entry.offset);
+			out.writeInt(entry.length);
+		}
+		out.flush();
+		return out.size();
+	}
+
+	/**
+	* Read the index of a mapped file.
+	*/
+	private static Entry[] readIndex(ByteBuffer buffer) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer.duplicate()));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a PixFRET calibration store.");
+		int version = in.readInt();
+		if (version > VERSION)
+			throw new IOException("Unsupported version of PixFRET calibration store: " + version);
+		Entry entries[] = new Entry[in.readInt()];
+		for(int k=0; k<entries.length; k++) {
+			entries[k] = new Entry();
+			entries[k].name = in.readUTF();
+			entries[k].version = in.readInt();
+			entries[k].time = in.readLong();
+			entries[k].offset = in.readLong();
+			entries[k].length = in.readInt();
+			if (entries[k].offset < 0 || entries[k].offset + entries[k].length > buffer.limit())
+				throw new IOException("Corrupted PixFRET calibration store.");
+		}
+		return entries;
+	}
+
+	/**
+	* Return the file of a setup, the characters that are not allowed in
+	* a file name are replaced by '_'.
+	*/
+	private File getFile(String setup) {
+		return new File(directory, setup.replaceAll("[^A-Za-z0-9._ -]", "_") + EXTENSION);
+	}
+
+	/**
+	* Return the thread of the saves, shared by all the stores so the saves
+	* of a file are never concurrent.
+	*/
+	private static synchronized ExecutorService getWriter() {
+		if (writer == null) {
+			writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "PixFRET-store");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return writer;
+	}
+
+	/**
+	* Stream reading a byte buffer, e.g. a mapped file.
+	*/
+	private static class ByteBufferInputStream extends InputStream {
+		private ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read() {
+			return (buffer.hasRemaining() ? buffer.get() & 0xFF : -1);
+		}
+
+		public int read(byte b[], int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+
+}
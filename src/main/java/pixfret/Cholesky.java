@@ -34,6 +34,54 @@ package pixfret;
 
 public class Cholesky {
 
+    private double[][] A;
+    private double[] p;
+    private double[] x;
+
+    /**
+     * Workspace to solve repeatedly systems of at most n equations, the
+     * matrix is factorized in place and the system is solved in place, so
+     * solve() does not allocate.
+     * @param n int Maximal size of the systems.
+     */
+    public Cholesky(int n) {
+        A = new double[n][n];
+        p = new double[n];
+        x = new double[n];
+    }
+
+    /**
+     * Returns the matrix of the workspace, the system is given in its
+     * upper triangle.
+     * @return double[][]
+     */
+    public double[][] getMatrix() {
+        return A;
+    }
+
+    /**
+     * Returns the vector of the workspace, the right hand side on input
+     * of solve() and the solution on output.
+     * @return double[]
+     */
+    public double[] getVector() {
+        return x;
+    }
+
+    /**
+     * Solves in place the system of the n first rows and columns of the
+     * matrix, the lower triangle of the matrix receives the factor.
+     * @param n int Size of the system.
+     * @return boolean Returns false if the matrix is not positive definite.
+     */
+    public boolean solve(int n) {
+        if (!decomp(A, p, n)) {
+            return false;
+        }
+        solve(A, p, x, x, n);
+        return true;
+    }
+
     /**
      * Given a positive-definite symmetric matrix A[1..n][1..n], this method
      * constructs its Cholesky decomposition, A = L &sdot; L' . On input, only the
@@ -45,11 +93,21 @@ public class Cholesky {
      * @return boolean Returns false if the decomposition is not possible.
      */
     public static boolean decomp(double[][] A, double[] p) {
-        int n = A.length;
+        return decomp(A, p, A.length);
+    }
+
+    /**
+     * Cholesky decomposition of the n first rows and columns of A, in place.
+     * @param A double[][] Input matrix.
+     * @param p double[]
+     * @param n int
+     * @return boolean Returns false if the decomposition is not possible.
+     */
+    public static boolean decomp(double[][] A, double[] p, int n) {
         int i, j, k;
         double sum;
         for (i = 0; i < n; i++) {
-            for (j = 0; j < n; j++) {
+            for (j = i; j < n; j++) {
                 sum = A[i][j];
                 for (k = i - 1; k >= 0; k--) {
                     sum -= (A[i][k] * A[j][k]);
@@ -69,14 +127,15 @@ public class Cholesky {
     } //decomp
 
     /**
-     * Solves a the linear system Ax=b.
+     * Solves a the linear system Ax=b of size n, b and x can be the same
+     * array.
      * @param A double[][] Is the result of decomp(A)
      * @param p double[] The resulting diagonal vector.
      * @param b double[]
      * @param x double[]
+     * @param n int
      */
-    private static void solve(double[][] A, double[] p, double[] b, double[] x) {
-        int n = A.length;
+    public static void solve(double[][] A, double[] p, double[] b, double[] x, int n) {
         int i, k;
         double sum;
         //Solve L ⋅ y = b, storing y in x.
@@ -99,7 +158,8 @@ public class Cholesky {
     } //solve
 
     /**
-     * Solves the linear system Ax=b.
+     * Solves the linear system Ax=b. Allocates the diagonal, see the
+     * workspace for repeated solves.
      * @param A double[][]
      * @param x double[]
      * @param b double[]
@@ -111,7 +171,7 @@ public class Cholesky {
         if (!decomp(A, p)) {
             return false;
         }
-        solve(A, p, b, x);
+        solve(A, p, b, x, A.length);
         return true;
     } //solve
 
@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import ij.IJ;
+
+/**
+* Constant bleed-through: BT = a.
+*/
+public class ConstantModel extends BleedThroughModel {
+
+	public String getName() {
+		return "Constant";
+	}
+
+	public String[] getParameterNames() {
+		return new String[] {"a"};
+	}
+
+	public String getFormula(double a[], String variable) {
+		return IJ.d2s(a[0], 5);
+	}
+
+	public double eval(double a[], double x) {
+		return a[0];
+	}
+
+	public boolean isClosedForm() {
+		return true;
+	}
+
+	public boolean estimate(MomentTable table, int sel[], double a[]) {
+		double nb = table.sum(MomentTable.N, sel[0], sel[1], sel[2], sel[3]);
+		if (nb <= 0.0)
+			return false;
+		a[0] = table.sum(MomentTable.SY, sel[0], sel[1], sel[2], sel[3]) / nb;
+		return true;
+	}
+
+	public boolean solve(double x[], double y[], double w[], int n, double a[], LevenbergMarquardt lm) {
+		double nb = 0.0;
+		double sumy = 0.0;
+		for(int i=0; i<n; i++) {
+			nb   += w[i];
+			sumy += w[i]*y[i];
+		}
+		if (nb <= 0.0)
+			return false;
+		a[0] = sumy / nb;
+		return true;
+	}
+
+	public Evaluator compile(float a[]) {
+		final float c = a[0];
+		return new Evaluator() {
+			public void bleedThrough(float x[], float out[], int n) {
+				for(int i=0; i<n; i++)
+					out[i] = c * x[i];
+			}
+		};
+	}
+
+}
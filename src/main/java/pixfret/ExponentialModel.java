@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import ij.IJ;
+
+/**
+* Exponential bleed-through: BT = a + b*exp(e*x).
+*/
+public class ExponentialModel extends BleedThroughModel {
+
+	private final Function3 function = new Function3();
+
+	public String getName() {
+		return "Exponential";
+	}
+
+	public String getLabel() {
+		return "Expo.";
+	}
+
+	public String[] getParameterNames() {
+		return new String[] {"a", "b", "e"};
+	}
+
+	public String getFormula(double a[], String variable) {
+		return IJ.d2s(a[0], 5) + term(a[1], " * exp(" + IJ.d2s(a[2], 5) + " * " + variable + ")");
+	}
+
+	public double eval(double a[], double x) {
+		return a[0] + a[1] * Math.exp(a[2] * x);
+	}
+
+	/**
+	* The constant a is the mean ratio of the left half of the selection,
+	* b and e come from the log-linear regression of the ratio minus a on
+	* the cells of the right half, weighted by their counts.
+	*/
+	public boolean estimate(MomentTable table, int sel[], double a[]) {
+		double nb = table.sum(MomentTable.N, sel[0], sel[1], sel[2], sel[3]);
+		if (nb < 3)
+			return false;
+
+		// Trick to stabilize the exponentiel.
+		double ac = table.sum(MomentTable.SY, sel[0], sel[1], sel[2], sel[3]) / nb;
+		int cmed = (sel[0] + sel[2]) / 2;
+		double m = table.sum(MomentTable.SY, sel[0], sel[1], cmed, sel[3]);
+		double cm = table.sum(MomentTable.N, sel[0], sel[1], cmed, sel[3]);
+		if (cm > 2)
+			m = m / cm;
+		else
+			m = ac;
+
+		double ck = 0.0;
+		double sumx = 0.0;
+		double sumy = 0.0;
+		double sumxx = 0.0;
+		double sumxy = 0.0;
+		for(int j=sel[1]; j<sel[3]; j++)
+		for(int i=cmed; i<sel[2]; i++) {
+			double w = table.sum(MomentTable.N, i, j, i+1, j+1);
+			if (w > 0) {
+				double ratio = table.sum(MomentTable.SY, i, j, i+1, j+1) / w;
+				if (ratio - m > 0) {
+					double x = table.sum(MomentTable.SX, i, j, i+1, j+1) / w;
+					double y = Math.log(ratio-m);
+					ck    += w;
+					sumx  += w*x;
+					sumxx += w*x*x;
+					sumy  += w*y;
+					sumxy += w*x*y;
+				}
+			}
+		}
+		if (ck < 2)
+			return false;
+
+		double et = (ck*sumxy - sumx*sumy) / (ck * sumxx - sumx * sumx);
+		a[0] = m;
+		a[1] = Math.exp((sumy - et * sumx) / ck);
+		a[2] = et;
+		return isFinite(a);
+	}
+
+	public boolean solve(double x[], double y[], double w[], int n, double a[], LevenbergMarquardt lm) {
+		// The steps that increase chi2, e.g. to NaN, are not accepted
+		lm.fit(x, y, w, n, a, function, 0.001, 100);
+		return isFinite(a);
+	}
+
+	public Evaluator compile(float a[]) {
+		final float c = a[0];
+		final float b = a[1];
+		final float e = a[2];
+		return new Evaluator() {
+			public void bleedThrough(float x[], float out[], int n) {
+				for(int i=0; i<n; i++)
+					out[i] = (c + b * (float)Math.exp(e * x[i])) * x[i];
+			}
+		};
+	}
+
+}
@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+/**
+ * Model of a mono-exponential rise after a stimulation at time t0:
+ *		y = c							for t <= t0
+ *		y = c + A * (1 - exp(-k*(t-t0)))	for t > t0
+ *		c is a[0], the baseline
+ *		A is a[1], the amplitude
+ *		k is a[2], the rate
+ */
+public class ExponentialRise implements ModelFunction {
+
+    private double t0;
+
+    /**
+     * Constructor.
+     * @param t0 double Time of the stimulation.
+     */
+    public ExponentialRise(double t0) {
+        this.t0 = t0;
+    }
+
+    /**
+     * Returns the time of the stimulation.
+     * @return double
+     */
+    public double getStimulation() {
+        return t0;
+    }
+
+    /**
+     * Returns the number of parameters of the model.
+     * @return int
+     */
+    public int getParameters() {
+        return 3;
+    }
+
+    /**
+     * Evaluates the model and its gradient at the points x[offset..offset+n-1].
+     * @param x double[] Points where we evaluate the model function.
+     * @param offset int Index of the first point.
+     * @param n int Number of points.
+     * @param a double[] Model estimators.
+     * @param y double[] Output, y[i] is the value at x[offset+i].
+     * @param dyda double[][] Output, dyda[k][i] is df/da_k at x[offset+i].
+     */
+    public void eval(double[] x, int offset, int n, double[] a, double[] y, double[][] dyda) {
+        for (int i = 0; i < n; i++) {
+            double dt = x[offset+i] - t0;
+            dyda[0][i] = 1.0;
+            if (dt <= 0.0) {
+                y[i] = a[0];
+                dyda[1][i] = 0.0;
+                dyda[2][i] = 0.0;
+            }
+            else {
+                double ex = Math.exp(-a[2] * dt);
+                y[i] = a[0] + a[1] * (1.0 - ex);
+                dyda[1][i] = 1.0 - ex;
+                dyda[2][i] = a[1] * dt * ex;
+            }
+        }
+    }
+
+}
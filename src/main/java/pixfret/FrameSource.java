@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import ij.*;
+import java.io.*;
+
+/**
+* Source of the frames of a time-lapse: each frame is made of the FRET,
+* donor and acceptor planes.
+*
+* The sources of an ImagePlus and of a MappedStack read the planes when a
+* frame is asked, see PrefetchingFrameSource to read them in advance.
+*/
+public abstract class FrameSource implements Closeable {
+
+	public static final int FRET		= 0;
+	public static final int DONOR		= 1;
+	public static final int ACCEPTOR	= 2;
+
+	/**
+	* Return the number of frames.
+	*/
+	public abstract int getFrames();
+
+	/**
+	* Read the planes {FRET, donor, acceptor} of the frame t, from 0. The
+	* images belong to the caller.
+	*/
+	public abstract PixFretImageAccess[] read(int t) throws IOException;
+
+	/**
+	* Release the resources of the source.
+	*/
+	public void close() throws IOException {
+	}
+
+	/**
+	* Return the source of the frames of an image: the channels 1 to 3 of
+	* the current slice for a hyperstack of 3 channels, else the slices
+	* 3t+1 to 3t+3 of the stack. The stack can be a VirtualStack.
+	*/
+	public static FrameSource open(ImagePlus imp) {
+		final ImageStack stack = imp.getStack();
+		final int index[][];
+		if (imp.getNChannels() == 3) {
+			index = new int[imp.getNFrames()][3];
+			for(int t=0; t<index.length; t++)
+			for(int c=0; c<3; c++)
+				index[t][c] = imp.getStackIndex(c+1, imp.getSlice(), t+1);
+		}
+		else {
+			if (stack.getSize() % 3 != 0)
+				throw new IllegalArgumentException("The stack size should be a multiple of 3.");
+			index = new int[stack.getSize() / 3][3];
+			for(int t=0; t<index.length; t++)
+			for(int c=0; c<3; c++)
+				index[t][c] = 3*t + c + 1;
+		}
+		return new FrameSource() {
+			public int getFrames() {
+				return index.length;
+			}
+			public PixFretImageAccess[] read(int t) {
+				PixFretImageAccess planes[] = new PixFretImageAccess[3];
+				for(int c=0; c<3; c++)
+					planes[c] = new PixFretImageAccess(stack.getProcessor(index[t][c]));
+				return planes;
+			}
+		};
+	}
+
+	/**
+	* Return the source of a TIFF file of a single frame, the three planes
+	* {FRET, donor, acceptor}. The file is not opened before the read,
+	* which loads it in the heap, see MappedStack.loadTiff(), so many such
+	* sources can be created for a batch of small files.
+	*/
+	public static FrameSource open(final File file) {
+		return new FrameSource() {
+			public int getFrames() {
+				return 1;
+			}
+			public PixFretImageAccess[] read(int t) throws IOException {
+				MappedStack stack = MappedStack.loadTiff(file);
+				if (stack.getSize() != 3)
+					throw new IOException("The file " + file.getName() + " should have 3 planes, not " + stack.getSize() + ".");
+				PixFretImageAccess planes[] = new PixFretImageAccess[3];
+				for(int c=0; c<3; c++)
+					planes[c] = stack.read(c);
+				return planes;
+			}
+		};
+	}
+
+	/**
+	* Return the source of the frames of a mapped stack, the planes 3t to
+	* 3t+2; closing the source closes the stack.
+	*/
+	public static FrameSource open(final MappedStack stack) {
+		if (stack.getSize() % 3 != 0)
+			throw new IllegalArgumentException("The stack size should be a multiple of 3.");
+		return new FrameSource() {
+			public int getFrames() {
+				return stack.getSize() / 3;
+			}
+			public PixFretImageAccess[] read(int t) throws IOException {
+				PixFretImageAccess planes[] = new PixFretImageAccess[3];
+				for(int c=0; c<3; c++)
+					planes[c] = stack.read(3*t + c);
+				return planes;
+			}
+			public void close() throws IOException {
+				stack.close();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,501 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+* Pixel by pixel computation of the FRET images.
+*
+* The engine takes the FRET, donor and acceptor images and the parameters,
+* subtracts the backgrounds and the bleed-throughs of the donor and of the
+* acceptor, and returns the FRET and normalized FRET images.
+*/
+public class FretEngine {
+
+	public static final int FRET	= 0;
+	public static final int NFRET	= 1;
+
+	private static final int BAND	= 64;		// rows per band for the streaming sinks
+
+	private FretParameters params;
+	private BackgroundMap[] maps = null;		// {FRET, donor, acceptor} in the MAP mode
+	private ResultCache cache = null;
+	private String key = null;					// key of the last lookup() in the cache
+
+	/**
+	* Constructor.
+	*/
+	public FretEngine(FretParameters params) {
+		this.params = params;
+	}
+
+	/**
+	* Set the cache of the FRET images, null for no cache.
+	*/
+	public void setCache(ResultCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	* Return the parameters of the engine.
+	*/
+	public FretParameters getParameters() {
+		return params;
+	}
+
+	/**
+	* Estimate the backgrounds on the whole images if the background mode
+	* is AUTO or MAP, and store them into the parameters. In the MAP mode
+	* the parameters receive the mean of the maps. Should be called on the
+	* raw images, before the blurring.
+	*/
+	public void estimateBackground(PixFretImageAccess fret, PixFretImageAccess donor, PixFretImageAccess acceptor) {
+		if (params.backgroundMode == FretParameters.MAP) {
+			maps = new BackgroundMap[3];
+			maps[0] = new BackgroundMap(fret, params.backgroundTile, params.backgroundPercentile);
+			maps[1] = new BackgroundMap(donor, params.backgroundTile, params.backgroundPercentile);
+			maps[2] = new BackgroundMap(acceptor, params.backgroundTile, params.backgroundPercentile);
+			params.backgroundFret 	= maps[0].getMean();
+			params.backgroundDonor	= maps[1].getMean();
+			params.backgroundAccep	= maps[2].getMean();
+			return;
+		}
+		maps = null;
+		if (params.backgroundMode != FretParameters.AUTO)
+			return;
+		BackgroundEstimator estimator = new BackgroundEstimator(params.backgroundEstimator);
+		params.backgroundFret 	= estimator.estimate(fret);
+		params.backgroundDonor	= estimator.estimate(donor);
+		params.backgroundAccep	= estimator.estimate(acceptor);
+	}
+
+	/**
+	* Run the whole computation on the raw images and write the outputs to
+	* the sinks: the backgrounds in the AUTO and MAP modes, the blurring,
+	* then the FRET and normalized FRET images. The blurred donor and
+	* acceptor are written only to the sinks which accept them. The input
+	* images are blurred in place.
+	*
+	* If all the sinks of the FRET images are streaming sinks, the images
+	* are computed and written by bands of rows. With a cache, the images
+	* are read from the cache or computed whole and stored.
+	*
+	* @param source		title of the input image
+	* @return	an array {FRET, NFRET}, null if the images were streamed
+	*/
+	public PixFretImageAccess[] process(String source, PixFretImageAccess fret, PixFretImageAccess donor, PixFretImageAccess acceptor, ResultSink sinks[]) throws IOException {
+		if (cache != null) {
+			PixFretImageAccess[] results = lookup(fret, donor, acceptor);
+			if (results != null) {
+				prepareCached(donor, acceptor, sinks);
+				writeBlurred(source, donor, acceptor, sinks);
+				writeResults(source, results, sinks);
+				return results;
+			}
+		}
+		prepare(fret, donor, acceptor);
+		writeBlurred(source, donor, acceptor, sinks);
+		if (cache == null && isStreaming(sinks)) {
+			stream(source, fret, donor, acceptor, sinks);
+			return null;
+		}
+		PixFretImageAccess[] results = compute(fret, donor, acceptor);
+		writeResults(source, results, sinks);
+		store(results);
+		return results;
+	}
+
+	/**
+	* Return the images {FRET, NFRET} of the raw images from the cache,
+	* null if there is no cache or if they are not cached. On a hit the
+	* parameters receive the backgrounds of the cached computation. Should
+	* be called before prepare(), the key is kept for store().
+	*/
+	public PixFretImageAccess[] lookup(PixFretImageAccess fret, PixFretImageAccess donor, PixFretImageAccess acceptor) {
+		if (cache == null)
+			return null;
+		key = cache.getKey(params, fret, donor, acceptor);
+		PixFretImageAccess[] results = cache.get(key, params);
+		if (results != null)
+			key = null;
+		return results;
+	}
+
+	/**
+	* Store the images {FRET, NFRET} computed after a missed lookup().
+	*/
+	public void store(PixFretImageAccess results[]) {
+		if (cache != null && key != null)
+			cache.put(key, params, results);
+		key = null;
+	}
+
+	/**
+	* Blur the donor and acceptor in place if there is a blur and if a
+	* sink accepts them, the only step of prepare() needed for images read
+	* from the cache.
+	*/
+	public void prepareCached(PixFretImageAccess donor, PixFretImageAccess acceptor, ResultSink sinks[]) {
+		float blur = params.blur;
+		if (blur <= 0.0f)
+			return;
+		for(int k=0; k<sinks.length; k++)
+			if (sinks[k].accepts(ResultSink.DONOR_BLURRED) || sinks[k].accepts(ResultSink.ACCEPTOR_BLURRED)) {
+				donor.smoothGaussian(blur);
+				acceptor.smoothGaussian(blur);
+				return;
+			}
+	}
+
+	/**
+	* Estimate the backgrounds in the AUTO and MAP modes and blur the raw
+	* images in place, the first steps of process().
+	*/
+	public void prepare(PixFretImageAccess fret, PixFretImageAccess donor, PixFretImageAccess acceptor) {
+		estimateBackground(fret, donor, acceptor);
+		float blur = params.blur;
+		if (blur > 0.0f) {
+			donor.smoothGaussian(blur);
+			acceptor.smoothGaussian(blur);
+			fret.smoothGaussian(blur);
+		}
+	}
+
+	/**
+	* Write the blurred donor and acceptor to the sinks which accept them,
+	* nothing if there is no blur.
+	*/
+	public void writeBlurred(String source, PixFretImageAccess donor, PixFretImageAccess acceptor, ResultSink sinks[]) throws IOException {
+		float blur = params.blur;
+		if (blur > 0.0f) {
+			write(sinks, ResultSink.DONOR_BLURRED, source, "Donor image blurred with value = " + blur, donor);
+			write(sinks, ResultSink.ACCEPTOR_BLURRED, source, "Acceptor image blurred with value = " + blur, acceptor);
+		}
+	}
+
+	/**
+	* Write the images {FRET, NFRET} of compute() to the sinks.
+	*/
+	public void writeResults(String source, PixFretImageAccess results[], ResultSink sinks[]) throws IOException {
+		write(sinks, ResultSink.NFRET, source, getTitle(NFRET, source), results[NFRET]);
+		write(sinks, ResultSink.FRET, source, getTitle(FRET, source), results[FRET]);
+	}
+
+	/**
+	* Return the title of the FRET or NFRET image of a source.
+	*/
+	private String getTitle(int kind, String source) {
+		if (kind == FRET)
+			return "FRET of " + source;
+		return (params.output == 4 ? "FRET Efficiency (%) of " : "NFRET (x100) of ") + source;
+	}
+
+	/**
+	* Return true if there are streaming sinks and if all the sinks which
+	* accept the FRET images are streaming sinks.
+	*/
+	static boolean isStreaming(ResultSink sinks[]) {
+		boolean streaming = false;
+		for(int k=0; k<sinks.length; k++) {
+			if (!sinks[k].accepts(ResultSink.FRET) && !sinks[k].accepts(ResultSink.NFRET))
+				continue;
+			if (!(sinks[k] instanceof ResultSink.Streaming))
+				return false;
+			streaming = true;
+		}
+		return streaming;
+	}
+
+	/**
+	* Compute the FRET images by bands of rows written to the streaming
+	* sinks, after prepare(). The bands are computed in parallel by groups
+	* of one band per thread, then written in order, so only the group is
+	* in memory. The outputs are ended even if a band fails.
+	*/
+	void stream(String source, final PixFretImageAccess fret, final PixFretImageAccess donor, final PixFretImageAccess acceptor, ResultSink sinks[]) throws IOException {
+		final int nx = fret.getWidth();
+		final int ny = fret.getHeight();
+		ResultSink.Streaming streams[] = new ResultSink.Streaming[sinks.length];
+		for(int k=0; k<sinks.length; k++)
+			if (sinks[k].accepts(ResultSink.FRET) || sinks[k].accepts(ResultSink.NFRET))
+				streams[k] = (ResultSink.Streaming)sinks[k];
+		int group = Math.max(1, Math.min(Parallel.getThreads(), Parallel.getBands(ny, BAND)));
+		final float bandsFret[][] = new float[group][BAND*nx];
+		final float bandsNFret[][] = new float[group][BAND*nx];
+		boolean done = false;
+		try {
+			for(int k=0; k<streams.length; k++) {
+				if (streams[k] != null && streams[k].accepts(ResultSink.NFRET))
+					streams[k].begin(ResultSink.NFRET, source, getTitle(NFRET, source), nx, ny);
+				if (streams[k] != null && streams[k].accepts(ResultSink.FRET))
+					streams[k].begin(ResultSink.FRET, source, getTitle(FRET, source), nx, ny);
+			}
+			for(int y=0; y<ny; y+=group*BAND) {
+				final int y0 = y;
+				int rows = Math.min(group*BAND, ny-y);
+				Parallel.forEachBand(rows, BAND, new Parallel.Band() {
+					public void run(int band, int from, int to) {
+						Arrays.fill(bandsFret[band], 0.0f);
+						Arrays.fill(bandsNFret[band], 0.0f);
+						compute(fret, donor, acceptor, y0+from, y0+to, bandsFret[band], bandsNFret[band]);
+					}
+				});
+				for(int b=0; b<Parallel.getBands(rows, BAND); b++) {
+					int n = Math.min(BAND, rows-b*BAND);
+					for(int k=0; k<streams.length; k++) {
+						if (streams[k] != null && streams[k].accepts(ResultSink.NFRET))
+							streams[k].writeRows(ResultSink.NFRET, source, bandsNFret[b], 0, n);
+						if (streams[k] != null && streams[k].accepts(ResultSink.FRET))
+							streams[k].writeRows(ResultSink.FRET, source, bandsFret[b], 0, n);
+					}
+				}
+			}
+			done = true;
+		}
+		finally {
+			if (!done)
+				abort(streams, source);
+		}
+		end(streams, source);
+	}
+
+	/**
+	* End the FRET and NFRET outputs of the streaming sinks, all of them
+	* even if one fails.
+	*/
+	private static void end(ResultSink.Streaming streams[], String source) throws IOException {
+		IOException error = null;
+		int kinds[] = {ResultSink.NFRET, ResultSink.FRET};
+		for(int k=0; k<streams.length; k++)
+		for(int i=0; i<kinds.length; i++) {
+			if (streams[k] == null || !streams[k].accepts(kinds[i]))
+				continue;
+			try {
+				streams[k].end(kinds[i], source);
+			}
+			catch(IOException e) {
+				if (error == null)
+					error = e;
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	* Discard the FRET and NFRET outputs of the streaming sinks after a
+	* failure, no partial image is left.
+	*/
+	private static void abort(ResultSink.Streaming streams[], String source) {
+		for(int k=0; k<streams.length; k++) {
+			if (streams[k] != null && streams[k].accepts(ResultSink.NFRET))
+				streams[k].abort(ResultSink.NFRET, source);
+			if (streams[k] != null && streams[k].accepts(ResultSink.FRET))
+				streams[k].abort(ResultSink.FRET, source);
+		}
+	}
+
+	/**
+	* Write an output to the sinks which accept it.
+	*/
+	private static void write(ResultSink sinks[], int kind, String source, String title, PixFretImageAccess image) throws IOException {
+		for(int k=0; k<sinks.length; k++)
+			if (sinks[k].accepts(kind))
+				sinks[k].write(kind, source, title, image);
+	}
+
+	/**
+	* Compute the FRET and the normalized FRET images.
+	*
+	* The backgrounds are the scalar values of the parameters, or the
+	* background maps if they have been computed by estimateBackground().
+	*
+	* Each row is processed in three passes: the intensities and the
+	* thresholds, the bleed-throughs of the whole row by the evaluators of
+	* the models, then the FRET. The models are thus chosen once, not for
+	* each pixel.
+	*
+	* @return	an array {FRET, NFRET}
+	*/
+	public PixFretImageAccess[] compute(PixFretImageAccess fret, PixFretImageAccess donor, PixFretImageAccess acceptor) {
+		int nx = fret.getWidth();
+		int ny = fret.getHeight();
+		PixFretImageAccess FRET = new PixFretImageAccess(nx, ny);
+		PixFretImageAccess NFRET = new PixFretImageAccess(nx, ny);
+		compute(fret, donor, acceptor, 0, ny, FRET.pixels, NFRET.pixels);
+		return new PixFretImageAccess[] {FRET, NFRET};
+	}
+
+	/**
+	* Receiver of the FRET and NFRET images by bands of rows.
+	*/
+	public interface Rows {
+		/**
+		* Receive the rows [y, y+rows[, the arrays are reused for the
+		* next band.
+		*/
+		void rows(int y, int rows, float fret[], float nfret[]);
+	}
+
+	/**
+	* Compute the FRET and the normalized FRET images by bands of rows
+	* given to the receiver as soon as they are computed, the whole images
+	* are not allocated.
+	*
+	* @param band	number of rows per band
+	*/
+	public void compute(PixFretImageAccess fret, PixFretImageAccess donor, PixFretImageAccess acceptor, int band, Rows receiver) {
+		int nx = fret.getWidth();
+		int ny = fret.getHeight();
+		float outFret[] = new float[band*nx];
+		float outNFret[] = new float[band*nx];
+		for(int y=0; y<ny; y+=band) {
+			int rows = Math.min(band, ny-y);
+			compute(fret, donor, acceptor, y, y+rows, outFret, outNFret);
+			receiver.rows(y, rows, outFret, outNFret);
+			Arrays.fill(outFret, 0.0f);
+			Arrays.fill(outNFret, 0.0f);
+		}
+	}
+
+	/**
+	* Compute the rows [y0, y1[ into outFret and outNFret, from their
+	* first row; the pixels below the thresholds are left unchanged.
+	*/
+	private void compute(PixFretImageAccess fret, PixFretImageAccess donor, PixFretImageAccess acceptor, int y0, int y1, float outFret[], float outNFret[]) {
+
+		BleedThroughModel.Evaluator btDonor = BleedThroughModel.get(params.modelDonor).compile(params.paramsDonor, params.modelDonor);
+		BleedThroughModel.Evaluator btAccep = BleedThroughModel.get(params.modelAccep).compile(params.paramsAccep, params.modelAccep);
+		float fact 		= params.fact;
+		int outKind 	= params.output;
+
+		int nx = fret.getWidth();
+
+		float[] rowFret  = new float[nx];
+		float[] rowDonor = new float[nx];
+		float[] rowAccep = new float[nx];
+		boolean useMaps = (params.backgroundMode == FretParameters.MAP && maps != null);
+		if (!useMaps) {
+			Arrays.fill(rowFret, params.backgroundFret);
+			Arrays.fill(rowDonor, params.backgroundDonor);
+			Arrays.fill(rowAccep, params.backgroundAccep);
+		}
+
+		float[] idonor 	= new float[nx];		// intensities minus the backgrounds
+		float[] iaccep 	= new float[nx];
+		float[] ifret 	= new float[nx];
+		float[] bdonor 	= new float[nx];		// bleed-throughs
+		float[] baccep 	= new float[nx];
+		boolean[] valid = new boolean[nx];		// above the thresholds
+
+		float[][] block = new float[3][3];
+		float normTerm = 0.0f;
+
+		for(int y=y0;y<y1;y++) {
+			int offset = (y - y0) * nx;
+			if (useMaps) {
+				maps[0].fillRow(y, rowFret);
+				maps[1].fillRow(y, rowDonor);
+				maps[2].fillRow(y, rowAccep);
+			}
+
+			// Intensities and thresholds
+			for ( int x = 0; x < nx; x++) {
+				valid[x] = false;
+				idonor[x] = 0.0f;
+				iaccep[x] = 0.0f;
+
+				donor.getNeighborhood(x, y, block);
+				if (mean(block) <= rowDonor[x]*fact)
+					continue;
+				float id = block[1][1]-rowDonor[x];
+
+				acceptor.getNeighborhood(x, y, block);
+				if (mean(block) <= rowAccep[x]*fact)
+					continue;
+				float ia = block[1][1]-rowAccep[x];
+
+				fret.getNeighborhood(x, y, block);
+				if (mean(block) <= rowFret[x]*fact)
+					continue;
+				ifret[x] = block[1][1]-rowFret[x];
+				idonor[x] = id;
+				iaccep[x] = ia;
+				valid[x] = true;
+			}
+
+			// Bleed-throughs
+			btDonor.bleedThrough(idonor, bdonor, nx);
+			btAccep.bleedThrough(iaccep, baccep, nx);
+
+			// FRET
+			for ( int x = 0; x < nx; x++) {
+				if (!valid[x])
+					continue;
+				float expfret = ifret[x] - bdonor[x] - baccep[x];
+				switch(outKind) {
+					case 0: 
+						normTerm = (float)(Math.abs(idonor[x]));
+						break;
+					case 1: 
+						normTerm = (float)(Math.abs(iaccep[x]));
+						break;
+					case 2: 
+						normTerm = (float)(Math.abs(idonor[x]*iaccep[x]));
+						break;
+					case 3: 
+						normTerm = (float)Math.sqrt(Math.abs(idonor[x]*iaccep[x]));
+						break;
+					case 4: 
+						normTerm = (float)(Math.abs(idonor[x]+expfret));
+						break;
+				}
+				float nexpfret = 0.0f;
+				if (normTerm != 0.0f) 
+					nexpfret = expfret*100.0f / normTerm;
+				float nt = (float)Math.sqrt(Math.abs(idonor[x]*iaccep[x]));
+				float Nthresh = (float)Math.sqrt(rowDonor[x]*rowAccep[x])*fact;
+				
+				if (nt>Nthresh) {
+					outFret[x+offset]  = expfret;
+					outNFret[x+offset] = nexpfret;
+				}
+			}
+		}
+	}
+
+	/**
+	* Return the mean of a 3x3 neighborhood.
+	*/
+	private static float mean(float block[][]) {
+		float sum = 0.0f;
+		for (int i=0; i<3; i++)
+		for (int j=0; j<3; j++)
+			sum = sum + block[i][j];
+		return sum / 9.0f;
+	}
+
+}
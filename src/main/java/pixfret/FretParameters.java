@@ -0,0 +1,87 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+/**
+* Parameters of the FRET computation.
+*
+* The parameters are filled by the dialog of the plugin and read by
+* the FretEngine.
+*/
+public class FretParameters {
+
+	public static final int	CST		= 0;		// Constant Model, ids of BleedThroughModel
+	public static final int	LIN		= 1;		// Linear Model
+	public static final int EXP 	= 2;		// Exponential Model
+
+	public static final int	MANUAL	= 0;		// Background given by the user or measured in a ROI
+	public static final int	AUTO	= 1;		// Background estimated on the whole image
+	public static final int	MAP		= 2;		// Spatially varying background, see BackgroundMap
+
+	public static final String[] OUTPUTS = {"FRET/Donor", "FRET/Acceptor", "FRET/(Donor*Acceptor)", "FRET/sqrt(Donor*Acceptor)", "FRET Efficiency"};
+
+	public float blur				= 0.0f;		// Gaussian blur, 0.0 = no blur
+	public float fact				= 1.0f;		// Threshold correction factor
+	public int output				= 0;		// Normalization, index in OUTPUTS
+
+	public int modelDonor			= EXP;
+	public int modelAccep			= CST;
+	public float[][] paramsDonor	= new float[BleedThroughModel.MAX_PARAMETERS][BleedThroughModel.count()];	// index 1: parameter, index 2: model
+	public float[][] paramsAccep	= new float[BleedThroughModel.MAX_PARAMETERS][BleedThroughModel.count()];	// index 1: parameter, index 2: model
+
+	public int backgroundMode		= MANUAL;
+	public int backgroundEstimator	= BackgroundEstimator.MODE;
+	public int backgroundTile		= 64;		// Tile size of the background map
+	public float backgroundPercentile = 10.0f;	// Percentile in each tile of the background map
+	public float backgroundFret		= 0.0f;
+	public float backgroundDonor	= 0.0f;
+	public float backgroundAccep	= 0.0f;
+
+	/**
+	* Return a copy of the parameters, e.g. for the frames computed in
+	* parallel, the backgrounds estimated on a frame are stored in its
+	* parameters.
+	*/
+	public FretParameters duplicate() {
+		FretParameters copy = new FretParameters();
+		copy.blur 					= blur;
+		copy.fact 					= fact;
+		copy.output 				= output;
+		copy.modelDonor 			= modelDonor;
+		copy.modelAccep 			= modelAccep;
+		for(int p=0; p<paramsDonor.length; p++) {
+			copy.paramsDonor[p] 	= paramsDonor[p].clone();
+			copy.paramsAccep[p] 	= paramsAccep[p].clone();
+		}
+		copy.backgroundMode 		= backgroundMode;
+		copy.backgroundEstimator 	= backgroundEstimator;
+		copy.backgroundTile 		= backgroundTile;
+		copy.backgroundPercentile 	= backgroundPercentile;
+		copy.backgroundFret 		= backgroundFret;
+		copy.backgroundDonor 		= backgroundDonor;
+		copy.backgroundAccep 		= backgroundAccep;
+		return copy;
+	}
+
+}
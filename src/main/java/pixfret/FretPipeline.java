@@ -0,0 +1,274 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.*;
+
+/**
+* Computation of the frames of one or several time-lapses by a pipeline
+* of four stages: read, blur, compute and write.
+*
+* The read stage reads the frames from their sources, the blur stage
+* estimates the backgrounds and blurs the images, the compute stage
+* computes the FRET images and the write stage gives the outputs to the
+* sinks in the order of the frames. Each frame has its own copy of the
+* parameters, the backgrounds estimated on a frame do not interfere with
+* the others. By default the blur and the compute stages have one thread
+* per processor, the read and the write stages one thread.
+*/
+public class FretPipeline {
+
+	public static final int READ		= 0;
+	public static final int BLUR		= 1;
+	public static final int COMPUTE		= 2;
+	public static final int WRITE		= 3;
+
+	public static final String[] STAGES = {"read", "blur", "compute", "write"};
+
+	private FretParameters params;
+	private int threads[] = {1, Parallel.getThreads(), Parallel.getThreads(), 1};
+	private boolean virtual[] = {false, false, false, false};
+	private int capacity = 2;
+	private int maxInFlight = 0;
+	private Pipeline pipeline = null;
+	private ResultCache cache = null;
+
+	/**
+	* Constructor.
+	*/
+	public FretPipeline(FretParameters params) {
+		this.params = params;
+	}
+
+	/**
+	* Set the number of threads of a stage. The sources of the read stage
+	* and the sinks of the write stage must be thread safe to use more
+	* than one thread, the write stage is then not ordered.
+	*/
+	public void setThreads(int stage, int n) {
+		threads[stage] = Math.max(1, n);
+	}
+
+	/**
+	* Run a stage on virtual threads if available, for the read and write
+	* stages with many files in flight.
+	*/
+	public void setVirtual(int stage, boolean v) {
+		virtual[stage] = v;
+	}
+
+	/**
+	* Set the maximal number of frames in the pipeline, see
+	* Pipeline.setMaxInFlight().
+	*/
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	* Set the capacity of the queues between the stages.
+	*/
+	public void setCapacity(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	* Set the cache of the FRET images, null for no cache. The frames
+	* found in the cache skip the compute stage.
+	*/
+	public void setCache(ResultCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	* Return the pipeline of the last run, for its report.
+	*/
+	public Pipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	* Process all the frames of the sources. The outputs of a source of
+	* several frames are titled "<title> t<frame>". If the write stage has
+	* one thread, the frames are written in order and the frames of such a
+	* source are a series for the sinks of ResultSink.Series.
+	*
+	* Without a cache, if all the sinks of the FRET images are streaming
+	* sinks, the FRET images are computed by the write stage by bands of
+	* rows written as they are computed, see FretEngine.process(), and the
+	* compute stage only passes the frames.
+	*
+	* If the read stage has one thread, the planes of the time-lapses are
+	* read by a PrefetchingFrameSource: the next frame is read on its I/O
+	* thread while the read stage waits for room in the pipeline, one more
+	* frame than setMaxInFlight() is then in memory.
+	*
+	* @param sources	the sources, not closed
+	* @param titles		titles of the sources
+	* @param sinks		the sinks of the outputs
+	*/
+	public void run(FrameSource sources[], final String titles[], final ResultSink sinks[]) throws IOException {
+		final int first[] = new int[sources.length+1];		// index of the first frame of each source
+		for(int s=0; s<sources.length; s++)
+			first[s+1] = first[s] + sources[s].getFrames();
+		final boolean series = (threads[WRITE] == 1);
+		final boolean streaming = (cache == null && FretEngine.isStreaming(sinks));
+		final FrameSource readers[] = sources.clone();
+		if (threads[READ] == 1)
+			for(int s=0; s<sources.length; s++)
+				if (sources[s].getFrames() > 1)
+					readers[s] = new PrefetchingFrameSource(sources[s], 1, 1);
+
+		pipeline = new Pipeline(capacity);
+		pipeline.setMaxInFlight(maxInFlight);
+		pipeline.addStage(STAGES[READ], threads[READ], false, virtual[READ], new Pipeline.Task() {
+			public Object run(Object item) throws IOException {
+				int index = ((Integer)item).intValue();
+				int s = 0;
+				while (index >= first[s+1])
+					s++;
+				int t = index - first[s];
+				Frame frame = new Frame();
+				frame.source = s;
+				frame.t = t;
+				frame.frames = readers[s].getFrames();
+				frame.title = (frame.frames > 1 ? titles[s] + " t" + (t+1) : titles[s]);
+				frame.images = readers[s].read(t);
+				return frame;
+			}
+		});
+		pipeline.addStage(STAGES[BLUR], threads[BLUR], false, virtual[BLUR], new Pipeline.Task() {
+			public Object run(Object item) {
+				Frame frame = (Frame)item;
+				frame.engine = new FretEngine(params.duplicate());
+				frame.engine.setCache(cache);
+				frame.results = frame.engine.lookup(frame.images[FrameSource.FRET], frame.images[FrameSource.DONOR], frame.images[FrameSource.ACCEPTOR]);
+				if (frame.results != null)
+					frame.engine.prepareCached(frame.images[FrameSource.DONOR], frame.images[FrameSource.ACCEPTOR], sinks);
+				else
+					frame.engine.prepare(frame.images[FrameSource.FRET], frame.images[FrameSource.DONOR], frame.images[FrameSource.ACCEPTOR]);
+				return frame;
+			}
+		});
+		pipeline.addStage(STAGES[COMPUTE], threads[COMPUTE], false, virtual[COMPUTE], new Pipeline.Task() {
+			public Object run(Object item) {
+				Frame frame = (Frame)item;
+				if (frame.results != null || streaming)
+					return frame;
+				frame.results = frame.engine.compute(frame.images[FrameSource.FRET], frame.images[FrameSource.DONOR], frame.images[FrameSource.ACCEPTOR]);
+				return frame;
+			}
+		});
+		pipeline.addStage(STAGES[WRITE], threads[WRITE], threads[WRITE] == 1, virtual[WRITE], new Pipeline.Task() {
+			public Object run(Object item) throws IOException {
+				Frame frame = (Frame)item;
+				boolean inSeries = (series && frame.frames > 1);
+				if (inSeries && frame.t == 0)
+					beginSeries(sinks, titles[frame.source], frame.frames);
+				frame.engine.writeBlurred(frame.title, frame.images[FrameSource.DONOR], frame.images[FrameSource.ACCEPTOR], sinks);
+				if (streaming) {
+					frame.engine.stream(frame.title, frame.images[FrameSource.FRET], frame.images[FrameSource.DONOR], frame.images[FrameSource.ACCEPTOR], sinks);
+				}
+				else {
+					frame.engine.writeResults(frame.title, frame.results, sinks);
+					frame.engine.store(frame.results);
+				}
+				if (inSeries && frame.t == frame.frames-1)
+					endSeries(sinks, true);
+				return null;
+			}
+		});
+
+		boolean done = false;
+		try {
+			pipeline.run(first[sources.length]);
+			done = true;
+		}
+		catch(IOException e) {
+			throw e;
+		}
+		catch(RuntimeException e) {
+			throw e;
+		}
+		catch(Exception e) {
+			throw new IOException(e);
+		}
+		finally {
+			for(int s=0; s<readers.length; s++)
+				if (readers[s] instanceof PrefetchingFrameSource)
+					((PrefetchingFrameSource)readers[s]).stop();
+			if (!done && series) {
+				try {
+					endSeries(sinks, false);
+				}
+				catch(IOException e) {
+					// keep the error of the pipeline
+				}
+			}
+		}
+	}
+
+	/**
+	* Start a series on the sinks of ResultSink.Series.
+	*/
+	private static void beginSeries(ResultSink sinks[], String source, int frames) throws IOException {
+		for(int k=0; k<sinks.length; k++)
+			if (sinks[k] instanceof ResultSink.Series)
+				((ResultSink.Series)sinks[k]).beginSeries(source, frames);
+	}
+
+	/**
+	* End the series on the sinks of ResultSink.Series, or discard it.
+	*/
+	private static void endSeries(ResultSink sinks[], boolean complete) throws IOException {
+		IOException error = null;
+		for(int k=0; k<sinks.length; k++) {
+			if (!(sinks[k] instanceof ResultSink.Series))
+				continue;
+			try {
+				((ResultSink.Series)sinks[k]).endSeries(complete);
+			}
+			catch(IOException e) {
+				if (error == null)
+					error = e;
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	* Frame going through the stages.
+	*/
+	private static class Frame {
+		int source;
+		int t;
+		int frames;						// frames of the source
+		String title;
+		PixFretImageAccess images[];
+		FretEngine engine;
+		PixFretImageAccess results[];
+	}
+
+}
@@ -36,32 +36,33 @@ package pixfret;
  *		b is a[0]
  *		e is a[1]
  */
-public class Function2 {
+public class Function2 implements ModelFunction {
 
     /**
-     * Evaluates the model at point x (may be mulidimensional).
-     * @param x double[] Point where we evaluate the model function.
-     * @param a double[] Model estimators.
-     * @return double
+     * Returns the number of parameters of the model.
+     * @return int
      */
-    double eval(double[] x, double[] a) {
-    	return a[0] * Math.exp(x[0]*a[1]);
+    public int getParameters() {
+        return 2;
     }
 
     /**
-     * Returns the kth component of the gradient df(x,a)/da_k
-     * @param x double[]
-     * @param a double[]
-     * @param ak int
-     * @return double
+     * Evaluates the model and its gradient at the points x[offset..offset+n-1].
+     * @param x double[] Points where we evaluate the model function.
+     * @param offset int Index of the first point.
+     * @param n int Number of points.
+     * @param a double[] Model estimators.
+     * @param y double[] Output, y[i] is the value at x[offset+i].
+     * @param dyda double[][] Output, dyda[k][i] is df/da_k at x[offset+i].
      */
-    double grad(double[] x, double[] a, int ak) {
-    	switch(ak) {
-    		case 0:
-    			return Math.exp(x[0]*a[1]);
-     		default:
-   				return a[0] * x[0] * Math.exp(x[0]*a[1]);
-     	}
+    public void eval(double[] x, int offset, int n, double[] a, double[] y, double[][] dyda) {
+        for (int i = 0; i < n; i++) {
+            double xi = x[offset+i];
+            double ex = Math.exp(xi*a[1]);
+            y[i] = a[0] * ex;
+            dyda[0][i] = ex;
+            dyda[1][i] = a[0] * xi * ex;
+        }
     }
 
 }
@@ -23,34 +23,40 @@
  */
 package pixfret;
 
-public class Function3 {
+/**
+ * Model of the exponential bleed-through: BT = a + b * exp(e*x)
+ *		a is a[0]
+ *		b is a[1]
+ *		e is a[2]
+ */
+public class Function3 implements ModelFunction {
 
     /**
-     * Evaluates the model at point x (may be mulidimensional).
-     * @param x double[] Point where we evaluate the model function.
-     * @param a double[] Model estimators.
-     * @return double
+     * Returns the number of parameters of the model.
+     * @return int
      */
-    double eval(double[] x, double[] a) {
-    	return a[0] + a[1] * (Math.exp(x[0]*a[2]));
+    public int getParameters() {
+        return 3;
     }
 
     /**
-     * Returns the kth component of the gradient df(x,a)/da_k
-     * @param x double[]
-     * @param a double[]
-     * @param ak int
-     * @return double
+     * Evaluates the model and its gradient at the points x[offset..offset+n-1].
+     * @param x double[] Points where we evaluate the model function.
+     * @param offset int Index of the first point.
+     * @param n int Number of points.
+     * @param a double[] Model estimators.
+     * @param y double[] Output, y[i] is the value at x[offset+i].
+     * @param dyda double[][] Output, dyda[k][i] is df/da_k at x[offset+i].
      */
-    double grad(double[] x, double[] a, int ak) {
-    	
-    	switch(ak) {
-    		case 0:
-    			return 1.0;
-    		case 1:
-    			return Math.exp(x[0]*a[2]);
-     		default:
-   				return a[1] * x[0] * Math.exp(x[0]*a[2]);
-     	}
+    public void eval(double[] x, int offset, int n, double[] a, double[] y, double[][] dyda) {
+        for (int i = 0; i < n; i++) {
+            double xi = x[offset+i];
+            double ex = Math.exp(xi*a[2]);
+            y[i] = a[0] + a[1] * ex;
+            dyda[0][i] = 1.0;
+            dyda[1][i] = ex;
+            dyda[2][i] = a[1] * xi * ex;
+        }
     }
+
 }
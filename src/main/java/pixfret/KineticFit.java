@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+/**
+* Pixel by pixel fit of a kinetic model to a time series of images, e.g.
+* the NFRET images of a biosensor before and after a stimulation.
+*
+* The model is the mono-exponential rise of ExponentialRise. The pixels
+* are processed in bands by the shared pool: the traces of a band are
+* gathered from the frames in one pass, then fitted one after the other by
+* a Levenberg-Marquardt workspace which belongs to the thread, so the fits
+* do not allocate. The samples which are not finite are ignored, and the
+* pixels without signal, e.g. zero in all the frames because they were
+* under the thresholds, receive NaN in all the maps.
+*/
+public class KineticFit {
+
+	public static final int BASELINE	= 0;
+	public static final int AMPLITUDE	= 1;
+	public static final int RATE		= 2;
+	public static final int CHI2		= 3;
+
+	public static final String[] NAMES = {"Baseline", "Amplitude", "Rate", "Chi2"};
+
+	private static final int BAND 		= 256;		// number of pixels per task
+	private static final int ITMAX 		= 50;
+	private static final double LAMBDA 	= 0.001;
+	private static final boolean FIXED_BASELINE[] = {false, true, true};
+
+	private double times[];
+	private ExponentialRise model;
+	private boolean fixedBaseline = false;
+	private int itmax = ITMAX;
+
+	/**
+	* Constructor.
+	*
+	* @param times		time of each frame
+	* @param t0			time of the stimulation, the trace is flat before
+	*/
+	public KineticFit(double times[], double t0) {
+		this.times = times.clone();
+		this.model = new ExponentialRise(t0);
+	}
+
+	/**
+	* Hold the baseline to the mean of the samples before the stimulation,
+	* only the amplitude and the rate are fitted.
+	*/
+	public void setFixedBaseline(boolean fixedBaseline) {
+		this.fixedBaseline = fixedBaseline;
+	}
+
+	/**
+	* Set the maximum number of iterations of each fit.
+	*/
+	public void setIterations(int itmax) {
+		this.itmax = itmax;
+	}
+
+	/**
+	* Fit all the pixels.
+	*
+	* @param frames		frames[t] are the nx*ny pixels at the time t
+	* @return	the maps {BASELINE, AMPLITUDE, RATE, CHI2}, the chi2 is the
+	*			residual sum of squares divided by the degrees of freedom
+	*/
+	public PixFretImageAccess[] fit(final float frames[][], int nx, int ny) {
+		final int nt = times.length;
+		final int size = nx * ny;
+		final PixFretImageAccess maps[] = new PixFretImageAccess[NAMES.length];
+		for(int k=0; k<maps.length; k++)
+			maps[k] = new PixFretImageAccess(nx, ny);
+
+		final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+			protected Workspace initialValue() {
+				return new Workspace(nt);
+			}
+		};
+
+		Parallel.forEachBand(size, BAND, new Parallel.Band() {
+			public void run(int band, int from, int to) {
+				Workspace ws = workspaces.get();
+				int n = to - from;
+				for(int t=0; t<nt; t++) {
+					float frame[] = frames[t];
+					for(int p=0; p<n; p++)
+						ws.traces[p*nt+t] = frame[from+p];
+				}
+				for(int p=0; p<n; p++) {
+					System.arraycopy(ws.traces, p*nt, ws.y, 0, nt);
+					boolean ok = fit(ws);
+					for(int k=0; k<maps.length; k++)
+						maps[k].pixels[from+p] = ok ? (float)ws.result[k] : Float.NaN;
+				}
+			}
+		});
+		return maps;
+	}
+
+	/**
+	* Fit the trace ws.y, return false if there is no signal or if the
+	* fit does not give finite values.
+	*/
+	private boolean fit(Workspace ws) {
+		int nt = times.length;
+		double t0 = model.getStimulation();
+		double y[] = ws.y;
+		double w[] = ws.w;
+		double a[] = ws.a;
+
+		int n = 0;
+		int before = 0;
+		int after = 0;
+		boolean signal = false;
+		double base = 0.0;
+		for(int t=0; t<nt; t++) {
+			boolean finite = !Double.isNaN(y[t]) && !Double.isInfinite(y[t]);
+			w[t] = finite ? 1.0 : 0.0;
+			if (!finite) {
+				y[t] = 0.0;		// NaN * 0 is NaN in the sums of the fit
+				continue;
+			}
+			n++;
+			if (y[t] != 0.0)
+				signal = true;
+			if (times[t] <= t0) {
+				base += y[t];
+				before++;
+			}
+			else {
+				after++;
+			}
+		}
+		int nfit = (fixedBaseline ? 2 : 3);
+		if (!signal || after < 2 || n <= nfit || (fixedBaseline && before == 0))
+			return false;
+
+		// Initial guess: baseline before t0, plateau on the last quarter of
+		// the samples after t0, rate from the time of the half rise
+		if (before > 0) {
+			base /= before;
+		}
+		else {
+			for(int t=0; t<nt; t++)
+				if (w[t] > 0.0) {
+					base = y[t];
+					break;
+				}
+		}
+		int tail = Math.max(1, after / 4);
+		double plateau = 0.0;
+		int count = 0;
+		for(int t=nt-1; t>=0 && count<tail; t--)
+			if (w[t] > 0.0 && times[t] > t0) {
+				plateau += y[t];
+				count++;
+			}
+		plateau /= count;
+		double amplitude = plateau - base;
+		double span = times[nt-1] - t0;
+		double rate = (span > 0.0 ? 3.0 / span : 1.0);
+		for(int t=0; t<nt; t++)
+			if (w[t] > 0.0 && times[t] > t0 && (y[t] - base) * amplitude >= 0.5 * amplitude * amplitude) {
+				rate = Math.log(2.0) / (times[t] - t0);
+				break;
+			}
+		a[0] = base;
+		a[1] = amplitude;
+		a[2] = rate;
+
+		ws.lm.fit(times, y, w, nt, a, fixedBaseline ? FIXED_BASELINE : null, model, LAMBDA, itmax);
+		ws.result[BASELINE] 	= a[0];
+		ws.result[AMPLITUDE] 	= a[1];
+		ws.result[RATE] 		= a[2];
+		ws.result[CHI2] 		= ws.lm.getChiSquare() / (n - nfit);
+		for(int k=0; k<ws.result.length; k++)
+			if (Double.isNaN(ws.result[k]) || Double.isInfinite(ws.result[k]))
+				return false;
+		return true;
+	}
+
+	/**
+	* Buffers of a thread: the traces of a band and the fit of one trace.
+	*/
+	private static class Workspace {
+		LevenbergMarquardt lm = new LevenbergMarquardt(3);
+		double traces[];
+		double y[];
+		double w[];
+		double a[] = new double[3];
+		double result[] = new double[NAMES.length];
+
+		Workspace(int nt) {
+			traces = new double[BAND * nt];
+			y = new double[nt];
+			w = new double[nt];
+		}
+	}
+
+}
@@ -35,6 +35,208 @@ package pixfret;
 public class LevenbergMarquardt {
 
     private static final int ITMAX = 100;
+    private static final int BLOCK = 256;       // number of points evaluated per call of the model
+
+    private int ma;
+    private Cholesky cholesky;
+    private double[][] covar;
+    private double[][] alpha;
+    private double[] beta;
+    private double[] atry;
+    private double[] da;
+    private double[] ymod;
+    private double[][] dyda;
+    private int[] free;
+    private double chisq;
+    private double tolerance = 1e-6;
+
+    /**
+     * Workspace to fit repeatedly a model of ma parameters. The arrays are
+     * allocated once and the normal equations are factorized in place;
+     * fit() does not allocate.
+     * @param ma int Number of parameters of the model.
+     */
+    public LevenbergMarquardt(int ma) {
+        this.ma = ma;
+        cholesky = new Cholesky(ma);
+        covar = cholesky.getMatrix();
+        da = cholesky.getVector();
+        alpha = new double[ma][ma];
+        beta = new double[ma];
+        atry = new double[ma];
+        ymod = new double[BLOCK];
+        dyda = new double[ma][BLOCK];
+        free = new int[ma];
+    }
+
+    /**
+     * Returns the number of parameters of the workspace.
+     * @return int
+     */
+    public int getParameters() {
+        return ma;
+    }
+
+    /**
+     * Returns the Cholesky workspace of ma equations, it can be used for
+     * linear least squares between two fits.
+     * @return Cholesky
+     */
+    public Cholesky getCholesky() {
+        return cholesky;
+    }
+
+    /**
+     * Sets the relative decrease of chi2 under which an iteration is
+     * considered as converged, 1e-6 by default.
+     * @param tolerance double
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Returns the weighted chi2 of the last fit.
+     * @return double
+     */
+    public double getChiSquare() {
+        return chisq;
+    }
+
+    /**
+     * Levenberg-Marquardt fit of weighted data points: minimizes the sum
+     * of w[i]*(y[i]-f(x[i]))^2 over the n first points, the weights play
+     * the role of 1/sig^2, e.g. the counts of histogram bins. The
+     * parameters a are the initial guess on input and the best fit on
+     * output. The fit stops after itmax iterations or when chi2 decreased
+     * by less than the relative tolerance during 4 iterations.
+     * @param x double[]
+     * @param y double[]
+     * @param w double[]
+     * @param n int
+     * @param a double[]
+     * @param f ModelFunction
+     * @param alamda double
+     * @param itmax int
+     * @return int the number of iterations
+     */
+    public int fit(double x[], double y[], double w[], int n, double a[],
+                        ModelFunction f, double alamda, int itmax) {
+        return fit(x, y, w, n, a, null, f, alamda, itmax);
+    }
+
+    /**
+     * Same as fit(x, y, w, n, a, f, alamda, itmax), the parameters l with
+     * ia[l] false are held fixed at their input values; ia null fits all
+     * the parameters.
+     * @param x double[]
+     * @param y double[]
+     * @param w double[]
+     * @param n int
+     * @param a double[]
+     * @param ia boolean[]
+     * @param f ModelFunction
+     * @param alamda double
+     * @param itmax int
+     * @return int the number of iterations
+     */
+    public int fit(double x[], double y[], double w[], int n, double a[],
+                        boolean ia[], ModelFunction f, double alamda, int itmax) {
+        int mfit = 0;
+        for (int l = 0; l < ma; l++) {
+            if (ia == null || ia[l]) {
+                free[mfit++] = l;
+            }
+        }
+        for (int l = 0; l < ma; l++) {
+            atry[l] = a[l];
+        }
+        int rep = 0;
+        int iter = 0;
+        double ochisq = mrqcof(x, y, w, n, a, mfit, alpha, beta, f);
+        while (iter < itmax && rep < 4) {
+            iter++;
+            for (int j = 0; j < mfit; j++) {
+                for (int k = j; k < mfit; k++) {
+                    covar[j][k] = alpha[j][k];
+                }
+                covar[j][j] = alpha[j][j] * (1.0 + alamda);
+                da[j] = beta[j];
+            }
+            if (!cholesky.solve(mfit)) {
+                alamda *= 10.0;
+                rep = 0;
+                continue;
+            }
+            for (int j = 0; j < mfit; j++) {
+                atry[free[j]] = a[free[j]] + da[j];
+            }
+            double trial = mrqcof(x, y, w, n, atry, mfit, covar, da, f);
+            double eps = Math.abs(trial - ochisq);
+            if (trial < ochisq) {
+                //Success, accept the new solution.
+                alamda *= 0.1;
+                ochisq = trial;
+                for (int j = 0; j < mfit; j++) {
+                    for (int k = 0; k < mfit; k++) {
+                        alpha[j][k] = covar[j][k];
+                    }
+                    beta[j] = da[j];
+                    a[free[j]] = atry[free[j]];
+                }
+            }
+            else {
+                //Failure, increase alamda.
+                alamda *= 10.0;
+            }
+            if (eps <= tolerance * ochisq) {
+                rep++;
+            }
+            else {
+                rep = 0;
+            }
+        }
+        chisq = ochisq;
+        return iter;
+    }
+
+    /**
+     * Weighted version of mrqcof using the buffers of the workspace, on
+     * the mfit free parameters.
+     */
+    private double mrqcof(double x[], double y[], double w[], int n,
+                                double a[], int mfit, double alpha[][], double beta[],
+                                ModelFunction f) {
+        for (int j = 0; j < mfit; j++) {
+            for (int k = 0; k <= j; k++) {
+                alpha[j][k] = 0;
+            }
+            beta[j] = 0;
+        }
+        double chisq = 0;
+        for (int b = 0; b < n; b += BLOCK) {
+            int nb = Math.min(BLOCK, n - b);
+            f.eval(x, b, nb, a, ymod, dyda);
+            for (int i = 0; i < nb; i++) {
+                double wi = w[b+i];
+                double dy = y[b+i] - ymod[i];
+                for (int j = 0; j < mfit; j++) {
+                    double wt = dyda[free[j]][i] * wi;
+                    for (int k = 0; k <= j; k++) {
+                        alpha[j][k] += wt * dyda[free[k]][i];
+                    }
+                    beta[j] += dy * wt;
+                }
+                chisq += dy * dy * wi;
+            }
+        }
+        for (int j = 1; j < mfit; j++) {
+            for (int k = 0; k < j; k++) {
+                alpha[k][j] = alpha[j][k];
+            }
+        }
+        return chisq;
+    }
 
     /**
      * Calls method mrqMin(double x[], double y[], double sig[], double a[],
@@ -46,12 +248,12 @@ public class LevenbergMarquardt {
      * @param sig double[]
      * @param a double[]
      * @param ia boolean[]
-     * @param f Function
+     * @param f ModelFunction
      * @param alamda double
      * @return double
      */
     public static double mrqMin(double x[], double y[], double sig[], double a[],
-                                boolean ia[], Function f,
+                                boolean ia[], ModelFunction f,
                                 double alamda) {
         return mrqMin(x, y, sig, a, ia, f, alamda, ITMAX);
     }
@@ -64,7 +266,7 @@ public class LevenbergMarquardt {
      * true, entries those components of a that should be fitted for, and
      * by false, entries those components that should be held fixed at their
      * input values. The program returns  current best-fit values for the
-     * parameters a[1..ma], and chi2 = chisq. Supply a Function object, f,
+     * parameters a[1..ma], and chi2 = chisq. Supply a ModelFunction object, f,
      * that evaluates the fitting function y, and its derivatives dyda[1..ma]
      * with respect to the fitting parameters a at x. On the first call provide
      * an initial guess for the parameters a, and set alamda to some small
@@ -76,16 +278,19 @@ public class LevenbergMarquardt {
      * @param sig double[]
      * @param a double[]
      * @param ia boolean[]
-     * @param f Function
+     * @param f ModelFunction
      * @param alamda double
      * @param itmax int
      * @return double
      *
      * Daniel Sage: PixFRET modification:
      * return the number of iteration instead the chi.
+     *
+     * The workspace is allocated at each call, repeated fits should use
+     * an instance and fit().
      */
     public static int mrqMin(double x[], double y[], double sig[], double a[],
-                                boolean ia[], Function f,
+                                boolean ia[], ModelFunction f,
                                 double alamda, int itmax) {
 
         int rep = 0;
@@ -97,7 +302,8 @@ public class LevenbergMarquardt {
         double ochisq = 0, chisq;
 		int iter = 0;
 		
-        double[][] covar = new double[ma][ma];
+        Cholesky cholesky = new Cholesky(ma);
+        double[][] covar = cholesky.getMatrix();
         double[][] alpha = new double[ma][ma];
         double[] beta = new double[ma];
         double[] atry = new double[ma];
@@ -111,7 +317,7 @@ public class LevenbergMarquardt {
                 mfit++;
             }
         }
-        oneda = new double[mfit];
+        oneda = cholesky.getVector();
         chisq = mrqcof(x, y, sig, a, ia, alpha, beta, f);
         ochisq = chisq;
         for (j = 0; j < ma; j++) {
@@ -128,7 +334,7 @@ public class LevenbergMarquardt {
                 oneda[j] = beta[j];
             }
 
-            Cholesky.solve(covar, oneda, oneda); //Matrix solution.
+            cholesky.solve(mfit); //Matrix solution.
 
             for (j = 0; j < mfit; j++) {
                 da[j] = oneda[j];
@@ -197,14 +403,15 @@ public class LevenbergMarquardt {
     public static double mrqcof(double x[], double y[], double sig[],
                                 double a[], boolean ia[],
                                 double alpha[][], double beta[],
-                                Function f) {
+                                ModelFunction f) {
 
         int ndata = x.length;
         int ma = a.length;
         double chisq;
         int i, j, k, l, m, mfit = 0;
-        double ymod, wt, sig2i, dy;
-        double[] dyda = new double[ma];
+        double wt, sig2i, dy;
+        double[] ymod = new double[BLOCK];
+        double[][] dyda = new double[ma][BLOCK];
 
         for (j = 0; j < ma; j++) {
             if (ia[j]) {
@@ -222,30 +429,27 @@ public class LevenbergMarquardt {
 
         chisq = 0;
 
-        //Summation loop over all data.
-        for (i = 0; i < ndata; i++) {
-            double[] xi = new double[1];
-            xi[0] = x[i];
-            ymod = f.eval(xi, a);
-            for (k = 0; k < a.length; k++) {
-                dyda[k] = f.grad(xi, a, k);
-            }
-
-            sig2i = 1.0 / (sig[i] * sig[i]);
-            dy = y[i] - ymod;
-            for (j = 0, l = 0; l < ma; l++) {
-                if (ia[l]) {
-                    wt = dyda[l] * sig2i;
-                    for (k = 0, m = 0; m <= l; m++) {
-                        if (ia[m]) {
-                            alpha[j][k++] += wt * dyda[m];
+        //Summation loop over all data, by blocks of points.
+        for (int b = 0; b < ndata; b += BLOCK) {
+            int nb = Math.min(BLOCK, ndata - b);
+            f.eval(x, b, nb, a, ymod, dyda);
+            for (i = 0; i < nb; i++) {
+                sig2i = 1.0 / (sig[b+i] * sig[b+i]);
+                dy = y[b+i] - ymod[i];
+                for (j = 0, l = 0; l < ma; l++) {
+                    if (ia[l]) {
+                        wt = dyda[l][i] * sig2i;
+                        for (k = 0, m = 0; m <= l; m++) {
+                            if (ia[m]) {
+                                alpha[j][k++] += wt * dyda[m][i];
+                            }
                         }
+                        beta[j] += dy * wt;
+                        j++;
                     }
-                    beta[j] += dy * wt;
-                    j++;
                 }
+                chisq += dy * dy * sig2i; //And find chi2.
             }
-            chisq += dy * dy * sig2i; //And find chi2.
         }
 
         //Fill in the symmetric side of alpha
@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import ij.IJ;
+
+/**
+* Linear bleed-through: BT = a + b*x.
+*/
+public class LinearModel extends BleedThroughModel {
+
+	public String getName() {
+		return "Linear";
+	}
+
+	public String[] getParameterNames() {
+		return new String[] {"a", "b"};
+	}
+
+	public String getFormula(double a[], String variable) {
+		return IJ.d2s(a[0], 5) + term(a[1], " * " + variable);
+	}
+
+	public double eval(double a[], double x) {
+		return a[0] + a[1] * x;
+	}
+
+	public boolean isClosedForm() {
+		return true;
+	}
+
+	public boolean estimate(MomentTable table, int sel[], double a[]) {
+		double s[] = table.sum(sel[0], sel[1], sel[2], sel[3]);
+		return regression(s[MomentTable.N], s[MomentTable.SX], s[MomentTable.SY], s[MomentTable.SXX], s[MomentTable.SXY], a);
+	}
+
+	public boolean solve(double x[], double y[], double w[], int n, double a[], LevenbergMarquardt lm) {
+		double nb = 0.0;
+		double sumx = 0.0;
+		double sumy = 0.0;
+		double sumxx = 0.0;
+		double sumxy = 0.0;
+		for(int i=0; i<n; i++) {
+			nb    += w[i];
+			sumx  += w[i]*x[i];
+			sumy  += w[i]*y[i];
+			sumxx += w[i]*x[i]*x[i];
+			sumxy += w[i]*x[i]*y[i];
+		}
+		return regression(nb, sumx, sumy, sumxx, sumxy, a);
+	}
+
+	/**
+	* Weighted regression from the moments, a = {shift, slope}.
+	*/
+	static boolean regression(double nb, double sumx, double sumy, double sumxx, double sumxy, double a[]) {
+		if (nb <= 0.0)
+			return false;
+		double det = nb * sumxx - sumx * sumx;
+		if (det <= 0.0)
+			return false;
+		a[1] = (nb*sumxy - sumx*sumy) / det;
+		a[0] = (sumy - a[1] * sumx) / nb;
+		return true;
+	}
+
+	public Evaluator compile(float a[]) {
+		final float shift = a[0];
+		final float slope = a[1];
+		return new Evaluator() {
+			public void bleedThrough(float x[], float out[], int n) {
+				for(int i=0; i<n; i++)
+					out[i] = (shift + slope * x[i]) * x[i];
+			}
+		};
+	}
+
+}
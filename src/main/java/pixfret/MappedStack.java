@@ -0,0 +1,512 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+* Stack of planes read from a memory-mapped file: an uncompressed TIFF,
+* classic or BigTIFF, or a raw file of consecutive planes.
+*
+* The file is mapped by windows of at most 1 GB, which overlap by the size
+* of a plane so that each plane lies in one window. getPlane() returns a
+* read-only view of the plane in its window, a ByteBuffer, ShortBuffer or
+* FloatBuffer for the 8, 16 and 32-bit data, without copy: the pages of
+* the plane are read by the system when the view is read, and stay in the
+* page cache, not in the heap.
+*
+* The planes of a TIFF are those of its image file directories. The large
+* stacks written by ImageJ have a single directory and the number of
+* planes in their description, their planes are contiguous. The planes
+* whose strips are not contiguous are copied into a heap buffer.
+*
+* The small files can rather be loaded in the heap by a single read, see
+* loadTiff(), e.g. on a network file system where each page fault of a
+* mapping costs a round trip and blocks the thread.
+*/
+public class MappedStack implements Closeable {
+
+	private static final long WINDOW = 1L << 30;		// maximal size of a mapped window
+
+	private File file;
+	private FileChannel channel;
+	private int nx;
+	private int ny;
+	private int bitDepth;
+	private ByteOrder order;
+	private int size;
+	private long planeBytes;
+	private long offsets[];				// offset of each plane
+	private long strips[][];			// {offsets, byte counts} of the planes not contiguous, else null
+	private long step;					// distance between two windows
+	private ByteBuffer windows[];
+	private ByteBuffer data = null;		// the whole file if loaded in the heap
+
+	/**
+	* Open an uncompressed TIFF file of 8-bit, 16-bit or 32-bit float gray
+	* planes.
+	*/
+	public static MappedStack openTiff(File file) throws IOException {
+		MappedStack stack = new MappedStack(file);
+		try {
+			stack.readTiff();
+			stack.init();
+		}
+		catch(IOException e) {
+			stack.close();
+			throw e;
+		}
+		return stack;
+	}
+
+	/**
+	* Load a whole uncompressed TIFF file in the heap by a single read and
+	* close it, the planes are views of the heap buffer.
+	*/
+	public static MappedStack loadTiff(File file) throws IOException {
+		MappedStack stack = new MappedStack(file);
+		try {
+			long length = stack.channel.size();
+			if (length > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to be loaded.");
+			ByteBuffer data = ByteBuffer.allocate((int)length);
+			while (data.hasRemaining())
+				if (stack.channel.read(data, data.position()) < 0)
+					throw new EOFException("Unexpected end of " + file);
+			data.flip();
+			stack.data = data;
+			stack.readTiff();
+			stack.init();
+		}
+		finally {
+			stack.channel.close();
+		}
+		return stack;
+	}
+
+	/**
+	* Open a raw file of consecutive planes.
+	*
+	* @param file		the file
+	* @param nx			width of the planes
+	* @param ny			height of the planes
+	* @param bitDepth	8, 16 (unsigned) or 32 (float)
+	* @param offset		offset of the first plane
+	* @param order		byte order of the 16-bit and 32-bit data
+	*/
+	public static MappedStack openRaw(File file, int nx, int ny, int bitDepth, long offset, ByteOrder order) throws IOException {
+		if (nx < 1 || ny < 1)
+			throw new IllegalArgumentException("MappedStack: empty plane.");
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IllegalArgumentException("MappedStack: unsupported bit depth " + bitDepth + ".");
+		MappedStack stack = new MappedStack(file);
+		stack.nx = nx;
+		stack.ny = ny;
+		stack.bitDepth = bitDepth;
+		stack.order = order;
+		stack.planeBytes = (long)nx * ny * (bitDepth / 8);
+		int n = (int)Math.max(0, (stack.channel.size() - offset) / stack.planeBytes);
+		stack.offsets = new long[n];
+		for(int k=0; k<n; k++)
+			stack.offsets[k] = offset + k * stack.planeBytes;
+		stack.size = n;
+		stack.init();
+		return stack;
+	}
+
+	private MappedStack(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	* Return the width of the planes.
+	*/
+	public int getWidth() {
+		return nx;
+	}
+
+	/**
+	* Return the height of the planes.
+	*/
+	public int getHeight() {
+		return ny;
+	}
+
+	/**
+	* Return the number of planes.
+	*/
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	* Return the bit depth of the planes: 8, 16 or 32.
+	*/
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	/**
+	* Return a read-only view of a plane: a ByteBuffer, a ShortBuffer or a
+	* FloatBuffer of nx*ny values for the bit depths 8, 16 and 32.
+	*
+	* @param index		index of the plane, from 0
+	*/
+	public Buffer getPlane(int index) throws IOException {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("getPlane: " + index + " not in [0, " + size + "[.");
+		ByteBuffer bytes;
+		if (strips != null && strips[index] != null) {
+			bytes = gather(strips[index]);
+		}
+		else {
+			long offset = offsets[index];
+			int w = (int)(offset / step);
+			ByteBuffer window = getWindow(w).duplicate();
+			window.position((int)(offset - w * step));
+			window.limit((int)(offset - w * step + planeBytes));
+			bytes = window.slice();
+		}
+		bytes.order(order);
+		switch(bitDepth) {
+			case 8:
+				return bytes.asReadOnlyBuffer();
+			case 16:
+				return bytes.asShortBuffer().asReadOnlyBuffer();
+			default:
+				return bytes.asFloatBuffer().asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	* Read a plane into a new image.
+	*/
+	public PixFretImageAccess read(int index) throws IOException {
+		return new PixFretImageAccess(getPlane(index), nx, ny);
+	}
+
+	/**
+	* Close the file. The views already returned stay valid until they
+	* are garbage collected.
+	*/
+	public void close() throws IOException {
+		windows = null;
+		channel.close();
+	}
+
+	/**
+	* Return the window w, mapped on the first call.
+	*/
+	private synchronized ByteBuffer getWindow(int w) throws IOException {
+		if (windows == null)
+			throw new IOException("The file " + file + " is closed.");
+		if (windows[w] == null) {
+			long start = w * step;
+			long length = Math.min(channel.size() - start, step + planeBytes);
+			windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		}
+		return windows[w];
+	}
+
+	/**
+	* Copy the strips of a plane which are not contiguous.
+	*/
+	private ByteBuffer gather(long plane[]) throws IOException {
+		int n = plane.length / 2;
+		ByteBuffer bytes = ByteBuffer.allocate((int)planeBytes);
+		for(int k=0; k<n && bytes.hasRemaining(); k++) {
+			ByteBuffer strip = bytes.duplicate();
+			strip.limit((int)Math.min(planeBytes, strip.position() + plane[n+k]));
+			copy(plane[k], strip);
+			bytes.position(strip.position());
+		}
+		bytes.rewind();
+		return bytes;
+	}
+
+	/**
+	* Fill the buffer by the bytes at pos.
+	*/
+	private void copy(long pos, ByteBuffer buffer) throws IOException {
+		if (data != null) {
+			if (pos + buffer.remaining() > data.limit())
+				throw new EOFException("Unexpected end of " + file);
+			ByteBuffer src = data.duplicate();
+			src.position((int)pos);
+			src.limit((int)pos + buffer.remaining());
+			buffer.put(src);
+			return;
+		}
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, pos);
+			if (read < 0)
+				throw new EOFException("Unexpected end of " + file);
+			pos += read;
+		}
+	}
+
+	/**
+	* Check the planes and prepare the windows, a single window for a file
+	* loaded in the heap.
+	*/
+	private void init() throws IOException {
+		if (planeBytes > Integer.MAX_VALUE / 2)
+			throw new IOException("The planes of " + file + " are too large.");
+		long length = (data != null ? data.limit() : channel.size());
+		for(int k=0; k<size; k++)
+			if ((strips == null || strips[k] == null) && offsets[k] + planeBytes > length)
+				throw new IOException("The plane " + (k+1) + " of " + file + " is truncated.");
+		if (data != null) {
+			step = length + 1;
+			windows = new ByteBuffer[] {data};
+			return;
+		}
+		step = Math.max(WINDOW, 2 * planeBytes) - planeBytes;
+		windows = new ByteBuffer[(int)(length / step) + 1];
+	}
+
+	// ************************************************************
+	// TIFF
+	// ************************************************************
+
+	private static final int TAG_WIDTH 			= 256;
+	private static final int TAG_HEIGHT 		= 257;
+	private static final int TAG_BITS 			= 258;
+	private static final int TAG_COMPRESSION 	= 259;
+	private static final int TAG_DESCRIPTION 	= 270;
+	private static final int TAG_STRIP_OFFSETS 	= 273;
+	private static final int TAG_SAMPLES 		= 277;
+	private static final int TAG_STRIP_COUNTS 	= 279;
+	private static final int TAG_TILE_WIDTH 	= 322;
+	private static final int TAG_SAMPLE_FORMAT 	= 339;
+
+	private boolean big;
+
+	/**
+	* Read the directories of the TIFF file.
+	*/
+	private void readTiff() throws IOException {
+		ByteBuffer header = read(0, 16);
+		if (header.get(0) == 'I' && header.get(1) == 'I')
+			order = ByteOrder.LITTLE_ENDIAN;
+		else if (header.get(0) == 'M' && header.get(1) == 'M')
+			order = ByteOrder.BIG_ENDIAN;
+		else
+			throw new IOException(file + " is not a TIFF file.");
+		header.order(order);
+		int version = header.getShort(2);
+		if (version == 42)
+			big = false;
+		else if (version == 43)
+			big = true;
+		else
+			throw new IOException(file + " is not a TIFF file.");
+		long ifd = (big ? header.getLong(8) : header.getInt(4) & 0xFFFFFFFFL);
+
+		long list[] = new long[16];
+		long stripList[][] = new long[16][];
+		String description = null;
+		int n = 0;
+		while (ifd != 0) {
+			ByteBuffer count = read(ifd, big ? 8 : 2);
+			long entries = (big ? count.getLong(0) : count.getShort(0) & 0xFFFF);
+			int entrySize = (big ? 20 : 12);
+			ByteBuffer dir = read(ifd + (big ? 8 : 2), (int)(entries * entrySize) + (big ? 8 : 4));
+			long width = 0, height = 0, bits = 1, compression = 1, samples = 1, format = 1;
+			long stripOffsets[] = null, stripCounts[] = null;
+			for(int e=0; e<entries; e++) {
+				int pos = e * entrySize;
+				int tag = dir.getShort(pos) & 0xFFFF;
+				switch(tag) {
+					case TAG_WIDTH: 		width = values(dir, pos)[0]; break;
+					case TAG_HEIGHT: 		height = values(dir, pos)[0]; break;
+					case TAG_BITS: 			bits = values(dir, pos)[0]; break;
+					case TAG_COMPRESSION: 	compression = values(dir, pos)[0]; break;
+					case TAG_SAMPLES: 		samples = values(dir, pos)[0]; break;
+					case TAG_SAMPLE_FORMAT: format = values(dir, pos)[0]; break;
+					case TAG_STRIP_OFFSETS: stripOffsets = values(dir, pos); break;
+					case TAG_STRIP_COUNTS: 	stripCounts = values(dir, pos); break;
+					case TAG_TILE_WIDTH:
+						throw new IOException("The tiled TIFF files are not supported.");
+					case TAG_DESCRIPTION:
+						if (n == 0)
+							description = ascii(dir, pos);
+						break;
+				}
+			}
+			long next = (big ? dir.getLong((int)(entries * entrySize)) : dir.getInt((int)(entries * entrySize)) & 0xFFFFFFFFL);
+
+			if (compression != 1)
+				throw new IOException("The compressed TIFF files are not supported.");
+			if (samples != 1)
+				throw new IOException("Only the gray level TIFF files are supported.");
+			if (!(bits == 8 && format == 1 || bits == 16 && format == 1 || bits == 32 && format == 3))
+				throw new IOException("Only the 8-bit, 16-bit and 32-bit float TIFF files are supported.");
+			if (stripOffsets == null || stripCounts == null || stripOffsets.length != stripCounts.length)
+				throw new IOException("Missing strips in " + file);
+			if (n == 0) {
+				nx = (int)width;
+				ny = (int)height;
+				bitDepth = (int)bits;
+				planeBytes = (long)nx * ny * (bitDepth / 8);
+			}
+			else if (width != nx || height != ny || bits != bitDepth) {
+				break;		// e.g. a thumbnail
+			}
+			if (n == list.length) {
+				list = Arrays.copyOf(list, 2*n);
+				stripList = Arrays.copyOf(stripList, 2*n);
+			}
+			list[n] = stripOffsets[0];
+			boolean contiguous = true;
+			for(int k=0; k<stripOffsets.length-1; k++)
+				if (stripOffsets[k+1] != stripOffsets[k] + stripCounts[k])
+					contiguous = false;
+			if (!contiguous) {
+				long plane[] = new long[2*stripOffsets.length];
+				System.arraycopy(stripOffsets, 0, plane, 0, stripOffsets.length);
+				System.arraycopy(stripCounts, 0, plane, stripOffsets.length, stripCounts.length);
+				stripList[n] = plane;
+			}
+			n++;
+			ifd = next;
+		}
+		if (n == 0)
+			throw new IOException("No image in " + file);
+
+		// Large stacks of ImageJ: a single directory, contiguous planes
+		int images = getImageJImages(description);
+		if (n == 1 && images > 1 && stripList[0] == null) {
+			long first = list[0];
+			n = (int)Math.min(images, (channel.size() - first) / planeBytes);
+			list = new long[n];
+			for(int k=0; k<n; k++)
+				list[k] = first + k * planeBytes;
+			stripList = new long[n][];
+		}
+		size = n;
+		offsets = Arrays.copyOf(list, n);
+		strips = Arrays.copyOf(stripList, n);
+	}
+
+	/**
+	* Return the number of images of an ImageJ description, 0 if none.
+	*/
+	private static int getImageJImages(String description) {
+		if (description == null || !description.startsWith("ImageJ"))
+			return 0;
+		String lines[] = description.split("\n");
+		for(int k=0; k<lines.length; k++)
+			if (lines[k].startsWith("images=")) {
+				try {
+					return Integer.parseInt(lines[k].substring(7).trim());
+				}
+				catch(NumberFormatException e) {
+					return 0;
+				}
+			}
+		return 0;
+	}
+
+	/**
+	* Return the values of the integer entry at pos of a directory.
+	*/
+	private long[] values(ByteBuffer dir, int pos) throws IOException {
+		int type = dir.getShort(pos+2) & 0xFFFF;
+		long count = (big ? dir.getLong(pos+4) : dir.getInt(pos+4) & 0xFFFFFFFFL);
+		int unit;
+		switch(type) {
+			case 1: unit = 1; break;		// BYTE
+			case 3: unit = 2; break;		// SHORT
+			case 4: unit = 4; break;		// LONG
+			case 16: unit = 8; break;		// LONG8
+			default: throw new IOException("Unexpected type " + type + " in " + file);
+		}
+		if (count < 1 || count > Integer.MAX_VALUE / 8)
+			throw new IOException("Unexpected count " + count + " in " + file);
+		int field = (big ? 8 : 4);
+		int start = pos + (big ? 12 : 8);
+		ByteBuffer data;
+		int base;
+		if (count * unit <= field) {
+			data = dir;
+			base = start;
+		}
+		else {
+			long offset = (big ? dir.getLong(start) : dir.getInt(start) & 0xFFFFFFFFL);
+			data = read(offset, (int)(count * unit));
+			base = 0;
+		}
+		long v[] = new long[(int)count];
+		for(int k=0; k<count; k++) {
+			switch(unit) {
+				case 1: v[k] = data.get(base+k) & 0xFF; break;
+				case 2: v[k] = data.getShort(base+2*k) & 0xFFFF; break;
+				case 4: v[k] = data.getInt(base+4*k) & 0xFFFFFFFFL; break;
+				default: v[k] = data.getLong(base+8*k); break;
+			}
+		}
+		return v;
+	}
+
+	/**
+	* Return the ASCII entry at pos of a directory.
+	*/
+	private String ascii(ByteBuffer dir, int pos) throws IOException {
+		long count = (big ? dir.getLong(pos+4) : dir.getInt(pos+4) & 0xFFFFFFFFL);
+		int field = (big ? 8 : 4);
+		int start = pos + (big ? 12 : 8);
+		if (count > 1 << 20)
+			return null;
+		byte bytes[] = new byte[(int)count];
+		if (count <= field) {
+			for(int k=0; k<count; k++)
+				bytes[k] = dir.get(start+k);
+		}
+		else {
+			long offset = (big ? dir.getLong(start) : dir.getInt(start) & 0xFFFFFFFFL);
+			read(offset, (int)count).get(bytes);
+		}
+		int len = bytes.length;
+		while (len > 0 && bytes[len-1] == 0)
+			len--;
+		return new String(bytes, 0, len, "ISO-8859-1");
+	}
+
+	/**
+	* Read length bytes at offset.
+	*/
+	private ByteBuffer read(long offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(order == null ? ByteOrder.BIG_ENDIAN : order);
+		copy(offset, buffer);
+		buffer.rewind();
+		return buffer;
+	}
+
+}
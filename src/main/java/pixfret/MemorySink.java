@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+/**
+* Sink keeping the last output of each kind in memory, for the callers
+* which process the images themselves, e.g. in batch.
+*/
+public class MemorySink implements ResultSink {
+
+	private PixFretImageAccess images[] = new PixFretImageAccess[NAMES.length];
+	private String titles[] = new String[NAMES.length];
+	private boolean blurred;
+
+	/**
+	* Constructor.
+	*
+	* @param blurred	keep also the blurred donor and acceptor
+	*/
+	public MemorySink(boolean blurred) {
+		this.blurred = blurred;
+	}
+
+	/**
+	* Return true if the sink wants the output of this kind.
+	*/
+	public boolean accepts(int kind) {
+		return (kind == FRET || kind == NFRET || blurred);
+	}
+
+	/**
+	* Keep the output.
+	*/
+	public void write(int kind, String source, String title, PixFretImageAccess image) {
+		images[kind] = image;
+		titles[kind] = title;
+	}
+
+	/**
+	* Return the last output of this kind, null if none.
+	*/
+	public PixFretImageAccess getImage(int kind) {
+		return images[kind];
+	}
+
+	/**
+	* Return the title of the last output of this kind, null if none.
+	*/
+	public String getTitle(int kind) {
+		return titles[kind];
+	}
+
+}
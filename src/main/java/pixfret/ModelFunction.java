@@ -0,0 +1,52 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+/**
+ *
+ * <p>Title: ModelFunction interface</p>
+ * <p>Description: Model function fitted by the Levenberg-Marquardt method,
+ * evaluated on a block of data points at once. The values and the full
+ * Jacobian are computed in one call, so the terms shared by the value and
+ * the derivatives, e.g. an exponential, are computed once per point.</p>
+ */
+public interface ModelFunction {
+
+    /**
+     * Returns the number of parameters of the model.
+     * @return int
+     */
+    int getParameters();
+
+    /**
+     * Evaluates the model and its gradient at the points x[offset..offset+n-1].
+     * @param x double[] Points where we evaluate the model function.
+     * @param offset int Index of the first point.
+     * @param n int Number of points.
+     * @param a double[] Model estimators.
+     * @param y double[] Output, y[i] is the value at x[offset+i].
+     * @param dyda double[][] Output, dyda[k][i] is df/da_k at x[offset+i].
+     */
+    void eval(double[] x, int offset, int n, double[] a, double[] y, double[][] dyda);
+}
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+/**
+* Summed-area tables of the regression moments of a weighted scatter plot
+* sampled on a grid of nx x ny cells.
+*
+* Each cell accumulates the count n and the sums of x, y, x*x and x*y of
+* its points. After integrate(), the moments over any rectangle of cells
+* are obtained with four lookups, so the constant and linear least squares
+* fits of a rectangle cost O(1) whatever the number of points.
+*/
+public class MomentTable {
+
+	public static final int N 		= 0;
+	public static final int SX 		= 1;
+	public static final int SY 		= 2;
+	public static final int SXX 	= 3;
+	public static final int SXY 	= 4;
+	public static final int MOMENTS	= 5;
+
+	private int nx;
+	private int ny;
+	private double table[][];		// MOMENTS x (nx+1)*(ny+1), zero first row and column
+
+	/**
+	* Constructor, empty table of nx x ny cells.
+	*/
+	public MomentTable(int nx, int ny) {
+		this.nx = nx;
+		this.ny = ny;
+		table = new double[MOMENTS][(nx+1)*(ny+1)];
+	}
+
+	/**
+	* Return the number of cells along X.
+	*/
+	public int getWidth() {
+		return nx;
+	}
+
+	/**
+	* Return the number of cells along Y.
+	*/
+	public int getHeight() {
+		return ny;
+	}
+
+	/**
+	* Add a weighted point (x, y) to the cell (i, j), the cell index is
+	* clipped to the table. Must be called before integrate().
+	*/
+	public void add(int i, int j, double w, double x, double y) {
+		i = Math.min(Math.max(i, 0), nx-1);
+		j = Math.min(Math.max(j, 0), ny-1);
+		int k = (i+1) + (nx+1)*(j+1);
+		table[N][k]   += w;
+		table[SX][k]  += w*x;
+		table[SY][k]  += w*y;
+		table[SXX][k] += w*x*x;
+		table[SXY][k] += w*x*y;
+	}
+
+	/**
+	* Turn the cell moments into summed-area tables.
+	*/
+	public void integrate() {
+		int mx = nx+1;
+		for(int m=0; m<MOMENTS; m++) {
+			double t[] = table[m];
+			for(int j=1; j<=ny; j++) {
+				double row = 0.0;
+				for(int i=1; i<=nx; i++) {
+					row += t[i + mx*j];
+					t[i + mx*j] = row + t[i + mx*(j-1)];
+				}
+			}
+		}
+	}
+
+	/**
+	* Return a moment summed over the cells [i0, i1[ x [j0, j1[, the bounds
+	* are clipped to the table.
+	*/
+	public double sum(int moment, int i0, int j0, int i1, int j1) {
+		i0 = Math.min(Math.max(i0, 0), nx);
+		i1 = Math.min(Math.max(i1, 0), nx);
+		j0 = Math.min(Math.max(j0, 0), ny);
+		j1 = Math.min(Math.max(j1, 0), ny);
+		if (i1 <= i0 || j1 <= j0)
+			return 0.0;
+		int mx = nx+1;
+		double t[] = table[moment];
+		return t[i1 + mx*j1] - t[i0 + mx*j1] - t[i1 + mx*j0] + t[i0 + mx*j0];
+	}
+
+	/**
+	* Return all the moments summed over the cells [i0, i1[ x [j0, j1[.
+	*/
+	public double[] sum(int i0, int j0, int i1, int j1) {
+		double s[] = new double[MOMENTS];
+		for(int m=0; m<MOMENTS; m++)
+			s[m] = sum(m, i0, j0, i1, j1);
+		return s;
+	}
+
+}
@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* Shared pool of worker threads used by the PixFRET computations.
+*
+* The work is split into bands of a fixed size which do not depend on the
+* number of threads, so that the results of a reduction over the bands are
+* identical whatever the machine. The calling thread takes part in the work
+* and only waits for the bands already started by the helpers, which allows
+* to call these methods from a worker thread without deadlock.
+*/
+public final class Parallel {
+
+	private static ExecutorService executor = null;
+	private static final ThreadLocal<Boolean> worker = new ThreadLocal<Boolean>();
+
+	/**
+	* Task applied on a band [from, to[ of the work.
+	*/
+	public interface Band {
+		void run(int band, int from, int to) throws Exception;
+	}
+
+	/**
+	* Return the number of worker threads.
+	*/
+	public static int getThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	* Return the shared executor, created on the first call.
+	*/
+	public static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final AtomicInteger count = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(getThreads(), new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							worker.set(Boolean.TRUE);
+							r.run();
+						}
+					}, "PixFRET-worker-" + count.incrementAndGet());
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	* Return true if the current thread is a worker of the shared executor.
+	*/
+	public static boolean isWorker() {
+		return worker.get() != null;
+	}
+
+	/**
+	* Return the number of bands of size bandSize to cover n items.
+	*/
+	public static int getBands(int n, int bandSize) {
+		return (n + bandSize - 1) / bandSize;
+	}
+
+	/**
+	* Run the task on all the bands of size bandSize covering [0, n[ and
+	* wait for the end. The first exception thrown by a band is rethrown.
+	*/
+	public static void forEachBand(final int n, final int bandSize, final Band task) {
+		final int nbands = getBands(n, bandSize);
+		if (nbands <= 0)
+			return;
+		final AtomicInteger next = new AtomicInteger(0);
+		final CountDownLatch done = new CountDownLatch(nbands);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Runnable runner = new Runnable() {
+			public void run() {
+				int b;
+				while ((b = next.getAndIncrement()) < nbands) {
+					try {
+						if (error.get() == null)
+							task.run(b, b*bandSize, Math.min(n, (b+1)*bandSize));
+					}
+					catch(Throwable t) {
+						error.compareAndSet(null, t);
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			}
+		};
+		int helpers = Math.min(nbands, getThreads()) - 1;
+		for (int k=0; k<helpers; k++)
+			getExecutor().execute(runner);
+		runner.run();
+		try {
+			done.await();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted");
+		}
+		Throwable t = error.get();
+		if (t instanceof RuntimeException)
+			throw (RuntimeException)t;
+		if (t instanceof Error)
+			throw (Error)t;
+		if (t != null)
+			throw new RuntimeException(t);
+	}
+
+}
@@ -0,0 +1,302 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* Staged pipeline: the items go through a chain of stages connected by
+* bounded queues, each stage runs its task on its own threads.
+*
+* The items are numbered from 0 by the caller, the first stage receives
+* the numbers as Integer. A stage of one thread can be ordered: it
+* processes the items in the order of their numbers whatever the order in
+* which the parallel stages before it finish them, e.g. to write the
+* frames in order. The number of items in the pipeline is bounded, so an
+* item slower than the others does not let the next ones accumulate.
+*
+* The stages of I/O can run on virtual threads, see Threads, to have
+* many reads or writes in flight.
+*
+* For each stage, the time spent in the task is measured; the utilization
+* is this busy time divided by the number of threads times the duration
+* of the run. A stage near 100% is the bottleneck, the stages before it
+* wait on a full queue and the stages after it on an empty one.
+*/
+public class Pipeline {
+
+	/**
+	* Task of a stage, returns the item given to the next stage.
+	*/
+	public interface Task {
+		Object run(Object item) throws Exception;
+	}
+
+	private static final Item END = new Item(-1, null);
+
+	private int capacity;
+	private int maxInFlight = 0;
+	private ArrayList<Stage> stages = new ArrayList<Stage>();
+	private volatile Throwable error = null;
+	private long duration = 0;
+
+	/**
+	* Constructor.
+	*
+	* @param capacity	capacity of the queues between the stages
+	*/
+	public Pipeline(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	* Add a stage at the end of the pipeline.
+	*
+	* @param name		name of the stage in the report
+	* @param threads	number of threads of the stage
+	* @param ordered	process the items in order, requires one thread
+	* @param task		the task
+	*/
+	public void addStage(String name, int threads, boolean ordered, Task task) {
+		addStage(name, threads, ordered, false, task);
+	}
+
+	/**
+	* Add a stage at the end of the pipeline.
+	*
+	* @param name		name of the stage in the report
+	* @param threads	number of threads of the stage
+	* @param ordered	process the items in order, requires one thread
+	* @param virtual	run the stage on virtual threads if available
+	* @param task		the task
+	*/
+	public void addStage(String name, int threads, boolean ordered, boolean virtual, Task task) {
+		if (ordered && threads != 1)
+			throw new IllegalArgumentException("An ordered stage has a single thread.");
+		stages.add(new Stage(name, Math.max(1, threads), ordered, virtual, task));
+	}
+
+	/**
+	* Set the maximal number of items in the pipeline, 0 for the number of
+	* threads plus the capacity of the queues.
+	*/
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = Math.max(0, maxInFlight);
+	}
+
+	/**
+	* Run the items 0 to n-1 through the stages and wait for the end. The
+	* first exception thrown by a task stops the pipeline and is rethrown.
+	*/
+	public void run(int n) throws Exception {
+		if (stages.isEmpty())
+			return;
+		error = null;
+		int threads = 0;
+		for(Stage stage : stages) {
+			stage.input = new ArrayBlockingQueue<Item>(capacity);
+			stage.busy.set(0);
+			stage.items.set(0);
+			threads += stage.threads;
+		}
+		final Semaphore inFlight = new Semaphore(maxInFlight > 0 ? maxInFlight : threads + capacity * stages.size());
+		final ArrayList<Thread> workers = new ArrayList<Thread>();
+		for(int s=0; s<stages.size(); s++) {
+			final Stage stage = stages.get(s);
+			final Stage next = (s < stages.size()-1 ? stages.get(s+1) : null);
+			final AtomicInteger alive = new AtomicInteger(stage.threads);
+			for(int k=0; k<stage.threads; k++) {
+				workers.add(Threads.newThread(new Runnable() {
+					public void run() {
+						work(stage, next, alive, inFlight);
+					}
+				}, "PixFRET-" + stage.name + "-" + (k+1), stage.virtual));
+			}
+		}
+
+		long start = System.nanoTime();
+		for(Thread t : workers)
+			t.start();
+		try {
+			BlockingQueue<Item> first = stages.get(0).input;
+			for(int i=0; i<n && error == null; i++) {
+				inFlight.acquire();
+				first.put(new Item(i, Integer.valueOf(i)));
+			}
+			for(int k=0; k<stages.get(0).threads; k++)
+				first.put(END);
+			for(Thread t : workers)
+				t.join();
+		}
+		catch(InterruptedException e) {
+			error = new CancellationException("Interrupted");
+			for(Thread t : workers)
+				t.interrupt();
+			Thread.currentThread().interrupt();
+		}
+		duration = System.nanoTime() - start;
+
+		Throwable t = error;
+		if (t instanceof Exception)
+			throw (Exception)t;
+		if (t instanceof Error)
+			throw (Error)t;
+	}
+
+	/**
+	* Loop of a thread of a stage.
+	*/
+	private void work(Stage stage, Stage next, AtomicInteger alive, Semaphore inFlight) {
+		TreeMap<Integer, Item> pending = new TreeMap<Integer, Item>();
+		int expected = 0;
+		try {
+			while (true) {
+				Item item = stage.input.take();
+				if (item == END)
+					break;
+				if (stage.ordered) {
+					pending.put(item.index, item);
+					while (!pending.isEmpty() && pending.firstKey() == expected) {
+						process(stage, next, pending.pollFirstEntry().getValue(), inFlight);
+						expected++;
+					}
+				}
+				else {
+					process(stage, next, item, inFlight);
+				}
+			}
+			for(Item item : pending.values())
+				process(stage, next, item, inFlight);
+			if (alive.decrementAndGet() == 0 && next != null)
+				for(int k=0; k<next.threads; k++)
+					next.input.put(END);
+		}
+		catch(InterruptedException e) {
+			fail(new CancellationException("Interrupted"));
+		}
+	}
+
+	/**
+	* Run the task on an item and give it to the next stage. After an
+	* error the items go through without being processed.
+	*/
+	private void process(Stage stage, Stage next, Item item, Semaphore inFlight) throws InterruptedException {
+		if (error == null && item.value != null) {
+			long start = System.nanoTime();
+			try {
+				item.value = stage.task.run(item.value);
+			}
+			catch(Throwable t) {
+				fail(t);
+				item.value = null;
+			}
+			stage.busy.addAndGet(System.nanoTime() - start);
+			stage.items.incrementAndGet();
+		}
+		else {
+			item.value = null;
+		}
+		if (next != null)
+			next.input.put(item);
+		else
+			inFlight.release();
+	}
+
+	/**
+	* Keep the first error.
+	*/
+	private synchronized void fail(Throwable t) {
+		if (error == null)
+			error = t;
+	}
+
+	/**
+	* Return the number of stages.
+	*/
+	public int getStages() {
+		return stages.size();
+	}
+
+	/**
+	* Return the utilization in [0, 1] of a stage during the last run.
+	*/
+	public double getUtilization(int stage) {
+		Stage s = stages.get(stage);
+		if (duration <= 0)
+			return 0.0;
+		return s.busy.get() / ((double)duration * s.threads);
+	}
+
+	/**
+	* Return the report of the last run: the threads, the items processed
+	* and the utilization of each stage.
+	*/
+	public String getReport() {
+		String report = "Pipeline " + (duration / 1000000) + " ms";
+		for(int s=0; s<stages.size(); s++) {
+			Stage stage = stages.get(s);
+			report += "\n  " + stage.name + ": " + stage.threads + (stage.virtual && Threads.hasVirtualThreads() ? " virtual" : "") + (stage.threads > 1 ? " threads, " : " thread, ")
+				+ stage.items.get() + " items, " + Math.round(100.0 * getUtilization(s)) + "% busy";
+		}
+		return report;
+	}
+
+	/**
+	* Item with its number.
+	*/
+	private static class Item {
+		int index;
+		Object value;
+
+		Item(int index, Object value) {
+			this.index = index;
+			this.value = value;
+		}
+	}
+
+	/**
+	* Stage of the pipeline.
+	*/
+	private static class Stage {
+		String name;
+		int threads;
+		boolean ordered;
+		boolean virtual;
+		Task task;
+		BlockingQueue<Item> input;
+		AtomicLong busy = new AtomicLong();
+		AtomicInteger items = new AtomicInteger();
+
+		Stage(String name, int threads, boolean ordered, boolean virtual, Task task) {
+			this.name = name;
+			this.threads = threads;
+			this.ordered = ordered;
+			this.virtual = virtual;
+			this.task = task;
+		}
+	}
+
+}
@@ -26,6 +26,7 @@ package pixfret;
 import ij.*;
 import ij.process.*;
 import java.awt.image.*;
+import java.nio.*;
 
 /**
 * PixFRET
@@ -51,6 +52,7 @@ public class PixFretImageAccess {
 	private int nx = 0;					// size in X axis
 	private int ny = 0;					// size in Y axis
 	private int size = 0;				// size = nx*ny
+	private int bitDepth = 32;			// bit depth of the source data
 
 	private float tolerance = 1e-6f;	// Tolerance for the initial value in the convolveIIR
 	private double logTolerance = Math.log(tolerance);
@@ -74,12 +76,14 @@ public class PixFretImageAccess {
 		size = nx*ny;
 		pixels = new float[size];
 		if (ip.getPixels() instanceof byte[]) {
+			bitDepth = 8;
 			byte[] bsrc = (byte[])ip.getPixels();
 			for (int k=0; k<size; k++)
 				pixels[k] = (float)(bsrc[k] & 0xFF);
 		
 		}	
 		else if (ip.getPixels() instanceof short[]) {
+			 bitDepth = 16;
 			 short[] ssrc = (short[])ip.getPixels();
 			 for (int k=0; k<size; k++)
 				pixels[k] = (float)(ssrc[k] & 0xFFFF);
@@ -96,6 +100,49 @@ public class PixFretImageAccess {
 	}
 
 
+	/**
+	* Creates a new object of the class PixFretImageAccess from a plane of
+	* nx*ny pixels, e.g. a view of a MappedStack.
+	*
+	* The pixels are read once from the buffer: a ByteBuffer of 8-bit
+	* unsigned data, a ShortBuffer of 16-bit unsigned data or a
+	* FloatBuffer. The position of the buffer is not changed.
+	*
+	* @param plane    the buffer of the pixels
+	* @param nx       the size of the image along the X-axis
+	* @param ny       the size of the image along the Y-axis
+	*/
+	public PixFretImageAccess(Buffer plane, int nx, int ny) {
+		this(nx, ny);
+		if (plane == null)
+			throw new
+				ArrayStoreException("Constructor: plane == null.");
+		if (plane.remaining() < size)
+			throw new
+				ArrayStoreException("Constructor: plane smaller than nx*ny.");
+		if (plane instanceof ByteBuffer) {
+			bitDepth = 8;
+			ByteBuffer bsrc = (ByteBuffer)plane;
+			int p = bsrc.position();
+			for (int k=0; k<size; k++)
+				pixels[k] = (float)(bsrc.get(p+k) & 0xFF);
+		}
+		else if (plane instanceof ShortBuffer) {
+			bitDepth = 16;
+			ShortBuffer ssrc = (ShortBuffer)plane;
+			int p = ssrc.position();
+			for (int k=0; k<size; k++)
+				pixels[k] = (float)(ssrc.get(p+k) & 0xFFFF);
+		}
+		else if (plane instanceof FloatBuffer) {
+			((FloatBuffer)plane).duplicate().get(pixels);
+		}
+		else {
+			throw new
+				ArrayStoreException("Constructor: Unexpected buffer type.");
+		}
+	}
+
 	/**
 	* Creates a new object of the class PixFretImageAccess.
 	*
@@ -136,6 +183,16 @@ public class PixFretImageAccess {
 		return ny;
 	}
 
+	/**
+	* Return the bit depth of the source data: 8 or 16 for integer data,
+	* 32 for float data or for computed images.
+	*
+	* @return     	the bit depth
+	*/
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
 	/**
 	* Return the maximum value of PixFretImageAccess.
 	*
@@ -178,6 +235,7 @@ public class PixFretImageAccess {
 	public PixFretImageAccess duplicate() {
 		PixFretImageAccess ia = new PixFretImageAccess(nx, ny);
 		System.arraycopy(pixels, 0, ia.pixels, 0, size);
+		ia.bitDepth = bitDepth;
 		return ia;
 	}
 
@@ -27,7 +27,9 @@ import javax.swing.*;
 import java.text.DecimalFormat;
 import java.awt.*;
 import java.awt.event.*;
-import ij.process.ColorProcessor;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.*;
 import ij.*;
 
 /**
@@ -50,24 +52,20 @@ import ij.*;
 
 public class Plot extends JPanel implements MouseListener, MouseMotionListener {
 
-	private final int	CST		= 0;		// Constant Model
-	private final int	LIN		= 1;		// Linear Model
-	private final int 	EXP 	= 2;		// Exponential Model
-
-	private final int	CHANNEL = 0;		// X axis
-	private final int	RATIO	= 1;		// Y axis
+	private static final int	CHANNEL = 0;		// X axis
+	private static final int	RATIO	= 1;		// Y axis
 
 	private final int LEFT 	= 60;
 	private final int TOP 	= 15;
 	private final int BOTTOM= 45;
 
-	final private	int bx = 256;					// size of the graph
-	final private	int by = 256;					// size of the graph
+	final private static int bx = 256;				// size of the graph
+	final private static int by = 256;				// size of the graph
 	
-	private Image image;					// contains an image of the graph
+	private static int colormap[];			// ARGB colors of the densities, white for 0
+
+	private static final Color colorModel[] = {Color.red, Color.blue, Color.green, Color.magenta, Color.orange};
 
-	private float[][] params	= new float[3][3];
-	
 	private boolean drag[] = {false, false, false, false};
 	private BleedThroughPanel dlg;
 	
@@ -77,20 +75,21 @@ public class Plot extends JPanel implements MouseListener, MouseMotionListener {
 	private float off[] 	= {0.0f, 0.0f};
 
 	private Font font = new Font("SansSerif",  Font.PLAIN, 11);
-	private boolean fit[] = {false, false, false};
+	private boolean fit[] = new boolean[BleedThroughModel.count()];
 	
 	private Color colorArea 	= new Color(164, 164, 32);
 	private Color colorSelected = new Color(255, 255, 64);
 	private DecimalFormat format3 = new DecimalFormat("000");
 	
-	private float y1linear=1.0f;
-	private float y2linear=1.0f;
 	JTextField[][] txtParams;
 	
 	private boolean drawScatteredPlot=false;
 
-	private	float valueChannel[];
-	private	float valueRatio[];
+	private Scene scene;						// current view of the scatter plot, null if none
+	private volatile int method = RobustFit.LEAST_SQUARES;
+	private double estimate[][] = new double[BleedThroughModel.count()][];	// fitted parameters in real units, null if no fit
+	private int generation = 0;					// incremented when the selection or the scene change
+	private Future<?> pending;					// last background task
 
 	/**
 	* Constructor.
@@ -139,369 +138,386 @@ public class Plot extends JPanel implements MouseListener, MouseMotionListener {
 	* Force the parameters to the value get from the GUI. Call by the click on the "Set" button.
 	*/
 	public void force() {
-		
-		// Constant
-		float value = getFloatValue(txtParams[0][0]);
-		float cst = (value - off[RATIO] ) / scale[RATIO];
-		params[0][0] = cst;
-		fit[0] = true;
-
-		// Linear
-		float valueShift = getFloatValue(txtParams[0][1]);
-		float valueSlope = getFloatValue(txtParams[1][1]);
-
-		float xr1 = 000 * scale[CHANNEL] + off[CHANNEL];
-		float xr2 = 256 * scale[CHANNEL] + off[CHANNEL];
-		
-		float yr1 = valueSlope*xr1 + valueShift;
-		float yr2 = valueSlope*xr2 + valueShift;
-
-		float x1 = (xr1 - off[CHANNEL] ) / scale[CHANNEL];
-		float x2 = (xr2 - off[CHANNEL] ) / scale[CHANNEL];
-		float y1 = (yr1 - off[RATIO] ) / scale[RATIO];
-		float y2 = (yr2 - off[RATIO] ) / scale[RATIO];
-		
-		float slope = (y2-y1) / (x2-x1);
-		float shift = (y1-valueSlope*x1);
-
-		params[1][1] = slope;
-		params[0][1] = shift;
-		fit[1] = true;
-		
-		// Expo
-		float valueA = getFloatValue(txtParams[0][2]);
-		float valueB = getFloatValue(txtParams[1][2]);
-		float valueE = getFloatValue(txtParams[2][2]);
-		float a = (valueA - off[RATIO] ) / scale[RATIO];
-		float b = (valueB - off[RATIO] ) / scale[RATIO];
-		float e = (valueE - off[CHANNEL] ) / scale[CHANNEL];
-		
-		params[0][2] = (float)a;
-		params[1][2] = (float)b;
-		params[2][2] = (float)e;
-		
+		for(int m=0; m<fit.length; m++) {
+			double a[] = new double[BleedThroughModel.get(m).getParameters()];
+			for(int p=0; p<a.length; p++)
+				a[p] = getFloatValue(txtParams[p][m]);
+			estimate[m] = a;
+			fit[m] = true;
+		}
 		repaint();
 	}
 			
 	/**
-	* Set a bleed array and repaint it.
+	* Set the bins of the scatter plot, fit the models and repaint it.
 	*/
-	public void set(/*int datab[][],*/ float[][] params, boolean fit[], float cmin, float cmax, float rmin, float rmax, float[] valueChannel, float[] valueRatio) {
-		
+	public void set(boolean fit[], float cmin, float cmax, float rmin, float rmax, float[] binChannel, float[] binRatio, int[] binCount) {
+		show(prepare(cmin, cmax, rmin, rmax, binChannel, binRatio, binCount), fit);
+	}
+
+	/**
+	* Build the scatter plot of the bins and fit the models on it. Does not
+	* modify the plot, so it can run in a background thread; the result is
+	* then shown by show() in the event dispatch thread.
+	*/
+	public Update prepare(float cmin, float cmax, float rmin, float rmax, float[] binChannel, float[] binRatio, int[] binCount) {
+		return prepare(cmin, cmax, rmin, rmax, binChannel, binRatio, binCount, true);
+	}
+
+	/**
+	* Build the scatter plot of the bins, and fit the models on it if fit
+	* is true. Without the fits, show() keeps the parameters displayed.
+	*/
+	public Update prepare(float cmin, float cmax, float rmin, float rmax, float[] binChannel, float[] binRatio, int[] binCount, boolean fit) {
+		Update update = new Update();
+		update.scene = new Scene(cmin, cmax, rmin, rmax, binChannel, binRatio, binCount, false);
+		if (fit && update.scene.table != null)
+			update.fits = fit(update.scene, new int[] {0, 0, bx, by}, method);
+		return update;
+	}
+
+	/**
+	* Show a scatter plot built by prepare(), must be called in the event
+	* dispatch thread. The pending fits of the previous plot are discarded.
+	*/
+	public void show(Update update, boolean fit[]) {
 		this.fit = fit;
-		this.params = params;
-		
-		hotspot[0].x = 0;
-		hotspot[0].y = 0;
-		
-		hotspot[1].x = 0;
-		hotspot[1].y = by;
-		
-		hotspot[2].x = bx;
-		hotspot[2].y = by;
-		
-		hotspot[3].x = bx;
-		hotspot[3].y = 0;
+		generation++;
+		setScene(update.scene);
+		if (update.fits != null)
+			apply(update.fits);
+		repaint();
+	}
 
-		this.valueChannel = valueChannel;
-		this.valueRatio = valueRatio;
-		
-		scale[CHANNEL] = 256f/(cmax-cmin);			// convert real to [256]
-		off[CHANNEL] = -scale[CHANNEL]*cmin;
-		scale[RATIO] = 256f/(rmax-rmin);
-		off[RATIO] = -scale[RATIO]*rmin;
+	/**
+	* Result of prepare(): the scene of the plot and the fits on it.
+	*/
+	public static class Update {
+		private Scene scene;
+		private Fits fits;
+	}
 
-		if (valueChannel != null) {
+	/**
+	* Data of a view of the scatter plot: the bins, the scale of the axes,
+	* the density image and the moment table. It is not modified once built.
+	*/
+	private static class Scene {
+		private float scale[] 	= new float[2];
+		private float off[] 	= new float[2];
+		private	float binChannel[];					// channel of the bins of the scatter plot
+		private	float binRatio[];					// ratio of the bins of the scatter plot
+		private	int binCount[];						// number of hits of the bins
+		private MomentTable table;					// moments of the bins on the pixels of the graph
+		private BufferedImage image;				// contains an image of the graph
+
+		/**
+		* Build the view [cmin, cmax] x [rmin, rmax], if crop is true the bins
+		* outside of the view are removed.
+		*/
+		private Scene(float cmin, float cmax, float rmin, float rmax, float[] binChannel, float[] binRatio, int[] binCount, boolean crop) {
+			scale[CHANNEL] = 256f/(cmax-cmin);			// convert real to [256]
+			off[CHANNEL] = -scale[CHANNEL]*cmin;
+			scale[RATIO] = 256f/(rmax-rmin);
+			off[RATIO] = -scale[RATIO]*rmin;
+			if (binChannel == null)
+				return;
+			if (crop) {
+				int count=0;
+				for(int k=0; k<binChannel.length; k++)
+					if (cmin <= binChannel[k] && binChannel[k] < cmax)
+					if (rmin <= binRatio[k] && binRatio[k] < rmax)
+						count++;
+				this.binChannel = new float[count];
+				this.binRatio = new float[count];
+				this.binCount = new int[count];
+				count = 0;
+				for(int k=0; k<binChannel.length; k++)
+					if (cmin <= binChannel[k] && binChannel[k] < cmax)
+					if (rmin <= binRatio[k] && binRatio[k] < rmax) {
+						this.binChannel[count] = binChannel[k];
+						this.binRatio[count] = binRatio[k];
+						this.binCount[count] = binCount[k];
+						count++;
+					}
+			}
+			else {
+				this.binChannel = binChannel;
+				this.binRatio = binRatio;
+				this.binCount = binCount;
+			}
 			createImage();
-			fitConstant();
-			fitLinear();
-			fitExpo();
+		}
+
+		/*
+		* Create an image containing a pseudo-color representation of the
+		* scattered plot, the color of a pixel is the log of the number of
+		* points it contains.
+		*/
+		private void createImage() {
+			int density[] = new int[bx*by];
+			table = new MomentTable(bx, by);
+			for(int k = 0; k < binChannel.length; k++) {
+				int c = (int)(scale[CHANNEL] * binChannel[k] + off[CHANNEL]);
+				int r = (int)(scale[RATIO] * binRatio[k] + off[RATIO]);
+				if (c >= 0 && c < bx && r >= 0 && r < by)
+					density[c + bx*(by-1-r)] += binCount[k];
+				table.add(c, r, binCount[k], binChannel[k], binRatio[k]);
+			}
+			table.integrate();
+
+			image = new BufferedImage(bx, by, BufferedImage.TYPE_INT_ARGB);
+			int pixels[] = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+			int max = 1;
+			for(int k = 0; k < density.length; k++)
+				if (density[k] > max)
+					max = density[k];
+			int lut[] = getColormap();
+			double norm = (lut.length - 2) / Math.log(max + 1.0);
+			for(int k = 0; k < density.length; k++)
+				pixels[k] = (density[k] == 0 ? lut[0] : lut[1 + (int)(Math.log(density[k] + 1.0) * norm)]);
 		}
 	}
-	
+
+	/**
+	* Parameters of the models fitted on a selection.
+	*/
+	private static class Fits {
+		private boolean ok[] = new boolean[BleedThroughModel.count()];
+		private double real[][] = new double[BleedThroughModel.count()][];	// [model][param] in real units, null if no fit
+	}
+
 	/**
 	* Reset.
 	*/
 	public void reset() {
-		scale[CHANNEL] = 1.0f;
-		scale[RATIO] = 1.0f;
-		off[CHANNEL] = 0.0f;
-		off[RATIO] = 0.0f;
-		
-		hotspot[0].x = 0;
-		hotspot[0].y = 0;
-		
-		hotspot[1].x = 0;
-		hotspot[1].y = by;
-		
-		hotspot[2].x = bx;
-		hotspot[2].y = by;
-		
-		hotspot[3].x = bx;
-		hotspot[3].y = 0;
+		generation++;
+		setScene(null);
 	}
-	
-	/*
-	* Create an image containing a pseudo-color representation of the
-	* scattered plot.
-	*/
-	public void createImage() {
-
-		rescale(hotspot[0].x, hotspot[2].x, hotspot[0].y, hotspot[2].y, bx, by);
 
-		ColorProcessor cp2 = new ColorProcessor(bx, by);
-		for(int k = 0; k < valueChannel.length; k++) {
-			int c = (int)(scale[CHANNEL] * valueChannel[k] + off[CHANNEL]);
-			int r = (int)(scale[RATIO] * valueRatio[k] + off[RATIO]);
-			cp2.putPixel(c, by-r, 0xFFFFFFFF);
+	/**
+	* Set the current scene and select all of it.
+	*/
+	private void setScene(Scene scene) {
+		this.scene = scene;
+		if (scene == null) {
+			scale = new float[] {1.0f, 1.0f};
+			off = new float[] {0.0f, 0.0f};
+			estimate = new double[BleedThroughModel.count()][];
+		}
+		else {
+			scale = scene.scale;
+			off = scene.off;
 		}
-		cp2.invert();
-
-		ImagePlus cimp2 = new ImagePlus("ratio/channel", cp2);
-		image = cimp2.getImage();
 
-		image = cimp2.getImage();
 		hotspot[0].x = 0;
 		hotspot[0].y = 0;
 		
 		hotspot[1].x = 0;
-		hotspot[1].y = bx;
+		hotspot[1].y = by;
 		
 		hotspot[2].x = bx;
 		hotspot[2].y = by;
 		
-		hotspot[3].x = by;
+		hotspot[3].x = bx;
 		hotspot[3].y = 0;
-
-		repaint();
 	}
 
 	/**
-	* Rescale the graph in function of the hotspot.
+	* Show the fitted parameters.
 	*/
-	private void rescale(int xmin, int xmax, int ymin, int ymax, int bx, int by) {
-		int nx = 256; //datab.length;
-		int ny = 256; //datab[0].length;
-
-		float hx1 = (xmin-off[CHANNEL]) / scale[CHANNEL];
-		float hx2 = (xmax-off[CHANNEL]) / scale[CHANNEL];
-
-		float hy1 = ((by-ymax)-off[RATIO]) / scale[RATIO];
-		float hy2 = ((by-ymin)-off[RATIO]) / scale[RATIO];
-
-		scale[CHANNEL] = 256f/(hx2-hx1);			// convert real to [256]
-		off[CHANNEL] = -scale[CHANNEL]*hx1;
-		scale[RATIO] = 256f/(hy2-hy1);
-		off[RATIO] = -scale[RATIO]*hy1;
-
-		int count=0;
-		for(int k=0; k<valueChannel.length; k++)
-			if (hx1 <= valueChannel[k] && valueChannel[k] < hx2)
-			if (hy1 <= valueRatio[k] && valueRatio[k] < hy2)
-				count++;
-				
-		float valueChannelCrop[] = new float[count];
-		float valueRatioCrop[] = new float[count];
-		count = 0;
-		for(int k=0; k<valueChannel.length; k++)
-			if (hx1 <= valueChannel[k] && valueChannel[k] < hx2)
-			if (hy1 <= valueRatio[k] && valueRatio[k] < hy2) {
-				valueChannelCrop[count] = valueChannel[k];
-				valueRatioCrop[count] = valueRatio[k];
-				count++;
+	private void apply(Fits fits) {
+		for(int m=0; m<fits.ok.length; m++) {
+			for(int p=0; p<BleedThroughModel.get(m).getParameters(); p++) {
+				if (fits.ok[m]) {
+					txtParams[p][m].setText("" + IJ.d2s(fits.real[m][p], 5));
+				}
+				else {
+					txtParams[p][m].setText("No fit");
+				}
 			}
-		valueChannel = null;
-		valueRatio = null;
-		valueChannel = new float[count];
-		valueRatio = new float[count];
-		System.arraycopy(valueChannelCrop, 0, valueChannel, 0, count);
-		System.arraycopy(valueRatioCrop, 0, valueRatio, 0, count);
+			fit[m] = fits.ok[m];
+			estimate[m] = fits.real[m];
+		}
 	}
 
 	/**
-	* Fit the constant model.
+	* Return the colormap of the densities: white for empty pixels, then
+	* from light gray to black through blue and red for the log of the count.
 	*/
-	public void fitConstant() {
-		float cst = 0f;
-		int nb = valueChannel.length;
-					
-		if (nb > 0) {
-			for(int k=0; k<nb; k++)
-				cst += valueRatio[k];
-			cst = cst/nb;
-			txtParams[0][0].setText("" + IJ.d2s(cst,5));
-			params[0][0] = cst*scale[RATIO] + off[RATIO];
-			fit[0] = true;
-		}
-		else {
-			txtParams[0][0].setText("No fit");
-			fit[0] = false;
+	private static synchronized int[] getColormap() {
+		if (colormap == null) {
+			colormap = new int[257];
+			colormap[0] = 0xFFFFFFFF;
+			float knots[][] = {{200, 200, 200}, {40, 40, 220}, {220, 30, 30}, {0, 0, 0}};
+			for(int i = 0; i < 256; i++) {
+				float t = i * (knots.length - 1) / 256f;
+				int k = (int)t;
+				t -= k;
+				int rgb = 0xFF000000;
+				for(int c = 0; c < 3; c++)
+					rgb |= Math.round(knots[k][c] + t * (knots[k+1][c] - knots[k][c])) << (16 - 8*c);
+				colormap[i+1] = rgb;
+			}
 		}
+		return colormap;
 	}
 
 	/**
-	* Fit the linear model.
+	* Zoom on the selection: the scene is rebuilt from the bins in the
+	* selection in a background thread.
 	*/
-	private void fitLinear() {
-		float sumx = 0f;
-		float sumy = 0f;
-		float sumxx = 0f;
-		float sumxy = 0f;
-
-		int nb = valueChannel.length;
-		for(int k=0; k<nb; k++) {
-			sumx  += valueChannel[k];
-			sumxx += valueChannel[k]*valueChannel[k];
-			sumy  += valueRatio[k];
-			sumxy += valueRatio[k]*valueChannel[k];
-		}
-
-		if (nb > 0) {
-			float slope = (nb*sumxy - sumx*sumy) / (nb * sumxx - sumx * sumx);
-			float shift = (sumy - slope * sumx) / nb;
-			float x1 = 0;
-			float x2 = 256;
-			float y1 = slope*x1 + shift;
-			float y2 = slope*x2 + shift;
-			y1linear = y1;
-			y2linear = y2;
-			if (Math.abs(slope) > 0.00001) {
-				txtParams[0][1].setText("" + IJ.d2s(shift,5));
-				txtParams[1][1].setText("" + IJ.d2s(slope,5));
-				
-				float yr1 = y1 * scale[RATIO] + off[RATIO];
-				float yr2 = y2 * scale[RATIO] + off[RATIO];
-				float xr1 = x1 * scale[CHANNEL] + off[CHANNEL];
-				float xr2 = x2 * scale[CHANNEL] + off[CHANNEL];
-		
-				float valueSlope = (yr2-yr1) / (xr2-xr1);
-				float valueShift = (yr1-valueSlope*xr1);
-				params[0][1] = valueShift;
-				params[1][1] = valueSlope;
-
-				fit[1] = true;
-				return;
+	private void zoom() {
+		if (scene == null)
+			return;
+		final Scene current = scene;
+		final float cmin = (hotspot[0].x-off[CHANNEL]) / scale[CHANNEL];
+		final float cmax = (hotspot[2].x-off[CHANNEL]) / scale[CHANNEL];
+		final float rmin = ((by-hotspot[2].y)-off[RATIO]) / scale[RATIO];
+		final float rmax = ((by-hotspot[0].y)-off[RATIO]) / scale[RATIO];
+		final int method = this.method;
+		final int gen = ++generation;
+		submit(new Runnable() {
+			public void run() {
+				final Update update = new Update();
+				update.scene = new Scene(cmin, cmax, rmin, rmax, current.binChannel, current.binRatio, current.binCount, true);
+				update.fits = fit(update.scene, new int[] {0, 0, bx, by}, method);
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (gen == generation)
+							show(update, fit);
+					}
+				});
 			}
+		});
+	}
+
+	/**
+	* Fit the models on the selection in a background thread and show
+	* them, unless the selection has changed in the meantime.
+	*/
+	private void refit() {
+		if (scene == null) {
+			repaint();
+			return;
 		}
-		
-		for(int i=0; i<2; i++) {
-			txtParams[i][1].setText("No fit");
-		}
-		fit[1] = false;
+		final Scene current = scene;
+		final int sel[] = getSelection();
+		final int method = this.method;
+		final int gen = ++generation;
+		submit(new Runnable() {
+			public void run() {
+				final Fits fits = fit(current, sel, method);
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (gen == generation && current == scene) {
+							apply(fits);
+							repaint();
+						}
+					}
+				});
+			}
+		});
+		repaint();
+	}
 
+	/**
+	* Submit a task to the shared executor, cancelling the previous one
+	* if it is still running.
+	*/
+	private void submit(Runnable task) {
+		if (pending != null)
+			pending.cancel(true);
+		pending = Parallel.getExecutor().submit(task);
 	}
 
+	/**
+	* Return the cells of the moment table selected by the hotspots:
+	* {first channel, first ratio, last channel, last ratio}, last excluded.
+	*/
+	private int[] getSelection() {
+		return new int[] {hotspot[0].x, by-hotspot[2].y, hotspot[2].x, by-hotspot[0].y};
+	}
 
 	/**
-	* Fit the Exponential model.
+	* Select the fitting method, one of RobustFit.NAMES, and refit.
 	*/
-	private void fitExpo() {
-	
-		int nb = valueChannel.length;
-		
-		if (nb < 3) {
-			for(int i=0; i<3; i++) {
-				txtParams[i][2].setText("No fit");
-			}
-			fit[2] = false;
-			return;
-		}
+	public void setRobust(int method) {
+		this.method = method;
+		refit();
+	}
 
-		// Trick to stabilize the exponentiel.
-		// The constant a is not fitted. It has always 90% of the constant
-		double ac = getFloatValue(txtParams[0][0]);
-		double a = ac; //ac*0.9;
-		double cmin = (0-off[CHANNEL])/scale[CHANNEL];
-		double cmax = (256-off[CHANNEL])/scale[CHANNEL];
-		double cmed = (128-off[CHANNEL])/scale[CHANNEL];
-		float m = (float)ac; //(0-off[RATIO])/scale[RATIO];
-		float b, e;
-		int cm = 0;
-		m = 0;
-		for(int k=0; k<nb; k++) {
-			if (valueChannel[k] < cmed) {
-				m += valueRatio[k];
-				cm++;
+	/**
+	* Return a task computing the bootstrap confidence intervals of the
+	* parameters of the models fitted on the selection,
+	* intervals[param][model] = {low, high}, or null if there is no data.
+	* The task can run in a background thread.
+	*/
+	public Callable<double[][][]> getBootstrap(final int replicates) {
+		if (scene == null)
+			return null;
+		final MomentTable table = scene.table;
+		final int sel[] = getSelection();
+		final int method = this.method;
+		final double est[][] = new double[estimate.length][];
+		for(int m=0; m<estimate.length; m++)
+			est[m] = (estimate[m] == null ? null : estimate[m].clone());
+		return new Callable<double[][][]>() {
+			public double[][][] call() {
+				double cells[][] = getCells(table, sel);
+				return Bootstrap.run(method, cells[0], cells[1], cells[2], cells[0].length, est, replicates);
 			}
-		}
-		if (cm > 2)
-			m = m / cm;
-		else
-			m = (float)ac;
-
-		int ck = 0;
-		for(int k=0; k<nb; k++)
-			if (valueChannel[k] > cmed)
-			if (valueRatio[k] - m > 0)
-				ck++;
-				
-		double channel[] = new double[ck];
-		double ratio[] = new double[ck];
-		ck = 0;
-		for(int k=0; k<nb; k++) {
-			if (valueChannel[k] > cmed)
-			if (valueRatio[k] - m > 0) {
-				channel[ck] = valueChannel[k];
-				ratio[ck] = Math.log(valueRatio[k]-m);
-				ck++;
+		};
+	}
+
+	/**
+	* Return the mean channel, the mean ratio and the number of points of
+	* the occupied cells of the selection.
+	*/
+	private static double[][] getCells(MomentTable table, int sel[]) {
+		int n = 0;
+		for(int j=sel[1]; j<sel[3]; j++)
+		for(int i=sel[0]; i<sel[2]; i++)
+			if (table.sum(MomentTable.N, i, j, i+1, j+1) > 0)
+				n++;
+		double cells[][] = new double[3][n];
+		n = 0;
+		for(int j=sel[1]; j<sel[3]; j++)
+		for(int i=sel[0]; i<sel[2]; i++) {
+			double c = table.sum(MomentTable.N, i, j, i+1, j+1);
+			if (c > 0) {
+				cells[2][n] = c;
+				cells[0][n] = table.sum(MomentTable.SX, i, j, i+1, j+1) / c;
+				cells[1][n] = table.sum(MomentTable.SY, i, j, i+1, j+1) / c;
+				n++;
 			}
 		}
-		if (ck < 2) {
-			txtParams[0][2].setText("No fit");
-			txtParams[1][2].setText("No fit");
-			txtParams[2][2].setText("No fit");
-			fit[2] = false;
-			return;
-		}
-		//System.out.println(" >>>>>> cmin : " + cmin + " m: " + m + " ck : " + ck);
-
-		/***/
-		float sumx = 0f;
-		float sumy = 0f;
-		float sumxx = 0f;
-		float sumxy = 0f;
-
-		for(int k=0; k<ck; k++) {
-			sumx  += channel[k];
-			sumxx += channel[k]*channel[k];
-			sumy  += ratio[k];
-			sumxy += ratio[k]*channel[k];
-		}
-		//System.out.println(" sumxx : " + sumxx);
-		//System.out.println(" sumx : " + sumx);
-		//System.out.println(" sumy : " + sumy);
-		//System.out.println(" sumxy : " + sumxy);
+		return cells;
+	}
 
-		float et = (float) ((ck*sumxy - sumx*sumy) / (ck * sumxx - sumx * sumx));
-		float bt = (float) (Math.exp((sumy - et * sumx) / ck));
-		
-		a = (float)m;
-		b = (float)bt;
-		e = (float)et;
-		//System.out.println(" REAL a : " + a + " b " + b + " " +" e: " + e);
-		
-		float u = scale[CHANNEL];
-		float v = off[CHANNEL];
-		float w = scale[RATIO];
-		float z = off[RATIO];
-		
-		float valueA = w * (float)(m+z/w);
-		float valueB = w * (float)(bt*Math.exp(-et*v/u));
-		float valueE = et / u;
-		params[0][2] = (float)valueA;
-		params[1][2] = (float)valueB;
-		params[2][2] = (float)valueE;
-		//System.out.println(" DISPLAY  a : " + params[0][2] + " b " + params[1][2] + " " +" e: " + params[2][2] );
-
-		//System.out.println( " cmax " + cmax + " Real: " + (a + b * Math.exp(cmax*e)) + " 256: " + (valueA + valueB * Math.exp(2566*valueE)));
-
-		txtParams[0][2].setText("" + IJ.d2s( a ,5));
-		txtParams[1][2].setText("" + IJ.d2s( b,5));
-		txtParams[2][2].setText("" + IJ.d2s( e,5));
-		fit[2] = true;
-		
+	/**
+	* Fit the models on a selection of a scene, in parallel. The models
+	* start from their estimate on the moment table, which is kept by the
+	* least squares when it is exact, and refined on the cells otherwise.
+	*/
+	private static Fits fit(final Scene scene, final int sel[], final int method) {
+		final Fits fits = new Fits();
+		Parallel.forEachBand(BleedThroughModel.count(), 1, new Parallel.Band() {
+			public void run(int m, int from, int to) {
+				BleedThroughModel model = BleedThroughModel.get(m);
+				double a[] = new double[model.getParameters()];
+				if (!model.estimate(scene.table, sel, a))
+					return;
+				if (method != RobustFit.LEAST_SQUARES || !model.isClosedForm()) {
+					double cells[][] = getCells(scene.table, sel);
+					new RobustFit(method).fit(model, cells[0], cells[1], cells[2], cells[0].length, a);
+				}
+				fits.real[m] = a;
+				fits.ok[m] = true;
+			}
+		});
+		return fits;
 	}
-	
+
 	/**
 	* Overload the paint method.
 	*/
@@ -511,7 +527,7 @@ public class Plot extends JPanel implements MouseListener, MouseMotionListener {
 		g.fillRect(0, 0, dimPlot.width, dimPlot.height);
 		Dimension dim = this.getSize();
 
-		if (image == null || drawScatteredPlot==false) {
+		if (scene == null || scene.image == null || drawScatteredPlot==false) {
 			g.setColor(new Color(0, 0, 128));
 			g.drawString("Step 1: Background Determination", 10, 60);
 			g.drawString("Define a ROI and click \"Get\"", 20, 85);
@@ -526,68 +542,12 @@ public class Plot extends JPanel implements MouseListener, MouseMotionListener {
 			return;
 		}
 		
-		g.drawImage(image, LEFT, TOP, this);
+		g.drawImage(scene.image, LEFT, TOP, this);
 		g.setColor(Color.lightGray);
 		g.drawRect(LEFT, TOP, 256, 256);
-		if (params != null) {
-		
-			// Constant
-			if (fit[0]) {
-				g.setColor(Color.red);
-				int ycst = 255-Math.round(params[0][0]);
-				g.setColor(Color.red);
-				g.drawLine(LEFT, TOP+ycst, LEFT+256, TOP+ycst);
-			}
-			
-			// Linear
-			if (fit[1]) {
-				float x1 = 0;
-				float a = params[0][1];
-				float b = params[1][1];
-				float y1 = b * x1 + a;
-				if (y1 < 0) {
-					y1 = 0;
-					x1 = (y1 - a)/b;
-				}
-				else if (y1 > 255) {
-					y1 = 255;
-					x1 = (y1 - a)/b;
-				}
-				
-				float x2 = 255;
-				float y2 = b * x2 + a;
-				if (y2 < 0) {
-					y2 = 0;
-					x2 = (y2 - a)/b;
-				}
-				else if (y2 > 255) {
-					y2 = 255;
-					x2 = (y2 - a)/b;
-				}
-				g.setColor(Color.blue);
-				g.drawLine(LEFT+Math.round(x1), TOP+Math.round(255-y1), LEFT+Math.round(x2), TOP+Math.round(255-y2));
-			}
-			
-			// Expo
-			if (fit[2]) {
-				g.setColor(Color.green);
-				float a = params[0][2];
-				float b = params[1][2];
-				float e = params[2][2];
-				int x0 = 0;
-				double y0 = b * Math.exp(0.0) + a;
-				for(int x=1; x < 255; x++) {
-					double ye = b * Math.exp(x*e) + a;
-					if (ye < 0)
-						break;
-					if (ye > 255)
-						break;
-					g.drawLine(LEFT+x0, TOP+(int)Math.round(255-y0), LEFT+x, TOP+(int)Math.round(255-ye));
-					x0 = x;
-					y0 = ye;
-				}
-			}
-		}
+		for(int m=0; m<fit.length; m++)
+			if (fit[m] && estimate[m] != null)
+				drawModel(g, BleedThroughModel.get(m), estimate[m], colorModel[m % colorModel.length]);
 
 		g.setFont(font);
 		FontMetrics metrics = g.getFontMetrics(font);
@@ -667,18 +627,26 @@ public class Plot extends JPanel implements MouseListener, MouseMotionListener {
 	
 	}
 
+	/**
+	* Draw the curve of a model, the parts outside of the graph are not drawn.
+	*/
+	private void drawModel(Graphics g, BleedThroughModel model, double a[], Color color) {
+		g.setColor(color);
+		double y0 = Double.NaN;
+		for(int x=0; x < 256; x++) {
+			double ratio = model.eval(a, (x-off[CHANNEL]) / scale[CHANNEL]);
+			double y = ratio * scale[RATIO] + off[RATIO];
+			if (y >= 0 && y <= 255 && y0 >= 0 && y0 <= 255)
+				g.drawLine(LEFT+x-1, TOP+(int)Math.round(255-y0), LEFT+x, TOP+(int)Math.round(255-y));
+			y0 = y;
+		}
+	}
+
 	private void d(Graphics g, int x1, int y1, int x2, int y2) {
 		g.drawLine(LEFT+240+x1, TOP+4+y1, LEFT+240+x2, TOP+4+y2);
 	}
 
 	
-	private void update() {
-		fitConstant();
-		fitLinear();
-		fitExpo();
-		repaint();
-	}
-	
 	public void mouseClicked(MouseEvent e) 	{}
 	public void mouseExited(MouseEvent e) 	{}
 	public void mouseEntered(MouseEvent e) 	{}
@@ -693,8 +661,7 @@ public class Plot extends JPanel implements MouseListener, MouseMotionListener {
 		
 		if ( x < 256 && x > 240)
 		if ( y < 16 && y > 0) {
-			createImage();
-			update();
+			zoom();
 		}
 		
 	}
@@ -757,7 +724,7 @@ public class Plot extends JPanel implements MouseListener, MouseMotionListener {
 				hotspot[0].y = y;
 			}
 		}
-		repaint();
+		refit();
 	
 	}
 
@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import ij.IJ;
+
+/**
+* Quadratic bleed-through ratio: BT = a + b*x + c*x^2, the bleed-through
+* intensity in the FRET channel is BT*x = (a + b*x + c*x^2)*x. The
+* parameters a, b and c are those of the ratio.
+*
+* The normal equations are solved on the centered and scaled intensity
+* to keep them well conditioned for 16-bit images, in the Cholesky
+* workspace of the solver.
+*/
+public class PolynomialModel extends BleedThroughModel {
+
+	public String getName() {
+		return "Polynomial";
+	}
+
+	public String getLabel() {
+		return "Poly.";
+	}
+
+	public String[] getParameterNames() {
+		return new String[] {"a", "b", "c"};
+	}
+
+	public String getFormula(double a[], String variable) {
+		return IJ.d2s(a[0], 5) + term(a[1], " * " + variable) + term(a[2], " * " + variable + "^2");
+	}
+
+	public double eval(double a[], double x) {
+		return a[0] + x * (a[1] + x * a[2]);
+	}
+
+	/**
+	* The moment table has no moment of order 3 and 4, the estimate is the
+	* linear regression, refined by solve() on the cells.
+	*/
+	public boolean estimate(MomentTable table, int sel[], double a[]) {
+		double s[] = table.sum(sel[0], sel[1], sel[2], sel[3]);
+		if (!LinearModel.regression(s[MomentTable.N], s[MomentTable.SX], s[MomentTable.SY], s[MomentTable.SXX], s[MomentTable.SXY], a))
+			return false;
+		a[2] = 0.0;
+		return true;
+	}
+
+	public boolean solve(double x[], double y[], double w[], int n, double a[], LevenbergMarquardt lm) {
+		double nb = 0.0;
+		double mean = 0.0;
+		for(int i=0; i<n; i++) {
+			nb   += w[i];
+			mean += w[i]*x[i];
+		}
+		if (nb <= 0.0)
+			return false;
+		mean /= nb;
+		double var = 0.0;
+		for(int i=0; i<n; i++)
+			var += w[i]*(x[i]-mean)*(x[i]-mean);
+		if (var <= 0.0)
+			return false;
+		double sd = Math.sqrt(var / nb);
+
+		double s1 = 0.0, s2 = 0.0, s3 = 0.0, s4 = 0.0;
+		double b0 = 0.0, b1 = 0.0, b2 = 0.0;
+		for(int i=0; i<n; i++) {
+			double t = (x[i]-mean) / sd;
+			double wt = w[i] * t;
+			double wtt = wt * t;
+			s1 += wt;
+			s2 += wtt;
+			s3 += wtt * t;
+			s4 += wtt * t * t;
+			b0 += w[i] * y[i];
+			b1 += wt * y[i];
+			b2 += wtt * y[i];
+		}
+		Cholesky cholesky = lm.getCholesky();
+		double A[][] = cholesky.getMatrix();
+		double c[] = cholesky.getVector();
+		A[0][0] = nb;	A[0][1] = s1;	A[0][2] = s2;
+						A[1][1] = s2;	A[1][2] = s3;
+										A[2][2] = s4;
+		c[0] = b0;
+		c[1] = b1;
+		c[2] = b2;
+		if (!cholesky.solve(3))
+			return false;
+
+		// Back to the intensity, t = (x-mean)/sd
+		double sd2 = sd * sd;
+		double p2 = c[2] / sd2;
+		double p1 = c[1] / sd - 2.0 * c[2] * mean / sd2;
+		double p0 = c[0] - c[1] * mean / sd + c[2] * mean * mean / sd2;
+		if (Double.isNaN(p0+p1+p2) || Double.isInfinite(p0+p1+p2))
+			return false;
+		a[0] = p0;
+		a[1] = p1;
+		a[2] = p2;
+		return true;
+	}
+
+	public Evaluator compile(float a[]) {
+		final float c0 = a[0];
+		final float c1 = a[1];
+		final float c2 = a[2];
+		return new Evaluator() {
+			public void bleedThrough(float x[], float out[], int n) {
+				for(int i=0; i<n; i++) {
+					float xi = x[i];
+					out[i] = (c0 + xi * (c1 + xi * c2)) * xi;
+				}
+			}
+		};
+	}
+
+}
@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import ij.IJ;
+
+/**
+* Power law bleed-through ratio: BT = a*x^e, the bleed-through intensity
+* in the FRET channel is BT*x = a*x^(e+1), and 0 for a non-positive
+* intensity. The parameters a and e are those of the ratio.
+*/
+public class PowerLawModel extends BleedThroughModel {
+
+	private final ModelFunction function = new ModelFunction() {
+		public int getParameters() {
+			return 2;
+		}
+
+		public void eval(double[] x, int offset, int n, double[] a, double[] y, double[][] dyda) {
+			for(int i=0; i<n; i++) {
+				double xi = x[offset+i];
+				if (xi > 0.0) {
+					double pw = Math.pow(xi, a[1]);
+					y[i] = a[0] * pw;
+					dyda[0][i] = pw;
+					dyda[1][i] = a[0] * pw * Math.log(xi);
+				}
+				else {
+					y[i] = 0.0;
+					dyda[0][i] = 0.0;
+					dyda[1][i] = 0.0;
+				}
+			}
+		}
+	};
+
+	public String getName() {
+		return "Power";
+	}
+
+	public String[] getParameterNames() {
+		return new String[] {"a", "e"};
+	}
+
+	public String getFormula(double a[], String variable) {
+		return IJ.d2s(a[0], 5) + " * " + variable + "^" + IJ.d2s(a[1], 5);
+	}
+
+	public double eval(double a[], double x) {
+		return (x > 0.0 ? a[0] * Math.pow(x, a[1]) : 0.0);
+	}
+
+	/**
+	* Log-log regression on the cells of the selection with a positive
+	* intensity and ratio, weighted by their counts.
+	*/
+	public boolean estimate(MomentTable table, int sel[], double a[]) {
+		double ck = 0.0;
+		double sumx = 0.0;
+		double sumy = 0.0;
+		double sumxx = 0.0;
+		double sumxy = 0.0;
+		for(int j=sel[1]; j<sel[3]; j++)
+		for(int i=sel[0]; i<sel[2]; i++) {
+			double w = table.sum(MomentTable.N, i, j, i+1, j+1);
+			if (w > 0) {
+				double x = table.sum(MomentTable.SX, i, j, i+1, j+1) / w;
+				double ratio = table.sum(MomentTable.SY, i, j, i+1, j+1) / w;
+				if (x > 0 && ratio > 0) {
+					double lx = Math.log(x);
+					double ly = Math.log(ratio);
+					ck    += w;
+					sumx  += w*lx;
+					sumxx += w*lx*lx;
+					sumy  += w*ly;
+					sumxy += w*lx*ly;
+				}
+			}
+		}
+		double b[] = new double[2];
+		if (!LinearModel.regression(ck, sumx, sumy, sumxx, sumxy, b))
+			return false;
+		a[0] = Math.exp(b[0]);
+		a[1] = b[1];
+		return isFinite(a);
+	}
+
+	public boolean solve(double x[], double y[], double w[], int n, double a[], LevenbergMarquardt lm) {
+		// The steps that increase chi2, e.g. to NaN, are not accepted
+		lm.fit(x, y, w, n, a, function, 0.001, 100);
+		return isFinite(a);
+	}
+
+	public Evaluator compile(float a[]) {
+		final float c = a[0];
+		final double e = a[1] + 1.0;
+		return new Evaluator() {
+			public void bleedThrough(float x[], float out[], int n) {
+				for(int i=0; i<n; i++)
+					out[i] = (x[i] > 0.0f ? c * (float)Math.pow(x[i], e) : 0.0f);
+			}
+		};
+	}
+
+}
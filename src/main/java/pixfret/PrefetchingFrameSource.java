@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* Source reading the next frames of another source in advance, on its own
+* I/O threads, while the current frame is processed.
+*
+* The frames are read ahead in the order of the reads: at most depth
+* frames are read or being read beyond the frame returned, which bounds
+* the memory. A read out of order discards the frames read ahead and
+* restarts from the frame asked. The I/O threads do not belong to the
+* shared pool of the computations, so a slow disk does not take a worker.
+*/
+public class PrefetchingFrameSource extends FrameSource {
+
+	private FrameSource source;
+	private int depth;
+	private ExecutorService io;
+	private ArrayDeque<Future<PixFretImageAccess[]>> queue = new ArrayDeque<Future<PixFretImageAccess[]>>();
+	private int next = -1;			// frame at the head of the queue
+	private int scheduled = 0;		// next frame to read
+
+	/**
+	* Constructor.
+	*
+	* @param source		the source, closed with this one
+	* @param depth		number of frames read ahead
+	* @param threads	number of I/O threads, 1 for the sources which are
+	*					not thread safe or for the sequential disks
+	*/
+	public PrefetchingFrameSource(final FrameSource source, int depth, int threads) {
+		this.source = source;
+		this.depth = Math.max(1, depth);
+		final AtomicInteger count = new AtomicInteger();
+		io = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PixFRET-io-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	* Return the number of frames.
+	*/
+	public int getFrames() {
+		return source.getFrames();
+	}
+
+	/**
+	* Return the frame t, read in advance if it follows the previous read,
+	* and start the reading of the next frames.
+	*/
+	public synchronized PixFretImageAccess[] read(int t) throws IOException {
+		if (t != next || queue.isEmpty()) {
+			discard();
+			next = t;
+			scheduled = t;
+		}
+		Future<PixFretImageAccess[]> frame = prefetch(depth + 1).poll();
+		next++;
+		try {
+			return frame.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading the frame " + (t+1));
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	* Stop the I/O threads, the source stays open.
+	*/
+	public synchronized void stop() {
+		discard();
+		io.shutdownNow();
+	}
+
+	/**
+	* Stop the I/O threads and close the source.
+	*/
+	public void close() throws IOException {
+		stop();
+		source.close();
+	}
+
+	/**
+	* Schedule the reading of the next frames until size frames are queued.
+	*/
+	private ArrayDeque<Future<PixFretImageAccess[]>> prefetch(int size) {
+		int frames = source.getFrames();
+		while (queue.size() < size && scheduled < frames) {
+			final int t = scheduled++;
+			queue.add(io.submit(new Callable<PixFretImageAccess[]>() {
+				public PixFretImageAccess[] call() throws IOException {
+					return source.read(t);
+				}
+			}));
+		}
+		return queue;
+	}
+
+	/**
+	* Cancel the frames read ahead.
+	*/
+	private void discard() {
+		for(Future<PixFretImageAccess[]> frame : queue)
+			frame.cancel(true);
+		queue.clear();
+	}
+
+}
@@ -0,0 +1,334 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+* On-disk cache of the FRET and NFRET images, to skip the computation
+* when the same images are processed again with the same parameters.
+*
+* An entry is a file "<key>.fret" in the directory of the cache. The key
+* is the SHA-256 of the raw input images and of all the parameters which
+* change the outputs. The entry also stores the backgrounds estimated in
+* the AUTO and MAP modes. The least recently used entries are deleted to
+* keep the cache under its quota, the last modification time of a file
+* is its last use so the order survives between sessions.
+*
+* The cache can be shared by several threads. A failure of the cache is
+* a miss, the outputs are then computed.
+*/
+public class ResultCache {
+
+	public static final long QUOTA 	= 2L << 30;		// default quota, 2 GB
+
+	private static final int VERSION	= 1;			// format of the entries and of the computation
+	private static final int MAGIC		= 0x50464331;	// "PFC1"
+	private static final int HEADER		= 24;			// magic, nx, ny, 3 backgrounds
+	private static final String SUFFIX	= ".fret";
+	private static final int CHUNK		= 1 << 20;		// floats per read or write
+
+	private File directory;
+	private long quota;
+	private long size = 0;
+	private LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);	// key -> length, in access order
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	* Constructor, index the entries already in the directory.
+	*
+	* @param directory	directory of the cache, created if needed
+	* @param quota		maximal size of the entries in bytes
+	*/
+	public ResultCache(File directory, long quota) {
+		this.directory = directory;
+		this.quota = quota;
+		directory.mkdirs();
+		File files[] = directory.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for(int k=0; k<files.length; k++) {
+			String name = files[k].getName();
+			if (!name.endsWith(SUFFIX))
+				continue;
+			entries.put(name.substring(0, name.length() - SUFFIX.length()), Long.valueOf(files[k].length()));
+			size += files[k].length();
+		}
+		synchronized(this) {
+			evict(null);
+		}
+	}
+
+	/**
+	* Return the key of the raw images {FRET, donor, acceptor} computed
+	* with the parameters. The backgrounds of the parameters are part of
+	* the key only in the MANUAL mode, in the other modes they are
+	* estimated on the images.
+	*/
+	public String getKey(FretParameters params, PixFretImageAccess fret, PixFretImageAccess donor, PixFretImageAccess acceptor) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		int nx = fret.getWidth();
+		int ny = fret.getHeight();
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(256, 4 * nx));
+		buffer.putInt(VERSION).putInt(nx).putInt(ny);
+		buffer.putFloat(params.blur).putFloat(params.fact).putInt(params.output);
+		buffer.putInt(params.modelDonor).putInt(params.modelAccep);
+		buffer.putInt(params.backgroundMode);
+		if (params.backgroundMode == FretParameters.MANUAL)
+			buffer.putFloat(params.backgroundFret).putFloat(params.backgroundDonor).putFloat(params.backgroundAccep);
+		else if (params.backgroundMode == FretParameters.AUTO)
+			buffer.putInt(params.backgroundEstimator);
+		else
+			buffer.putInt(params.backgroundTile).putFloat(params.backgroundPercentile);
+		digest.update(buffer.array(), 0, buffer.position());
+		update(digest, buffer, params.paramsDonor);
+		update(digest, buffer, params.paramsAccep);
+		PixFretImageAccess images[] = {fret, donor, acceptor};
+		for(int i=0; i<images.length; i++)
+			for(int y=0; y<ny; y++) {
+				buffer.clear();
+				buffer.asFloatBuffer().put(images[i].pixels, y*nx, nx);
+				digest.update(buffer.array(), 0, 4 * nx);
+			}
+		byte hash[] = digest.digest();
+		StringBuilder key = new StringBuilder(2 * hash.length);
+		for(int k=0; k<hash.length; k++)
+			key.append(Character.forDigit((hash[k] >> 4) & 15, 16)).append(Character.forDigit(hash[k] & 15, 16));
+		return key.toString();
+	}
+
+	/**
+	* Add the parameters of the models to the digest.
+	*/
+	private static void update(MessageDigest digest, ByteBuffer buffer, float params[][]) {
+		for(int p=0; p<params.length; p++) {
+			buffer.clear();
+			buffer.asFloatBuffer().put(params[p]);
+			digest.update(buffer.array(), 0, 4 * params[p].length);
+		}
+	}
+
+	/**
+	* Return the images {FRET, NFRET} of a key, null if they are not in the
+	* cache. The backgrounds of the entry are stored into the parameters.
+	*/
+	public PixFretImageAccess[] get(String key, FretParameters params) {
+		synchronized(this) {
+			if (entries.get(key) == null) {
+				misses++;
+				return null;
+			}
+		}
+		File file = getFile(key);
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				read(channel, header, 0);
+				int nx = header.getInt(4);
+				int ny = header.getInt(8);
+				if (header.getInt(0) != MAGIC || nx <= 0 || ny <= 0 || channel.size() != HEADER + 8L * nx * ny)
+					throw new IOException("Corrupted entry " + file.getName());
+				PixFretImageAccess results[] = new PixFretImageAccess[2];
+				ByteBuffer data = ByteBuffer.allocate(4 * Math.min(CHUNK, nx * ny));
+				long position = HEADER;
+				for(int k=0; k<2; k++) {
+					results[k] = new PixFretImageAccess(nx, ny);
+					for(int offset=0; offset<nx*ny; offset+=CHUNK) {
+						int n = Math.min(CHUNK, nx * ny - offset);
+						data.clear();
+						data.limit(4 * n);
+						read(channel, data, position);
+						data.flip();
+						data.asFloatBuffer().get(results[k].pixels, offset, n);
+						position += 4 * n;
+					}
+				}
+				params.backgroundFret 	= header.getFloat(12);
+				params.backgroundDonor 	= header.getFloat(16);
+				params.backgroundAccep 	= header.getFloat(20);
+				file.setLastModified(System.currentTimeMillis());
+				synchronized(this) {
+					hits++;
+				}
+				return results;
+			}
+			finally {
+				channel.close();
+			}
+		}
+		catch(IOException e) {
+			remove(key);
+			synchronized(this) {
+				misses++;
+			}
+			return null;
+		}
+	}
+
+	/**
+	* Store the images {FRET, NFRET} of a key and the backgrounds of the
+	* parameters, then delete the least recently used entries above the
+	* quota. An entry larger than the quota is not stored.
+	*
+	* @return	false if the entry is not stored
+	*/
+	public boolean put(String key, FretParameters params, PixFretImageAccess results[]) {
+		int nx = results[0].getWidth();
+		int ny = results[0].getHeight();
+		long length = HEADER + 8L * nx * ny;
+		if (length > quota)
+			return false;
+		File file = getFile(key);
+		File temp = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				header.putInt(MAGIC).putInt(nx).putInt(ny);
+				header.putFloat(params.backgroundFret).putFloat(params.backgroundDonor).putFloat(params.backgroundAccep);
+				header.flip();
+				write(channel, header);
+				ByteBuffer data = ByteBuffer.allocate(4 * Math.min(CHUNK, nx * ny));
+				for(int k=0; k<2; k++)
+					for(int offset=0; offset<nx*ny; offset+=CHUNK) {
+						int n = Math.min(CHUNK, nx * ny - offset);
+						data.clear();
+						data.asFloatBuffer().put(results[k].pixels, offset, n);
+						data.limit(4 * n);
+						write(channel, data);
+					}
+			}
+			finally {
+				channel.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e) {
+			temp.delete();
+			return false;
+		}
+		synchronized(this) {
+			Long previous = entries.put(key, Long.valueOf(length));
+			size += length - (previous == null ? 0 : previous.longValue());
+			evict(key);
+		}
+		return true;
+	}
+
+	/**
+	* Delete the least recently used entries until the size is under the
+	* quota, except the entry just stored.
+	*/
+	private void evict(String keep) {
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		while (size > quota && iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+			if (entry.getKey().equals(keep))
+				continue;
+			getFile(entry.getKey()).delete();
+			size -= entry.getValue().longValue();
+			iterator.remove();
+		}
+	}
+
+	/**
+	* Remove an entry, e.g. a corrupted one.
+	*/
+	private synchronized void remove(String key) {
+		Long length = entries.remove(key);
+		if (length != null)
+			size -= length.longValue();
+		getFile(key).delete();
+	}
+
+	/**
+	* Delete all the entries.
+	*/
+	public synchronized void clear() {
+		for(String key : entries.keySet())
+			getFile(key).delete();
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	* Return the size of the entries in bytes.
+	*/
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	* Return a summary of the hits and misses since the construction.
+	*/
+	public synchronized String getReport() {
+		return "Cache: " + hits + " hits, " + misses + " misses, " + entries.size() + " entries, " + (size >> 20) + " MB";
+	}
+
+	/**
+	* Return the file of an entry.
+	*/
+	private File getFile(String key) {
+		return new File(directory, key + SUFFIX);
+	}
+
+	/**
+	* Read the whole buffer at a position.
+	*/
+	private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new EOFException();
+			position += n;
+		}
+	}
+
+	/**
+	* Write the whole buffer.
+	*/
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+}
@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.IOException;
+
+/**
+* Destination of the images computed by PixFRET: a window, files, a
+* results table, or the caller itself in batch.
+*
+* The engine asks each sink if it accepts a kind of output before writing
+* it, an output accepted by no sink is not produced. The images given to
+* write() are those of the engine; a sink which keeps them must not modify
+* them.
+*/
+public interface ResultSink {
+
+	int FRET				= 0;
+	int NFRET				= 1;
+	int DONOR_BLURRED		= 2;
+	int ACCEPTOR_BLURRED	= 3;
+
+	String[] NAMES = {"FRET", "NFRET", "Donor blurred", "Acceptor blurred"};
+
+	/**
+	* Return true if the sink wants the output of this kind.
+	*/
+	boolean accepts(int kind);
+
+	/**
+	* Write an output.
+	*
+	* @param kind		FRET, NFRET, DONOR_BLURRED or ACCEPTOR_BLURRED
+	* @param source		title of the input image
+	* @param title		description of the output, e.g. "NFRET (x100) of source"
+	* @param image		the output
+	*/
+	void write(int kind, String source, String title, PixFretImageAccess image) throws IOException;
+
+	/**
+	* Sink receiving the FRET and NFRET images by bands of rows while they
+	* are computed. If all the sinks of these outputs stream, the whole
+	* images are never allocated. write() still receives the other outputs
+	* and the FRET images when another sink needs them whole.
+	*
+	* An output is identified by its kind and its source: the outputs of
+	* several sources can be streamed at the same time by different
+	* threads, each output by a single thread.
+	*/
+	interface Streaming extends ResultSink {
+
+		/**
+		* Start an output of nx*ny pixels.
+		*/
+		void begin(int kind, String source, String title, int nx, int ny) throws IOException;
+
+		/**
+		* Write the next rows of the output, the array is reused after the
+		* call.
+		*/
+		void writeRows(int kind, String source, float pixels[], int offset, int rows) throws IOException;
+
+		/**
+		* End the output.
+		*/
+		void end(int kind, String source) throws IOException;
+
+		/**
+		* Discard an output which could not be completed, e.g. after the
+		* failure of a band.
+		*/
+		void abort(int kind, String source);
+	}
+
+	/**
+	* Sink writing the frames of a time-lapse together, e.g. as the pages
+	* of one file. Between beginSeries() and endSeries() the outputs are
+	* those of the frames of the source, given in order by one thread.
+	*/
+	interface Series extends ResultSink {
+
+		/**
+		* Start the series of the frames of a source.
+		*/
+		void beginSeries(String source, int frames) throws IOException;
+
+		/**
+		* End the series, or discard it if it is not complete, e.g. after
+		* the failure of a frame.
+		*/
+		void endSeries(boolean complete) throws IOException;
+	}
+
+}
@@ -0,0 +1,306 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+* Robust fitting of the bleed-through models on weighted points, e.g. the
+* cells of the calibration scatter plot weighted by their counts.
+*
+* HUBER and TUKEY are iteratively reweighted least squares, the residuals
+* are scaled by the weighted median absolute deviation. RANSAC draws
+* minimal samples with a probability proportional to the weights, keeps
+* the model with the largest weight of inliers and refits it on them.
+*
+* Above MAX_POINTS points, the robust iterations run on a weighted random
+* subsample, and only the last least squares pass uses all the points.
+* The random generator has a fixed seed, so the fits are reproducible.
+*/
+public class RobustFit {
+
+	public static final int LEAST_SQUARES	= 0;
+	public static final int HUBER 			= 1;
+	public static final int TUKEY 			= 2;
+	public static final int RANSAC 			= 3;
+	public static final String[] NAMES = {"Least squares", "Huber (IRLS)", "Tukey (IRLS)", "RANSAC"};
+
+	public static final int MAX_POINTS		= 4096;
+
+	private static final double HUBER_K 	= 1.345;
+	private static final double TUKEY_K 	= 4.685;
+	private static final double RANSAC_K 	= 2.5;
+	private static final int ITERATIONS 	= 30;
+	private static final int SAMPLES 		= 200;
+	private static final long SEED 			= 1234567L;
+
+	private int method;
+	private double scale;
+	private Random random = new Random(SEED);
+
+	private LevenbergMarquardt lm[] = new LevenbergMarquardt[BleedThroughModel.MAX_PARAMETERS+1];
+
+	private double sx[] = new double[MAX_POINTS];		// subsample
+	private double sy[] = new double[MAX_POINTS];
+	private double sw[] = new double[MAX_POINTS];
+	private double cw[] = new double[0];				// combined weights
+	private double rw[] = new double[0];				// robust weights
+	private double cumul[] = new double[0];				// cumulated weights
+	private long keys[] = new long[0];					// sorted residuals
+	private double mx[] = new double[BleedThroughModel.MAX_PARAMETERS];	// minimal sample
+	private double my[] = new double[BleedThroughModel.MAX_PARAMETERS];
+	private double mw[] = new double[BleedThroughModel.MAX_PARAMETERS];
+
+	/**
+	* Constructor.
+	*
+	* @param method		LEAST_SQUARES, HUBER, TUKEY or RANSAC
+	*/
+	public RobustFit(int method) {
+		this.method = method;
+		Arrays.fill(mw, 1.0);
+	}
+
+	/**
+	* Return the method.
+	*/
+	public int getMethod() {
+		return method;
+	}
+
+	/**
+	* Fit a model on weighted points.
+	*
+	* @param model		bleed-through model
+	* @param x			channel of the points
+	* @param y			ratio of the points
+	* @param w			weight of the points
+	* @param n			number of points
+	* @param a			parameters of the model, initial values on input for
+	*					the nonlinear models, the fitted values on output
+	* @return false if the fit failed, a is then unchanged
+	*/
+	public boolean fit(BleedThroughModel model, double x[], double y[], double w[], int n, double a[]) {
+		random.setSeed(SEED);
+		ensureCapacity(n);
+		double p[] = a.clone();		// the solvers of the nonlinear models fit in place
+		if (method == LEAST_SQUARES) {
+			if (!solve(model, x, y, w, null, n, p))
+				return false;
+			System.arraycopy(p, 0, a, 0, a.length);
+			return true;
+		}
+
+		if (n > MAX_POINTS) {
+			subsample(x, y, w, n);
+			if (!fitRobust(model, sx, sy, sw, MAX_POINTS, p))
+				return false;
+		}
+		else {
+			if (!fitRobust(model, x, y, w, n, p))
+				return false;
+		}
+		weights(model, x, y, n, p, rw);
+		if (!solve(model, x, y, w, rw, n, p))
+			return false;
+		System.arraycopy(p, 0, a, 0, a.length);
+		return true;
+	}
+
+	/**
+	* Compute the robust weights of the points for the parameters a, with
+	* the scale of the residuals of the last call to fit(). They are all 1
+	* for LEAST_SQUARES.
+	*/
+	public void getWeights(BleedThroughModel model, double x[], double y[], int n, double a[], double rw[]) {
+		if (method == LEAST_SQUARES) {
+			Arrays.fill(rw, 0, n, 1.0);
+			return;
+		}
+		weights(model, x, y, n, a, rw);
+	}
+
+	/**
+	* Robust fit, leaves the scale of the residuals in scale.
+	*/
+	private boolean fitRobust(BleedThroughModel model, double x[], double y[], double w[], int n, double a[]) {
+		if (!solve(model, x, y, w, null, n, a))
+			return false;
+		scale = getScale(model, x, y, w, n, a);
+		if (scale <= 0.0)
+			return true;
+		if (method == RANSAC)
+			return ransac(model, x, y, w, n, a);
+
+		double prev[] = new double[a.length];
+		for(int it=0; it<ITERATIONS; it++) {
+			System.arraycopy(a, 0, prev, 0, a.length);
+			weights(model, x, y, n, a, rw);
+			if (!solve(model, x, y, w, rw, n, a)) {
+				System.arraycopy(prev, 0, a, 0, a.length);
+				return false;
+			}
+			scale = getScale(model, x, y, w, n, a);
+			if (scale <= 0.0)
+				return true;
+			double change = 0.0;
+			for(int k=0; k<a.length; k++)
+				change = Math.max(change, Math.abs(a[k] - prev[k]) / (Math.abs(prev[k]) + 1e-12));
+			if (change < 1e-6)
+				break;
+		}
+		return true;
+	}
+
+	/**
+	* RANSAC on minimal samples drawn with a probability proportional to
+	* the weights, then least squares on the inliers of the best sample.
+	*/
+	private boolean ransac(BleedThroughModel model, double x[], double y[], double w[], int n, double a[]) {
+		int p = a.length;
+		double threshold = RANSAC_K * scale;
+		double total = 0.0;
+		for(int i=0; i<n; i++) {
+			total += w[i];
+			cumul[i] = total;
+		}
+		double best[] = a.clone();
+		double bestScore = -1.0;
+		double trial[] = new double[p];
+		for(int s=0; s<SAMPLES; s++) {
+			for(int k=0; k<p; k++) {
+				int i = Arrays.binarySearch(cumul, 0, n, random.nextDouble() * total);
+				i = Math.min(i < 0 ? -i-1 : i, n-1);
+				mx[k] = x[i];
+				my[k] = y[i];
+			}
+			System.arraycopy(a, 0, trial, 0, p);
+			if (!solve(model, mx, my, mw, null, p, trial))
+				continue;
+			double score = 0.0;
+			for(int i=0; i<n; i++)
+				if (Math.abs(y[i] - model.eval(trial, x[i])) < threshold)
+					score += w[i];
+			if (score > bestScore) {
+				bestScore = score;
+				System.arraycopy(trial, 0, best, 0, p);
+			}
+		}
+		System.arraycopy(best, 0, a, 0, p);
+		weights(model, x, y, n, a, rw);
+		return solve(model, x, y, w, rw, n, a);
+	}
+
+	/**
+	* Robust weights of the points for the current parameters and scale.
+	*/
+	private void weights(BleedThroughModel model, double x[], double y[], int n, double a[], double rw[]) {
+		for(int i=0; i<n; i++) {
+			if (scale <= 0.0) {
+				rw[i] = 1.0;
+				continue;
+			}
+			double r = Math.abs(y[i] - model.eval(a, x[i])) / scale;
+			switch(method) {
+				case HUBER:
+					rw[i] = (r <= HUBER_K ? 1.0 : HUBER_K / r);
+					break;
+				case TUKEY:
+					double u = r / TUKEY_K;
+					rw[i] = (u < 1.0 ? (1.0-u*u)*(1.0-u*u) : 0.0);
+					break;
+				case RANSAC:
+					rw[i] = (r < RANSAC_K ? 1.0 : 0.0);
+					break;
+				default:
+					rw[i] = 1.0;
+			}
+		}
+	}
+
+	/**
+	* Return 1.4826 times the weighted median of the absolute residuals.
+	*/
+	private double getScale(BleedThroughModel model, double x[], double y[], double w[], int n, double a[]) {
+		double total = 0.0;
+		for(int i=0; i<n; i++) {
+			float r = (float)Math.abs(y[i] - model.eval(a, x[i]));
+			keys[i] = ((long)Float.floatToIntBits(r) << 32) | i;
+			total += w[i];
+		}
+		Arrays.sort(keys, 0, n);
+		double half = 0.5 * total;
+		double cum = 0.0;
+		for(int k=0; k<n; k++) {
+			cum += w[(int)keys[k]];
+			if (cum >= half)
+				return 1.4826 * Float.intBitsToFloat((int)(keys[k] >>> 32));
+		}
+		return 0.0;
+	}
+
+	/**
+	* Weighted least squares, the weights are w*rw, rw may be null.
+	*/
+	private boolean solve(BleedThroughModel model, double x[], double y[], double w[], double rw[], int n, double a[]) {
+		if (rw != null) {
+			for(int i=0; i<n; i++)
+				cw[i] = w[i] * rw[i];
+			w = cw;
+		}
+		int p = model.getParameters();
+		if (lm[p] == null)
+			lm[p] = new LevenbergMarquardt(p);
+		return model.solve(x, y, w, n, a, lm[p]);
+	}
+
+	/**
+	* Draw MAX_POINTS points with a probability proportional to their weights.
+	*/
+	private void subsample(double x[], double y[], double w[], int n) {
+		double total = 0.0;
+		for(int i=0; i<n; i++) {
+			total += w[i];
+			cumul[i] = total;
+		}
+		for(int k=0; k<MAX_POINTS; k++) {
+			int i = Arrays.binarySearch(cumul, 0, n, random.nextDouble() * total);
+			i = Math.min(i < 0 ? -i-1 : i, n-1);
+			sx[k] = x[i];
+			sy[k] = y[i];
+			sw[k] = 1.0;
+		}
+	}
+
+	private void ensureCapacity(int n) {
+		if (cw.length < n) {
+			cw = new double[n];
+			rw = new double[n];
+			cumul = new double[n];
+			keys = new long[n];
+		}
+	}
+
+}
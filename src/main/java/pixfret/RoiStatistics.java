@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import ij.process.*;
+
+/**
+* Statistics of several channels over a region of interest.
+*
+* The mean, the variance, the min/max and the percentiles of all the
+* channels are computed in a single pass over the ROI. The rows of the ROI
+* are split in bands processed in parallel, each band has its own
+* accumulator and the accumulators are merged in the order of the bands,
+* so the result does not depend on the number of threads.
+*
+* The statistics of several measures can be merged with add(), the
+* percentiles are then computed on the union of the pixels.
+*/
+public class RoiStatistics {
+
+	public static final int MEAN 	= 0;
+	public static final int MEDIAN 	= 1;
+	public static final int QUARTILE= 2;
+
+	public static final String[] NAMES = {"Mean", "Median", "Lower quartile"};
+
+	private static final int BAND = 32;		// number of rows per band
+
+	private int nchannels;
+	private int count = 0;
+	private double mean[];
+	private double m2[];					// sum of squared deviations
+	private float min[];
+	private float max[];
+	private float values[][];				// values of the pixels, for the percentiles
+	private boolean sorted[];
+
+	/**
+	* Constructor, empty statistics on nchannels.
+	*/
+	public RoiStatistics(int nchannels) {
+		this.nchannels = nchannels;
+		mean 	= new double[nchannels];
+		m2 		= new double[nchannels];
+		min 	= new float[nchannels];
+		max 	= new float[nchannels];
+		values 	= new float[nchannels][0];
+		sorted 	= new boolean[nchannels];
+		Arrays.fill(min, Float.MAX_VALUE);
+		Arrays.fill(max, -Float.MAX_VALUE);
+	}
+
+	/**
+	* Measure the statistics of the channels in the ROI and return them.
+	* The ROI is given by its bounding rectangle and its mask, the mask
+	* could be null for a rectangular ROI.
+	*/
+	public static RoiStatistics measure(final PixFretImageAccess[] channels, ImageProcessor mask, Rectangle rect) {
+		final int nc = channels.length;
+		final int nx = channels[0].getWidth();
+		final int ny = channels[0].getHeight();
+		final int x0 = Math.max(0, rect.x);
+		final int y0 = Math.max(0, rect.y);
+		final int x1 = Math.min(nx, rect.x+rect.width);
+		final int y1 = Math.min(ny, rect.y+rect.height);
+		if (x1 <= x0 || y1 <= y0)
+			return new RoiStatistics(nc);
+
+		final int rx = rect.x;
+		final int ry = rect.y;
+		final int mx = rect.width;
+		final byte[] mpixels = (mask != null && mask.getPixels() instanceof byte[] ? (byte[])mask.getPixels() : null);
+		final ImageProcessor mproc = mask;
+
+		final RoiStatistics[] acc = new RoiStatistics[Parallel.getBands(y1-y0, BAND)];
+		Parallel.forEachBand(y1-y0, BAND, new Parallel.Band() {
+			public void run(int band, int from, int to) {
+				RoiStatistics s = new RoiStatistics(nc);
+				for(int c=0; c<nc; c++)
+					s.values[c] = new float[(to-from)*(x1-x0)];
+				for(int y=y0+from; y<y0+to; y++)
+				for(int x=x0; x<x1; x++) {
+					if (mproc != null) {
+						int m = (mpixels != null ? mpixels[(x-rx) + mx*(y-ry)] : mproc.getPixel(x-rx, y-ry));
+						if (m == 0)
+							continue;
+					}
+					int index = x + nx*y;
+					int n = s.count + 1;
+					for(int c=0; c<nc; c++) {
+						float v = channels[c].pixels[index];
+						double delta = v - s.mean[c];
+						s.mean[c] += delta / n;
+						s.m2[c] += delta * (v - s.mean[c]);
+						if (v < s.min[c])
+							s.min[c] = v;
+						if (v > s.max[c])
+							s.max[c] = v;
+						s.values[c][s.count] = v;
+					}
+					s.count = n;
+				}
+				acc[band] = s;
+			}
+		});
+
+		int total = 0;
+		for(int b=0; b<acc.length; b++)
+			total += acc[b].count;
+		RoiStatistics stats = new RoiStatistics(nc);
+		for(int c=0; c<nc; c++)
+			stats.values[c] = new float[total];
+		for(int b=0; b<acc.length; b++)
+			stats.add(acc[b]);
+		return stats;
+	}
+
+	/**
+	* Merge the statistics of an other measure into this one.
+	*/
+	public void add(RoiStatistics s) {
+		if (s.nchannels != nchannels)
+			throw new IllegalArgumentException("add: different number of channels.");
+		if (s.count == 0)
+			return;
+		int n = count + s.count;
+		for(int c=0; c<nchannels; c++) {
+			double delta = s.mean[c] - mean[c];
+			mean[c] += delta * s.count / n;
+			m2[c] += s.m2[c] + delta * delta * ((double)count * s.count / n);
+			min[c] = Math.min(min[c], s.min[c]);
+			max[c] = Math.max(max[c], s.max[c]);
+			if (values[c].length < n)
+				values[c] = Arrays.copyOf(values[c], Math.max(n, 2*values[c].length));
+			System.arraycopy(s.values[c], 0, values[c], count, s.count);
+			sorted[c] = false;
+		}
+		count = n;
+	}
+
+	/**
+	* Return the number of pixels.
+	*/
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	* Return the mean of the channel c.
+	*/
+	public double getMean(int c) {
+		return mean[c];
+	}
+
+	/**
+	* Return the unbiased variance of the channel c.
+	*/
+	public double getVariance(int c) {
+		return (count > 1 ? m2[c] / (count-1) : 0.0);
+	}
+
+	/**
+	* Return the standard deviation of the channel c.
+	*/
+	public double getStdDev(int c) {
+		return Math.sqrt(getVariance(c));
+	}
+
+	/**
+	* Return the minimum of the channel c.
+	*/
+	public float getMin(int c) {
+		return min[c];
+	}
+
+	/**
+	* Return the maximum of the channel c.
+	*/
+	public float getMax(int c) {
+		return max[c];
+	}
+
+	/**
+	* Return the percentile p (in [0..100]) of the channel c, with a linear
+	* interpolation between the closest ranks.
+	*/
+	public synchronized double getPercentile(int c, double p) {
+		if (count == 0)
+			return 0.0;
+		if (!sorted[c]) {
+			Arrays.sort(values[c], 0, count);
+			sorted[c] = true;
+		}
+		double pos = Math.max(0.0, Math.min(100.0, p)) * (count-1) / 100.0;
+		int k = (int)pos;
+		if (k >= count-1)
+			return values[c][count-1];
+		return values[c][k] + (pos-k) * (values[c][k+1] - values[c][k]);
+	}
+
+	/**
+	* Return the median of the channel c.
+	*/
+	public double getMedian(int c) {
+		return getPercentile(c, 50.0);
+	}
+
+	/**
+	* Return the statistic (MEAN, MEDIAN or QUARTILE) of the channel c.
+	*/
+	public double get(int c, int statistic) {
+		switch(statistic) {
+			case MEDIAN:	return getMedian(c);
+			case QUARTILE:	return getPercentile(c, 25.0);
+			default:		return getMean(c);
+		}
+	}
+
+}
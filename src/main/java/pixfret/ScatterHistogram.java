@@ -0,0 +1,380 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.awt.Rectangle;
+import ij.process.*;
+
+/**
+* Sparse 2D histogram of the (channel, ratio) scatter plot used to calibrate
+* the bleed-through models.
+*
+* Only the occupied bins are stored, in an open-addressing hash table of
+* the packed (c, r) keys to int counts. The ratio bins have a fixed width
+* of 1/RATIO_SCALE in [0, RATIO_MAX]. The channel bins have a width which
+* is a power of two adapted to the observed intensity range, so that there
+* are at most MAX_CHANNEL_BINS channel bins; the channel bin c covers
+* [c*width, (c+1)*width[. The histogram is coarsened on the fly when the
+* span of the channel bins exceeds MAX_CHANNEL_BINS, since the bins are
+* aligned on powers of two the result does not depend on the order of
+* the points.
+*
+* The histogram also keeps the exact regression moments of the points,
+* and it can be merged with other histograms, so it is a mergeable
+* sufficient statistic of the calibration.
+*/
+public class ScatterHistogram {
+
+	public static final float RATIO_MAX 		= 2f;
+	public static final float RATIO_SCALE 		= 512f;
+	public static final int   MAX_CHANNEL_BINS 	= 4096;
+
+	private static final long EMPTY = -1L;
+	private static final float MAX_BIN = 1 << 30;	// largest channel bin
+	private static final int BAND = 32;			// minimal number of rows per band
+
+	private float width;			// width of the channel bins
+	private long keys[];			// packed (c, r), EMPTY for a free slot
+	private int counts[];
+	private int size = 0;			// number of occupied bins
+	private int cmin = Integer.MAX_VALUE;	// lowest occupied channel bin
+	private int cmax = Integer.MIN_VALUE;	// highest occupied channel bin
+	private long total = 0;			// number of hits
+	private double moments[] = new double[MOMENTS];
+	
+	public static final int N 		= 0;
+	public static final int SX 		= 1;
+	public static final int SY 		= 2;
+	public static final int SXX 	= 3;
+	public static final int SXY 	= 4;
+	public static final int SYY 	= 5;
+	public static final int MOMENTS	= 6;
+
+	/**
+	* Constructor, empty histogram with channel bins of the given width.
+	*/
+	public ScatterHistogram(float width) {
+		this.width = width;
+		allocate(1024);
+	}
+
+	/**
+	* Constructor, empty histogram whose channel width is set by the first
+	* point: 1 for integer data, a fine power of two for float data. The
+	* width is then coarsened when the range of the points requires it.
+	*/
+	public ScatterHistogram(boolean integer) {
+		this(integer ? 1f : 0f);
+	}
+
+	/**
+	* Build the histogram of the ratio fret/channel over a ROI, after
+	* subtraction of the backgrounds. The rows are split in one band per
+	* thread, each band fills a private histogram and the histograms are
+	* merged in the band order. The bins are aligned on powers of two, so
+	* the counts do not depend on the number of threads.
+	*
+	* @param channel	channel image, donor or acceptor
+	* @param fret		fret image
+	* @param bgChannel	background of the channel image
+	* @param bgFret		background of the fret image
+	* @param mask		mask of the ROI, null for the full rectangle
+	* @param rect		bounding rectangle of the ROI
+	*/
+	public static ScatterHistogram measure(final PixFretImageAccess channel, final PixFretImageAccess fret, final float bgChannel, final float bgFret, ImageProcessor mask, Rectangle rect) {
+		final int nx = channel.getWidth();
+		final int x0 = Math.max(0, rect.x);
+		final int y0 = Math.max(0, rect.y);
+		final int x1 = Math.min(nx, rect.x+rect.width);
+		final int y1 = Math.min(channel.getHeight(), rect.y+rect.height);
+		final boolean integer = channel.getBitDepth() != 32;
+		if (x1 <= x0 || y1 <= y0)
+			return new ScatterHistogram(integer);
+
+		final int rx = rect.x;
+		final int ry = rect.y;
+		final int mx = rect.width;
+		final byte[] mpixels = (mask != null && mask.getPixels() instanceof byte[] ? (byte[])mask.getPixels() : null);
+		final ImageProcessor mproc = mask;
+		final float[] pc = channel.pixels;
+		final float[] pf = fret.pixels;
+
+		int band = Math.max(BAND, (y1 - y0 + Parallel.getThreads() - 1) / Parallel.getThreads());
+		final ScatterHistogram[] acc = new ScatterHistogram[Parallel.getBands(y1-y0, band)];
+		Parallel.forEachBand(y1-y0, band, new Parallel.Band() {
+			public void run(int band, int from, int to) {
+				ScatterHistogram h = new ScatterHistogram(integer);
+				for(int y=y0+from; y<y0+to; y++)
+				for(int x=x0; x<x1; x++) {
+					if (mproc != null) {
+						int m = (mpixels != null ? mpixels[(x-rx) + mx*(y-ry)] : mproc.getPixel(x-rx, y-ry));
+						if (m == 0)
+							continue;
+					}
+					int index = x + nx*y;
+					float chan = pc[index] - bgChannel;
+					if (chan > 0)
+						h.add(chan, (pf[index] - bgFret) / chan);
+				}
+				acc[band] = h;
+			}
+		});
+
+		ScatterHistogram histo = acc[0];
+		for(int b=1; b<acc.length; b++)
+			histo.add(acc[b]);
+		return histo;
+	}
+
+	/**
+	* Return the width of the channel bins adapted to an intensity range:
+	* the smallest power of two giving at most MAX_CHANNEL_BINS bins, and at
+	* least 1 for integer data.
+	*/
+	public static float getWidth(float cmin, float cmax, boolean integer) {
+		double range = Math.max(cmax - cmin, 1e-6);
+		int exp = (int)Math.ceil(Math.log(range / MAX_CHANNEL_BINS) / Math.log(2.0));
+		if (integer && exp < 0)
+			exp = 0;
+		return (float)Math.scalb(1.0, exp);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		counts = new int[capacity];
+		java.util.Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	private static int hash(long key) {
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int)key;
+	}
+
+	/**
+	* Return the width of the channel bins.
+	*/
+	public float getWidth() {
+		return width;
+	}
+
+	/**
+	* Return the channel bin of an intensity.
+	*/
+	public int getChannelBin(float channel) {
+		return (int)Math.floor(channel / width);
+	}
+
+	/**
+	* Return the ratio bin of a ratio.
+	*/
+	public static int getRatioBin(float ratio) {
+		return Math.round(ratio * RATIO_SCALE);
+	}
+
+	/**
+	* Return the intensity at the center of the channel bin c.
+	*/
+	public float getChannel(int c) {
+		return (c + 0.5f) * width;
+	}
+
+	/**
+	* Return the ratio of the ratio bin r.
+	*/
+	public static float getRatio(int r) {
+		return r / RATIO_SCALE;
+	}
+
+	/**
+	* Add a point to the histogram. The points with a non positive channel
+	* or a ratio out of ]0, RATIO_MAX[ are ignored.
+	*/
+	public void add(float channel, float ratio) {
+		if (channel > 0 && ratio > 0 && ratio < RATIO_MAX) {
+			if (width == 0f)
+				width = (float)Math.scalb(1.0, Math.getExponent(channel) - 20);
+			if (channel >= MAX_BIN * width)
+				coarsen((float)Math.scalb(1.0, Math.getExponent(channel) - 20));
+			add(getChannelBin(channel), getRatioBin(ratio), 1);
+			moments[N]   += 1.0;
+			moments[SX]  += channel;
+			moments[SY]  += ratio;
+			moments[SXX] += (double)channel*channel;
+			moments[SXY] += (double)channel*ratio;
+			moments[SYY] += (double)ratio*ratio;
+		}
+	}
+
+	/**
+	* Add count hits to the bin (c, r).
+	*/
+	public void add(int c, int r, int count) {
+		long key = ((long)c << 32) | (r & 0xFFFFFFFFL);
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			size++;
+		}
+		counts[slot] += count;
+		total += count;
+		if (2 * size > keys.length)
+			grow();
+		if (c < cmin || c > cmax) {
+			cmin = Math.min(cmin, c);
+			cmax = Math.max(cmax, c);
+			if (cmax - cmin >= MAX_CHANNEL_BINS)
+				fitRange();
+		}
+	}
+
+	/**
+	* Coarsen the channel bins until their span fits MAX_CHANNEL_BINS.
+	*/
+	private void fitRange() {
+		int shift = 1;
+		while ((cmax >> shift) - (cmin >> shift) >= MAX_CHANNEL_BINS)
+			shift++;
+		coarsen((float)Math.scalb(width, shift));
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		long oldTotal = total;
+		allocate(2 * oldKeys.length);
+		for(int k=0; k<oldKeys.length; k++)
+			if (oldKeys[k] != EMPTY)
+				add((int)(oldKeys[k] >> 32), (int)oldKeys[k], oldCounts[k]);
+		total = oldTotal;
+	}
+
+	/**
+	* Merge an other histogram into this one. If the channel bins of the
+	* other histogram are wider, this histogram is first coarsened to its
+	* width.
+	*/
+	public void add(ScatterHistogram h) {
+		if (h.size > 0) {
+			if (size == 0 && h.width > 0f)
+				width = Math.max(width, h.width);
+			float target = Math.max(width, h.width);
+			int s = getShift(width, target);
+			int t = getShift(h.width, target);
+			int lo = Math.min(h.cmin >> t, size == 0 ? Integer.MAX_VALUE : cmin >> s);
+			int hi = Math.max(h.cmax >> t, size == 0 ? Integer.MIN_VALUE : cmax >> s);
+			while (hi - lo >= MAX_CHANNEL_BINS) {
+				target *= 2f;
+				lo >>= 1;
+				hi >>= 1;
+			}
+			coarsen(target);
+			int shift = getShift(h.width, width);
+			for(int k=0; k<h.keys.length; k++)
+				if (h.keys[k] != EMPTY)
+					add((int)(h.keys[k] >> 32) >> shift, (int)h.keys[k], h.counts[k]);
+		}
+		for(int i=0; i<MOMENTS; i++)
+			moments[i] += h.moments[i];
+	}
+
+	/**
+	* Merge the channel bins to reach a larger width, a power of two
+	* times the current width.
+	*/
+	public void coarsen(float newWidth) {
+		int shift = getShift(width, newWidth);
+		if (shift <= 0)
+			return;
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		long oldTotal = total;
+		allocate(oldKeys.length);
+		width = newWidth;
+		cmin = Integer.MAX_VALUE;
+		cmax = Integer.MIN_VALUE;
+		for(int k=0; k<oldKeys.length; k++)
+			if (oldKeys[k] != EMPTY)
+				add((int)(oldKeys[k] >> 32) >> shift, (int)oldKeys[k], oldCounts[k]);
+		total = oldTotal;
+	}
+
+	private static int getShift(float fine, float coarse) {
+		return Math.max(0, (int)Math.round(Math.log(coarse / fine) / Math.log(2.0)));
+	}
+
+	/**
+	* Return the exact moments of the points: N, SX, SY, SXX, SXY and SYY.
+	*/
+	public double[] getMoments() {
+		return moments;
+	}
+
+	/**
+	* Set the moments of the points, used when the histogram is read
+	* from a file.
+	*/
+	public void setMoments(double[] moments) {
+		System.arraycopy(moments, 0, this.moments, 0, MOMENTS);
+	}
+
+	/**
+	* Return the number of occupied bins.
+	*/
+	public int size() {
+		return size;
+	}
+
+	/**
+	* Return the number of hits.
+	*/
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	* Copy the occupied bins into arrays of size size(), in the
+	* order of the hash table.
+	*
+	* @param channel	output, the channel bins
+	* @param ratio		output, the ratio bins
+	* @param count		output, the number of hits of the bins
+	*/
+	public void getBins(int[] channel, int[] ratio, int[] count) {
+		int n = 0;
+		for(int k=0; k<keys.length; k++)
+			if (keys[k] != EMPTY) {
+				channel[n] = (int)(keys[k] >> 32);
+				ratio[n] = (int)keys[k];
+				count[n] = counts[k];
+				n++;
+			}
+	}
+
+}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import ij.*;
+
+/**
+* Sink gathering the outputs of the frames of a time-lapse in one stack
+* per kind of output, shown at the end instead of one window per frame.
+* The slices are labelled by the titles of the outputs.
+*/
+public class StackSink implements ResultSink {
+
+	private ImageStack stacks[] = new ImageStack[NAMES.length];
+	private boolean blurred;
+
+	/**
+	* Constructor.
+	*
+	* @param blurred	gather also the blurred donor and acceptor
+	*/
+	public StackSink(boolean blurred) {
+		this.blurred = blurred;
+	}
+
+	/**
+	* Return true if the sink wants the output of this kind.
+	*/
+	public boolean accepts(int kind) {
+		return (kind == FRET || kind == NFRET || blurred);
+	}
+
+	/**
+	* Add the output to the stack of its kind.
+	*/
+	public void write(int kind, String source, String title, PixFretImageAccess image) {
+		if (stacks[kind] == null)
+			stacks[kind] = new ImageStack(image.getWidth(), image.getHeight());
+		stacks[kind].addSlice(title, image.createFloatProcessor());
+	}
+
+	/**
+	* Show the stacks.
+	*
+	* @param source		title of the input image
+	*/
+	public void show(String source) {
+		int order[] = {DONOR_BLURRED, ACCEPTOR_BLURRED, NFRET, FRET};
+		for(int k=0; k<order.length; k++) {
+			if (stacks[order[k]] == null)
+				continue;
+			ImagePlus imp = new ImagePlus(NAMES[order[k]] + " of " + source, stacks[order[k]]);
+			imp.getProcessor().resetMinAndMax();
+			imp.show();
+		}
+	}
+
+}
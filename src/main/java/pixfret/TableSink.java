@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import ij.measure.*;
+
+/**
+* Sink adding one row of statistics per output in a results table: the
+* number of pixels, the mean, the standard deviation, the minimum and the
+* maximum. Only the finite non-zero pixels are counted, the pixels under
+* the thresholds are zero in the FRET images. The outputs can come from
+* several threads.
+*/
+public class TableSink implements ResultSink {
+
+	private ResultsTable table = new ResultsTable();
+	private String title;
+	private boolean blurred;
+
+	/**
+	* Constructor.
+	*
+	* @param title		title of the window of the table, null to not show it
+	* @param blurred	add also the blurred donor and acceptor
+	*/
+	public TableSink(String title, boolean blurred) {
+		this.title = title;
+		this.blurred = blurred;
+	}
+
+	/**
+	* Return the table.
+	*/
+	public ResultsTable getTable() {
+		return table;
+	}
+
+	/**
+	* Return true if the sink wants the output of this kind.
+	*/
+	public boolean accepts(int kind) {
+		return (kind == FRET || kind == NFRET || blurred);
+	}
+
+	/**
+	* Add the statistics of the output to the table.
+	*/
+	public synchronized void write(int kind, String source, String title, PixFretImageAccess image) {
+		float pixels[] = image.pixels;
+		int n = 0;
+		double mean = 0.0;
+		double m2 = 0.0;					// sum of squared deviations, Welford update as in RoiStatistics
+		float min = Float.NaN;
+		float max = Float.NaN;
+		for(int k=0; k<pixels.length; k++) {
+			float v = pixels[k];
+			if (v == 0.0f || Float.isNaN(v) || Float.isInfinite(v))
+				continue;
+			if (n == 0 || v < min)
+				min = v;
+			if (n == 0 || v > max)
+				max = v;
+			n++;
+			double delta = v - mean;
+			mean += delta / n;
+			m2 += delta * (v - mean);
+		}
+		if (n == 0)
+			mean = Double.NaN;
+		double std = (n > 1 ? Math.sqrt(m2 / (n-1)) : Double.NaN);
+		table.incrementCounter();
+		table.addLabel(title);
+		table.addValue("Image", source);
+		table.addValue("Output", NAMES[kind]);
+		table.addValue("Pixels", n);
+		table.addValue("Mean", mean);
+		table.addValue("StdDev", std);
+		table.addValue("Min", min);
+		table.addValue("Max", max);
+		if (this.title != null)
+			table.show(this.title);
+	}
+
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.lang.reflect.*;
+
+/**
+* Creation of the threads of the I/O stages: virtual threads when the
+* Java runtime has them (Java 21 and later), found by reflection since
+* PixFRET is compiled for Java 8, else platform daemon threads.
+*
+* A virtual thread blocked on a read or a queue does not hold a platform
+* thread, so thousands of file reads can be in flight for the cost of a
+* few platform threads. Without virtual threads the number of I/O threads
+* should be limited, see getIOThreads().
+*/
+public final class Threads {
+
+	private static final int PLATFORM_IO = 64;		// I/O threads without virtual threads
+
+	private static Object builder = null;			// Thread.Builder.OfVirtual
+	private static Method name = null;				// Thread.Builder.name(String)
+	private static Method unstarted = null;		// Thread.Builder.unstarted(Runnable)
+
+	static {
+		try {
+			Class<?> type = Class.forName("java.lang.Thread$Builder");
+			builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			name = type.getMethod("name", String.class);
+			unstarted = type.getMethod("unstarted", Runnable.class);
+		}
+		catch(Exception e) {
+			builder = null;
+		}
+	}
+
+	/**
+	* Return true if the virtual threads are available.
+	*/
+	public static boolean hasVirtualThreads() {
+		return builder != null;
+	}
+
+	/**
+	* Return the number of I/O threads to use for a number wished: the
+	* number itself with the virtual threads, else at most 64.
+	*/
+	public static int getIOThreads(int wished) {
+		return (hasVirtualThreads() ? wished : Math.min(wished, PLATFORM_IO));
+	}
+
+	/**
+	* Create a thread, not started: a virtual thread if asked and
+	* available, else a platform daemon thread.
+	*/
+	public static Thread newThread(Runnable r, String threadName, boolean virtual) {
+		if (virtual && builder != null) {
+			try {
+				synchronized(builder) {
+					return (Thread)unstarted.invoke(name.invoke(builder, threadName), r);
+				}
+			}
+			catch(Exception e) {
+				// fall back to a platform thread
+			}
+		}
+		Thread t = new Thread(r, threadName);
+		t.setDaemon(true);
+		return t;
+	}
+
+}
@@ -0,0 +1,234 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Sink writing each output as a 32-bit TIFF file named
+* "<source>_<output>.tif" in a directory. The FRET images are streamed by
+* bands of rows through a TiffWriter, in strips by default or in tiles,
+* optionally deflated. The outputs, whole or streamed, can come from
+* several threads, a streamed output from a single thread.
+*
+* The frames of a series are written as the pages of one file per output,
+* named after the source of the series.
+*/
+public class TiffSink implements ResultSink.Streaming, ResultSink.Series {
+
+	private File directory;
+	private boolean blurred;
+	private int tileSize = 0;				// 0 for the strips
+	private int rowsPerStrip = 64;
+	private boolean deflate = false;
+	private HashMap<String, TiffWriter> writers = new HashMap<String, TiffWriter>();	// streamed outputs by kind and source
+	private String series = null;			// source of the current series
+	private TiffWriter pages[] = new TiffWriter[NAMES.length];		// files of the series
+
+	/**
+	* Constructor.
+	*
+	* @param directory	directory of the files, created if needed
+	* @param blurred	write also the blurred donor and acceptor
+	*/
+	public TiffSink(File directory, boolean blurred) {
+		this.directory = directory;
+		this.blurred = blurred;
+	}
+
+	/**
+	* Write square tiles of this size, a multiple of 16, or strips if 0.
+	*/
+	public void setTiles(int tileSize) {
+		this.tileSize = tileSize;
+	}
+
+	/**
+	* Set the deflate compression of the strips or tiles.
+	*/
+	public void setCompression(boolean deflate) {
+		this.deflate = deflate;
+	}
+
+	/**
+	* Return true if the sink wants the output of this kind.
+	*/
+	public boolean accepts(int kind) {
+		return (kind == FRET || kind == NFRET || blurred);
+	}
+
+	/**
+	* Return the file of an output, without the TIFF extension of the
+	* source. The frames of a time-lapse written outside a series, titled
+	* "<source> t<frame>", have one file each.
+	*/
+	public File getFile(int kind, String source) {
+		String name = source.replaceFirst("(?i)\\.tiff?(?=( t[0-9]+)?$)", "");
+		name = (name + "_" + NAMES[kind]).replaceAll("[^A-Za-z0-9._-]", "_");
+		return new File(directory, name + ".tif");
+	}
+
+	/**
+	* Open the file of an output.
+	*/
+	public void begin(int kind, String source, String title, int nx, int ny) throws IOException {
+		end(kind, source);
+		TiffWriter writer = (series != null ? getPages(kind, nx, ny) : open(kind, source, nx, ny));
+		synchronized(writers) {
+			writers.put(getKey(kind, source), writer);
+		}
+	}
+
+	/**
+	* Start a series, the outputs of its frames are the pages of the files
+	* of the source.
+	*/
+	public void beginSeries(String source, int frames) throws IOException {
+		endSeries(true);
+		series = source;
+	}
+
+	/**
+	* Close the files of the series, or delete them if it is not complete.
+	*/
+	public void endSeries(boolean complete) throws IOException {
+		IOException error = null;
+		for(int kind=0; kind<pages.length; kind++) {
+			TiffWriter writer = pages[kind];
+			pages[kind] = null;
+			if (writer == null)
+				continue;
+			synchronized(writers) {
+				writers.values().removeAll(Collections.singleton(writer));
+			}
+			if (!complete) {
+				writer.abort();
+				continue;
+			}
+			try {
+				writer.close();
+			}
+			catch(IOException e) {
+				if (error == null)
+					error = e;
+			}
+		}
+		series = null;
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	* Return the writer of the file of an output of the series, the frames
+	* are its pages.
+	*/
+	private TiffWriter getPages(int kind, int nx, int ny) throws IOException {
+		if (pages[kind] == null)
+			pages[kind] = open(kind, series, nx, ny);
+		return pages[kind];
+	}
+
+	/**
+	* Create the writer of an output.
+	*/
+	private TiffWriter open(int kind, String source, int nx, int ny) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+			throw new IOException("Unable to create the directory " + directory);
+		File file = getFile(kind, source);
+		if (tileSize > 0)
+			return new TiffWriter(file, nx, ny, TiffWriter.TILES, tileSize, tileSize, deflate);
+		return new TiffWriter(file, nx, ny, rowsPerStrip, deflate);
+	}
+
+	/**
+	* Write the next rows of an output.
+	*/
+	public void writeRows(int kind, String source, float pixels[], int offset, int rows) throws IOException {
+		TiffWriter writer;
+		synchronized(writers) {
+			writer = writers.get(getKey(kind, source));
+		}
+		writer.writeRows(pixels, offset, rows);
+	}
+
+	/**
+	* Close the file of an output.
+	*/
+	public void end(int kind, String source) throws IOException {
+		TiffWriter writer;
+		synchronized(writers) {
+			writer = writers.remove(getKey(kind, source));
+		}
+		if (writer != null && writer != pages[kind])
+			writer.close();
+	}
+
+	/**
+	* Delete the file of an output which could not be completed.
+	*/
+	public void abort(int kind, String source) {
+		TiffWriter writer;
+		synchronized(writers) {
+			writer = writers.remove(getKey(kind, source));
+		}
+		if (writer == pages[kind])
+			pages[kind] = null;
+		if (writer != null)
+			writer.abort();
+	}
+
+	/**
+	* Return the key of a streamed output.
+	*/
+	private static String getKey(int kind, String source) {
+		return NAMES[kind] + ":" + source;
+	}
+
+	/**
+	* Write a whole output in its file, the file is deleted if the writing
+	* fails.
+	*/
+	public void write(int kind, String source, String title, PixFretImageAccess image) throws IOException {
+		if (series != null) {
+			getPages(kind, image.getWidth(), image.getHeight()).writeRows(image.pixels, 0, image.getHeight());
+			return;
+		}
+		TiffWriter writer = open(kind, source, image.getWidth(), image.getHeight());
+		writer.setAsynchronous(false);
+		try {
+			writer.writeRows(image.pixels, 0, image.getHeight());
+		}
+		catch(IOException e) {
+			writer.abort();
+			throw e;
+		}
+		catch(RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+		writer.close();
+	}
+
+}
@@ -0,0 +1,517 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
+
+/**
+* Streaming writer of 32-bit float TIFF files.
+*
+* The rows are given in order, by bands of any size, and only one band of
+* strips or tiles is held in memory: each complete band is encoded and
+* written at the end of the file by a thread of the writer, so that the
+* deflate compression overlaps with the computation of the next rows. Two
+* bands are in flight at most, the caller waits if the encoder is behind.
+* The bands can also be encoded on the calling thread.
+* The rows beyond the height of the image start a new page, for the time
+* series.
+*
+* The image file directories are written at the end by close(), which
+* chooses the classic TIFF format, readable by ImageJ, or the BigTIFF
+* format if the file exceeds 4 GB. ImageJ reads the uncompressed and the
+* deflated strips; the tiles and the BigTIFF files need Bio-Formats.
+*/
+public class TiffWriter implements Closeable {
+
+	public static final int STRIPS	= 0;
+	public static final int TILES	= 1;
+
+	private static final int HEADER 		= 16;			// room for the BigTIFF header
+	private static final long CLASSIC_LIMIT = 0xFFFFFFFFL;
+	private static final int SHORT 		= 3;
+	private static final int LONG 		= 4;
+	private static final int LONG8 		= 16;
+
+	private File file;
+	private FileChannel channel;
+	private int nx;
+	private int ny;
+	private int layout;
+	private int bandHeight;			// rows per strip or tile height
+	private int tileWidth;			// nx for the strips
+	private int across;				// chunks per band
+	private int bands;				// bands per page
+	private boolean deflate;
+	private boolean bigTiff = false;
+
+	private boolean async = true;
+	private ExecutorService encoder = null;
+	private BlockingQueue<float[]> free = new ArrayBlockingQueue<float[]>(2);
+	private float band[] = null;	// band being filled
+	private int bandRows = 0;		// rows in the band
+	private int row = 0;			// rows of the current page
+	private int pages = 0;			// pages started
+
+	private ArrayList<long[]> offsets = new ArrayList<long[]>();		// [page][chunk]
+	private ArrayList<long[]> counts = new ArrayList<long[]>();
+
+	// Owned by the encoder thread until close()
+	private long position = HEADER;
+	private ByteBuffer raw;
+	private byte packed[];
+	private Deflater deflater;
+	private volatile IOException error = null;
+
+	/**
+	* Open a writer of strips.
+	*
+	* @param file			file to write, replaced if it exists
+	* @param nx				width of the image
+	* @param ny				height of the image
+	* @param rowsPerStrip	height of the strips
+	* @param deflate		deflate compression of the strips
+	*/
+	public TiffWriter(File file, int nx, int ny, int rowsPerStrip, boolean deflate) throws IOException {
+		this(file, nx, ny, STRIPS, nx, rowsPerStrip, deflate);
+	}
+
+	/**
+	* Open a writer.
+	*
+	* @param file			file to write, replaced if it exists
+	* @param nx				width of the image
+	* @param ny				height of the image
+	* @param layout			STRIPS or TILES
+	* @param tileWidth		width of the tiles, multiple of 16, ignored for the strips
+	* @param bandHeight		height of the strips or of the tiles, multiple of 16 for the tiles
+	* @param deflate		deflate compression of the strips or tiles
+	*/
+	public TiffWriter(File file, int nx, int ny, int layout, int tileWidth, int bandHeight, boolean deflate) throws IOException {
+		if (nx < 1 || ny < 1)
+			throw new IllegalArgumentException("TiffWriter: empty image.");
+		if (layout == TILES && (tileWidth < 16 || tileWidth % 16 != 0 || bandHeight < 16 || bandHeight % 16 != 0))
+			throw new IllegalArgumentException("TiffWriter: the tile sizes should be multiples of 16.");
+		this.file = file;
+		this.nx = nx;
+		this.ny = ny;
+		this.layout = layout;
+		this.deflate = deflate;
+		this.bandHeight = Math.max(1, Math.min(bandHeight, layout == TILES ? bandHeight : ny));
+		this.tileWidth = (layout == TILES ? tileWidth : nx);
+		this.across = (nx + this.tileWidth - 1) / this.tileWidth;
+		this.bands = (ny + this.bandHeight - 1) / this.bandHeight;
+		for(int k=0; k<2; k++)
+			free.add(new float[this.bandHeight * nx]);
+		raw = ByteBuffer.allocate(this.bandHeight * this.tileWidth * 4).order(ByteOrder.BIG_ENDIAN);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	* Encode the bands on the writer thread, true by default, or on the
+	* calling thread, e.g. to write whole images from many threads without
+	* a writer thread per file. To call before the first rows.
+	*/
+	public void setAsynchronous(boolean async) {
+		this.async = async;
+	}
+
+	/**
+	* Write the BigTIFF format even if the file is smaller than 4 GB.
+	*/
+	public void setBigTiff(boolean bigTiff) {
+		this.bigTiff = bigTiff;
+	}
+
+	/**
+	* Return the number of pages started.
+	*/
+	public int getPages() {
+		return pages;
+	}
+
+	/**
+	* Write the next rows.
+	*
+	* @param pixels		rows of nx pixels
+	* @param offset		index of the first pixel in pixels
+	* @param rows		number of rows
+	*/
+	public void writeRows(float pixels[], int offset, int rows) throws IOException {
+		check();
+		while (rows > 0) {
+			if (band == null) {
+				band = take();
+				if (row == 0) {
+					offsets.add(new long[bands * across]);
+					counts.add(new long[bands * across]);
+					pages++;
+				}
+			}
+			int height = Math.min(bandHeight, ny - (row - bandRows));
+			int n = Math.min(rows, height - bandRows);
+			System.arraycopy(pixels, offset, band, bandRows * nx, n * nx);
+			offset += n * nx;
+			rows -= n;
+			bandRows += n;
+			row += n;
+			if (bandRows == height)
+				flush();
+		}
+	}
+
+	/**
+	* Complete the current page with zeros, write the image file
+	* directories and close the file.
+	*/
+	public void close() throws IOException {
+		if (channel == null)
+			return;
+		try {
+			if (row > 0) {
+				float zeros[] = new float[nx];
+				while (row > 0)
+					writeRows(zeros, 0, 1);
+			}
+			if (encoder != null) {
+				encoder.shutdown();
+				try {
+					encoder.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while writing " + file);
+				}
+			}
+			check();
+			if (pages == 0)
+				throw new IOException("No image written in " + file);
+			writeDirectories();
+		}
+		finally {
+			if (encoder != null)
+				encoder.shutdownNow();
+			if (deflater != null)
+				deflater.end();
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	* Stop the writing after an error: the pending bands are discarded, the
+	* file is closed and deleted, so no partial image is left.
+	*/
+	public void abort() {
+		if (channel == null)
+			return;
+		try {
+			if (encoder != null) {
+				encoder.shutdownNow();
+				try {
+					encoder.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (deflater != null)
+				deflater.end();
+			channel.close();
+		}
+		catch(IOException e) {
+		}
+		finally {
+			channel = null;
+			file.delete();
+		}
+	}
+
+	/**
+	* Rethrow the error of the encoder.
+	*/
+	private void check() throws IOException {
+		if (error != null)
+			throw new IOException("Unable to write " + file + ": " + error.getMessage(), error);
+	}
+
+	/**
+	* Take a free band, wait for the encoder if both are in flight.
+	*/
+	private float[] take() throws IOException {
+		try {
+			return free.take();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing " + file);
+		}
+	}
+
+	/**
+	* Give the complete band to the encoder.
+	*/
+	private void flush() throws IOException {
+		final float buffer[] = band;
+		final int rows = bandRows;
+		final long off[] = offsets.get(pages - 1);
+		final long cnt[] = counts.get(pages - 1);
+		final int index = (row - 1) / bandHeight;
+		band = null;
+		bandRows = 0;
+		if (row == ny)
+			row = 0;
+		if (!async) {
+			try {
+				encode(buffer, rows, off, cnt, index);
+			}
+			finally {
+				free.add(buffer);
+			}
+			return;
+		}
+		if (encoder == null) {
+			encoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "PixFRET-tiff-writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		encoder.execute(new Runnable() {
+			public void run() {
+				try {
+					if (error == null)
+						encode(buffer, rows, off, cnt, index);
+				}
+				catch(IOException e) {
+					error = e;
+				}
+				catch(RuntimeException e) {
+					error = new IOException(e.toString());
+				}
+				finally {
+					free.add(buffer);
+				}
+			}
+		});
+	}
+
+	/**
+	* Encode and write the strip or the tiles of a band, on the encoder.
+	*/
+	private void encode(float buffer[], int rows, long off[], long cnt[], int index) throws IOException {
+		for(int t=0; t<across; t++) {
+			raw.clear();
+			FloatBuffer fb = raw.asFloatBuffer();
+			int bytes;
+			if (layout == STRIPS) {
+				fb.put(buffer, 0, rows * nx);
+				bytes = rows * nx * 4;
+			}
+			else {
+				int x0 = t * tileWidth;
+				int w = Math.min(tileWidth, nx - x0);
+				for(int r=0; r<bandHeight; r++) {
+					if (r < rows)
+						fb.put(buffer, r * nx + x0, w);
+					for(int c=(r < rows ? w : 0); c<tileWidth; c++)
+						fb.put(0.0f);
+				}
+				bytes = bandHeight * tileWidth * 4;
+			}
+			ByteBuffer out;
+			if (deflate) {
+				if (deflater == null)
+					deflater = new Deflater();
+				if (packed == null || packed.length < bytes + bytes/100 + 64)
+					packed = new byte[bytes + bytes/100 + 64];
+				deflater.reset();
+				deflater.setInput(raw.array(), 0, bytes);
+				deflater.finish();
+				int len = 0;
+				while (!deflater.finished()) {
+					if (len == packed.length)
+						packed = Arrays.copyOf(packed, 2 * packed.length);
+					len += deflater.deflate(packed, len, packed.length - len);
+				}
+				out = ByteBuffer.wrap(packed, 0, len);
+			}
+			else {
+				out = ByteBuffer.wrap(raw.array(), 0, bytes);
+			}
+			int chunk = index * across + t;
+			off[chunk] = position;
+			cnt[chunk] = out.remaining();
+			position = write(out, position);
+		}
+	}
+
+	/**
+	* Write the buffer at the position, return the position after it.
+	*/
+	private long write(ByteBuffer buffer, long pos) throws IOException {
+		while (buffer.hasRemaining())
+			pos += channel.write(buffer, pos);
+		return pos;
+	}
+
+	/**
+	* Write the chain of directories at the end of the data and the header.
+	*/
+	private void writeDirectories() throws IOException {
+		int entries = (layout == STRIPS ? 11 : 12);
+		long size = 0;
+		for(int p=0; p<pages; p++)
+			size += 16 + 20*entries + 8 + 2 * 8L * offsets.get(p).length;
+		boolean big = bigTiff || (position + size > CLASSIC_LIMIT);
+
+		long pos = (position + 7) & ~7L;
+		long first = pos;
+		for(int p=0; p<pages; p++) {
+			long chunks[] = offsets.get(p);
+			int n = chunks.length;
+			int word = (big ? 8 : 4);
+			int ifd = (big ? 8 + 20*entries + 8 : 2 + 12*entries + 4);
+			int external = (n > 1 ? 2 * n * word : 0);
+			ByteBuffer b = ByteBuffer.allocate(ifd + external).order(ByteOrder.BIG_ENDIAN);
+			long ext = pos + ifd;
+			long next = (p < pages-1 ? (pos + ifd + external + 7) & ~7L : 0L);
+			if (big)
+				b.putLong(entries);
+			else
+				b.putShort((short)entries);
+			entry(b, big, 256, LONG, 1, nx);
+			entry(b, big, 257, LONG, 1, ny);
+			entry(b, big, 258, SHORT, 1, 32);
+			entry(b, big, 259, SHORT, 1, deflate ? 8 : 1);
+			entry(b, big, 262, SHORT, 1, 1);
+			if (layout == STRIPS) {
+				ext = array(b, big, 273, chunks, ext);
+				entry(b, big, 277, SHORT, 1, 1);
+				entry(b, big, 278, LONG, 1, bandHeight);
+				ext = array(b, big, 279, counts.get(p), ext);
+				entry(b, big, 284, SHORT, 1, 1);
+			}
+			else {
+				entry(b, big, 277, SHORT, 1, 1);
+				entry(b, big, 284, SHORT, 1, 1);
+				entry(b, big, 322, LONG, 1, tileWidth);
+				entry(b, big, 323, LONG, 1, bandHeight);
+				ext = array(b, big, 324, chunks, ext);
+				ext = array(b, big, 325, counts.get(p), ext);
+			}
+			entry(b, big, 339, SHORT, 1, 3);
+			if (big)
+				b.putLong(next);
+			else
+				b.putInt((int)next);
+			if (n > 1) {
+				for(int k=0; k<n; k++)
+					putWord(b, big, chunks[k]);
+				for(int k=0; k<n; k++)
+					putWord(b, big, counts.get(p)[k]);
+			}
+			b.flip();
+			write(b, pos);
+			pos = next;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.BIG_ENDIAN);
+		header.put((byte)'M').put((byte)'M');
+		if (big) {
+			header.putShort((short)43).putShort((short)8).putShort((short)0).putLong(first);
+		}
+		else {
+			header.putShort((short)42).putInt((int)first);
+		}
+		header.rewind();
+		write(header, 0L);
+	}
+
+	/**
+	* Put an entry with a single value.
+	*/
+	private static void entry(ByteBuffer b, boolean big, int tag, int type, long count, long value) {
+		b.putShort((short)tag);
+		b.putShort((short)type);
+		int start;
+		if (big)
+			b.putLong(count);
+		else
+			b.putInt((int)count);
+		start = b.position();
+		if (type == SHORT)
+			b.putShort((short)value);
+		else if (type == LONG)
+			b.putInt((int)value);
+		else
+			b.putLong(value);
+		int field = (big ? 8 : 4);
+		while (b.position() < start + field)
+			b.put((byte)0);
+	}
+
+	/**
+	* Put an entry of offsets or byte counts, inline for a single chunk,
+	* else pointing to ext where the array is written after the directory.
+	* Return the position of the next array.
+	*/
+	private static long array(ByteBuffer b, boolean big, int tag, long values[], long ext) {
+		int n = values.length;
+		int type = (big ? LONG8 : LONG);
+		if (n == 1) {
+			entry(b, big, tag, type, 1, values[0]);
+			return ext;
+		}
+		b.putShort((short)tag);
+		b.putShort((short)type);
+		if (big) {
+			b.putLong(n);
+			b.putLong(ext);
+		}
+		else {
+			b.putInt(n);
+			b.putInt((int)ext);
+		}
+		return ext + n * (big ? 8 : 4);
+	}
+
+	/**
+	* Put an offset or a byte count.
+	*/
+	private static void putWord(ByteBuffer b, boolean big, long value) {
+		if (big)
+			b.putLong(value);
+		else
+			b.putInt((int)value);
+	}
+
+}
@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+/**
+* Sink showing the outputs in ImageJ windows, the FRET images with a red
+* LUT in [rangeInf, rangeSup].
+*/
+public class WindowSink implements ResultSink {
+
+	private float rangeInf;
+	private float rangeSup;
+	private boolean blurred;
+
+	/**
+	* Constructor.
+	*
+	* @param rangeInf	inferior limit of the red colorization
+	* @param rangeSup	superior limit of the red colorization
+	* @param blurred	show also the blurred donor and acceptor
+	*/
+	public WindowSink(float rangeInf, float rangeSup, boolean blurred) {
+		this.rangeInf = rangeInf;
+		this.rangeSup = rangeSup;
+		this.blurred = blurred;
+	}
+
+	/**
+	* Return true if the sink wants the output of this kind.
+	*/
+	public boolean accepts(int kind) {
+		return (kind == FRET || kind == NFRET || blurred);
+	}
+
+	/**
+	* Show the output in a new window.
+	*/
+	public void write(int kind, String source, String title, PixFretImageAccess image) {
+		if (kind == FRET || kind == NFRET)
+			image.showLUT(title, rangeInf, rangeSup);
+		else
+			image.show(title);
+	}
+
+}
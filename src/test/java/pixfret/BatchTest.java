@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+* Batch of TIFF files in a local directory, read through sources which add
+* the latency of a network file system.
+*/
+public class BatchTest {
+
+	private static final int FILES		= 24;
+	private static final int LATENCY	= 100;		// ms per read
+	private static final int NX			= 64;
+	private static final int NY			= 48;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("pixfret-batch").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(directory);
+	}
+
+	@Test
+	public void testReadsOverlapAndOutputsAreWritten() throws IOException {
+		File input = new File(directory, "input");
+		File output = new File(directory, "output");
+		input.mkdirs();
+		float planes[][][] = new float[FILES][][];
+		for(int k=0; k<FILES; k++) {
+			planes[k] = createFrame(k);
+			TiffWriter writer = new TiffWriter(new File(input, "cell" + (k < 10 ? "0" : "") + k + ".tif"), NX, NY, NY, false);
+			for(int c=0; c<3; c++)
+				writer.writeRows(planes[k][c], 0, NY);
+			writer.close();
+		}
+		File files[] = Batch.list(input);
+		assertEquals(FILES, files.length);
+
+		final AtomicInteger reading = new AtomicInteger();
+		final AtomicInteger peak = new AtomicInteger();
+		FrameSource sources[] = new FrameSource[FILES];
+		String titles[] = new String[FILES];
+		for(int k=0; k<FILES; k++) {
+			final FrameSource source = FrameSource.open(files[k]);
+			titles[k] = files[k].getName();
+			sources[k] = new FrameSource() {
+				public int getFrames() {
+					return source.getFrames();
+				}
+				public PixFretImageAccess[] read(int t) throws IOException {
+					int n = reading.incrementAndGet();
+					while (n > peak.get())
+						peak.compareAndSet(peak.get(), n);
+					try {
+						Thread.sleep(LATENCY);
+						return source.read(t);
+					}
+					catch(InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					finally {
+						reading.decrementAndGet();
+					}
+				}
+			};
+		}
+
+		FretParameters params = createParameters();
+		Batch batch = new Batch(params);
+		batch.setConcurrency(8);
+		batch.run(sources, titles, new ResultSink[] {new TiffSink(output, false)});
+
+		assertTrue("Reads did not overlap, peak " + peak.get(), peak.get() > 1);
+
+		TiffSink names = new TiffSink(output, false);
+		for(int k=0; k<FILES; k++) {
+			MemorySink reference = new MemorySink(false);
+			new FretEngine(params.duplicate()).process(titles[k], createImage(planes[k][0]), createImage(planes[k][1]), createImage(planes[k][2]), new ResultSink[] {reference});
+			int kinds[] = {ResultSink.FRET, ResultSink.NFRET};
+			for(int i=0; i<kinds.length; i++) {
+				File file = names.getFile(kinds[i], titles[k]);
+				assertTrue("Missing " + file.getName(), file.exists());
+				MappedStack stack = MappedStack.loadTiff(file);
+				try {
+					assertEquals(1, stack.getSize());
+					assertArrayEquals(file.getName(), reference.getImage(kinds[i]).pixels, stack.read(0).pixels, 0.0f);
+				}
+				finally {
+					stack.close();
+				}
+			}
+		}
+	}
+
+	/**
+	* Return the parameters of the batch, with the backgrounds estimated on
+	* each file.
+	*/
+	private static FretParameters createParameters() {
+		FretParameters params = new FretParameters();
+		params.blur = 1.0f;
+		params.backgroundMode = FretParameters.AUTO;
+		return params;
+	}
+
+	/**
+	* Return the planes {FRET, donor, acceptor} of a file.
+	*/
+	private static float[][] createFrame(int k) {
+		float planes[][] = new float[3][NX * NY];
+		for(int c=0; c<3; c++)
+			for(int p=0; p<NX*NY; p++)
+				planes[c][p] = 100.0f + 50.0f * c + k + 20.0f * (float)Math.sin(0.1 * p + k);
+		return planes;
+	}
+
+	private static PixFretImageAccess createImage(float pixels[]) {
+		PixFretImageAccess image = new PixFretImageAccess(NX, NY);
+		System.arraycopy(pixels, 0, image.pixels, 0, pixels.length);
+		return image;
+	}
+
+	private static void delete(File file) {
+		File files[] = file.listFiles();
+		if (files != null)
+			for(int k=0; k<files.length; k++)
+				delete(files[k]);
+		file.delete();
+	}
+
+}
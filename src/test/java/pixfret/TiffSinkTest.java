@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * PixFRET
+ * %%
+ * Copyright (C) 2005 - 2019 University of Lausanne and
+ * 			Swiss Federal Institute of Technology Lausanne (EPFL),
+ * 			Switzerland
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package pixfret;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+* Files of the outputs of a time-lapse written by a TiffSink.
+*/
+public class TiffSinkTest {
+
+	private static final int FRAMES		= 5;
+	private static final int NX			= 40;
+	private static final int NY			= 30;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("pixfret-tiff").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(directory);
+	}
+
+	@Test
+	public void testFileNames() {
+		TiffSink sink = new TiffSink(directory, false);
+		assertEquals("stack_FRET.tif", sink.getFile(ResultSink.FRET, "stack.tif").getName());
+		assertEquals("stack_NFRET.tif", sink.getFile(ResultSink.NFRET, "stack.TIFF").getName());
+		assertEquals("stack_t1_FRET.tif", sink.getFile(ResultSink.FRET, "stack.tif t1").getName());
+		assertFalse(sink.getFile(ResultSink.FRET, "stack.tif t1").equals(sink.getFile(ResultSink.FRET, "stack.tif t2")));
+	}
+
+	@Test
+	public void testTimeLapseIsOneFileOfPages() throws IOException {
+		FretParameters params = createParameters();
+		new FretPipeline(params).run(new FrameSource[] {createSource()}, new String[] {"stack.tif"}, new ResultSink[] {new TiffSink(directory, false)});
+
+		assertEquals(2, directory.list().length);
+		TiffSink names = new TiffSink(directory, false);
+		int kinds[] = {ResultSink.FRET, ResultSink.NFRET};
+		for(int i=0; i<kinds.length; i++) {
+			File file = names.getFile(kinds[i], "stack.tif");
+			assertTrue("Missing " + file.getName(), file.exists());
+			MappedStack stack = MappedStack.loadTiff(file);
+			try {
+				assertEquals(FRAMES, stack.getSize());
+				for(int t=0; t<FRAMES; t++)
+					assertArrayEquals(file.getName() + " page " + t, getReference(params, t, kinds[i]), stack.read(t).pixels, 0.0f);
+			}
+			finally {
+				stack.close();
+			}
+		}
+	}
+
+	@Test
+	public void testUnorderedFramesHaveOneFileEach() throws IOException {
+		FretParameters params = createParameters();
+		FretPipeline pipeline = new FretPipeline(params);
+		pipeline.setThreads(FretPipeline.WRITE, 2);
+		pipeline.run(new FrameSource[] {createSource()}, new String[] {"stack.tif"}, new ResultSink[] {new TiffSink(directory, false)});
+
+		assertEquals(2 * FRAMES, directory.list().length);
+		TiffSink names = new TiffSink(directory, false);
+		int kinds[] = {ResultSink.FRET, ResultSink.NFRET};
+		for(int t=0; t<FRAMES; t++) {
+			for(int i=0; i<kinds.length; i++) {
+				File file = names.getFile(kinds[i], "stack.tif t" + (t+1));
+				assertTrue("Missing " + file.getName(), file.exists());
+				MappedStack stack = MappedStack.loadTiff(file);
+				try {
+					assertEquals(1, stack.getSize());
+					assertArrayEquals(file.getName(), getReference(params, t, kinds[i]), stack.read(0).pixels, 0.0f);
+				}
+				finally {
+					stack.close();
+				}
+			}
+		}
+	}
+
+	/**
+	* Return an output of a frame computed alone.
+	*/
+	private static float[] getReference(FretParameters params, int t, int kind) throws IOException {
+		PixFretImageAccess planes[] = createSource().read(t);
+		MemorySink reference = new MemorySink(false);
+		new FretEngine(params.duplicate()).process("frame", planes[0], planes[1], planes[2], new ResultSink[] {reference});
+		return reference.getImage(kind).pixels;
+	}
+
+	private static FretParameters createParameters() {
+		FretParameters params = new FretParameters();
+		params.blur = 1.0f;
+		params.backgroundMode = FretParameters.AUTO;
+		return params;
+	}
+
+	/**
+	* Return a time-lapse whose frames all differ.
+	*/
+	private static FrameSource createSource() {
+		return new FrameSource() {
+			public int getFrames() {
+				return FRAMES;
+			}
+			public PixFretImageAccess[] read(int t) {
+				PixFretImageAccess planes[] = new PixFretImageAccess[3];
+				for(int c=0; c<3; c++) {
+					planes[c] = new PixFretImageAccess(NX, NY);
+					for(int p=0; p<NX*NY; p++)
+						planes[c].pixels[p] = 100.0f + 50.0f * c + 10.0f * t + 20.0f * (float)Math.sin(0.1 * p + t);
+				}
+				return planes;
+			}
+		};
+	}
+
+	private static void delete(File file) {
+		File files[] = file.listFiles();
+		if (files != null)
+			for(int k=0; k<files.length; k++)
+				delete(files[k]);
+		file.delete();
+	}
+
+}